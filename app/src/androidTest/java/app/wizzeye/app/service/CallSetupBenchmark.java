@@ -0,0 +1,154 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.GrantPermissionRule;
+import android.support.test.rule.ServiceTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.webrtc.PeerConnectionFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import app.wizzeye.app.MainActivity;
+import okhttp3.OkHttpClient;
+
+import static app.wizzeye.app.service.TestUtils.waitFor;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set up calls end to end against a {@link FakeSignalingServer}, a {@link FakeObserver} and a
+ * {@link FakeHeadset}, and report the setup latencies over all runs under the {@value #TAG} tag.
+ *
+ * Each call records its own setup metrics once, so they are gathered across runs to get
+ * meaningful percentiles.  The device needs a network connection, as calls wait for one, though
+ * all traffic stays on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CallSetupBenchmark {
+
+    private static final String TAG = "CallSetupBenchmark";
+    private static final String ROOM = "benchmark";
+    private static final int RUNS = 20;
+    private static final long TIMEOUT_S = 30;
+
+    /** Time between starting the call and it being in progress, in ms */
+    private static final String SETUP_TOTAL_TIME = "setup.total_time_ms";
+
+    /** Setup metrics of each call gathered across runs */
+    private static final String[] SETUP_METRICS = {
+        CallMetrics.SETUP_SIGNALING_TIME,
+        CallMetrics.SETUP_OFFER_TIME,
+        CallMetrics.SETUP_ANSWER_TIME,
+        CallMetrics.SETUP_CONNECT_TIME,
+        CallMetrics.HEADSET_CONNECT_TIME,
+        CallMetrics.CAMERA_OPEN_TIME,
+        CallMetrics.CAMERA_FIRST_FRAME_TIME,
+    };
+
+    @Rule
+    public final ServiceTestRule mServiceRule = new ServiceTestRule();
+    @Rule
+    public final GrantPermissionRule mPermissionRule = GrantPermissionRule.grant(MainActivity.PERMISSIONS);
+
+    private final CallMetrics mSetup = new CallMetrics();
+    private Context mContext;
+    private FakeSignalingServer mServer;
+    private FakeHeadset mHeadset;
+    private OkHttpClient mClient;
+    private CallService mService;
+    private PeerConnectionFactory mFactory;
+
+    @Before
+    public void setUp() throws IOException, TimeoutException {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mServer = new FakeSignalingServer(1);
+        mHeadset = new FakeHeadset();
+        mClient = new OkHttpClient();
+        CallService.LocalBinder binder = (CallService.LocalBinder) mServiceRule.bindService(
+            new Intent(mContext, CallService.class));
+        mService = binder.getService();
+        mService.getHeadsetManager().connectForTesting(mHeadset.getHeadset());
+        /* The service has initialized WebRTC */
+        mFactory = PeerConnectionFactory.builder().createPeerConnectionFactory();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mFactory.dispose();
+        mHeadset.release();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void callSetup() throws InterruptedException {
+        for (int i = 0; i < RUNS; i++)
+            runCall();
+        Log.i(TAG, "Setup over " + RUNS + " calls:" + mSetup);
+        assertEquals(RUNS, mSetup.getSample(SETUP_TOTAL_TIME).count);
+    }
+
+    private void runCall() throws InterruptedException {
+        FakeObserver observer = new FakeObserver(mClient, mServer.socketUrl(), ROOM, mFactory);
+        long startNs = System.nanoTime();
+        mContext.startService(new Intent(mContext, CallService.class)
+            .setData(Uri.parse(mServer.roomUrl(ROOM).toString())));
+        waitFor(() -> {
+            Call call = getCall();
+            return call != null && call.getState() == CallState.CALL_IN_PROGRESS;
+        }, TIMEOUT_S);
+        mSetup.addSample(SETUP_TOTAL_TIME, (System.nanoTime() - startNs) / 1e6);
+        assertTrue(observer.awaitConnected(TIMEOUT_S, TimeUnit.SECONDS));
+
+        Call call = getCall();
+        CallMetrics metrics = call.getMetrics();
+        for (String name : SETUP_METRICS) {
+            CallMetrics.Sample sample = metrics.getSample(name);
+            if (sample != null)
+                mSetup.addSample(name, sample.last);
+        }
+
+        call.stop();
+        observer.close();
+        waitFor(() -> getCall() == null, TIMEOUT_S);
+    }
+
+    /** @return the call of the service, read on the main thread where it changes */
+    private Call getCall() {
+        Call[] call = new Call[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> call[0] = mService.getCall());
+        return call[0];
+    }
+
+}
@@ -0,0 +1,297 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.view.Surface;
+
+import com.iristick.smartglass.core.Headset;
+import com.iristick.smartglass.core.camera.CameraCharacteristics;
+import com.iristick.smartglass.core.camera.CameraDevice;
+import com.iristick.smartglass.core.camera.CaptureListener;
+import com.iristick.smartglass.core.camera.CaptureRequest;
+import com.iristick.smartglass.core.camera.CaptureResult;
+import com.iristick.smartglass.core.camera.CaptureSession;
+
+import java.lang.reflect.ParameterizedType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Stand-in for an Iristick headset with a wide-angle camera and a zoom camera with autofocus.
+ *
+ * The SDK objects are Mockito mocks answering the calls {@link IristickCapturer} makes.  The
+ * repeating request of a capture session draws synthetic frames of a solid color, one per camera,
+ * onto its target surface from a separate thread, at a configurable rate.  Opening a camera takes
+ * a configurable time and can be made to fail; a camera can be made to fail or disconnect while
+ * streaming.  Autofocus triggers lock after {@link #AF_LOCK_MS}.
+ *
+ * The SDK classes mirror the final classes of camera2: this needs mockito-inline, thus a device
+ * running Android 9 or later.
+ */
+class FakeHeadset {
+
+    static final String[] CAMERAS = { "0", "1" };
+    static final int[] COLORS = { Color.BLUE, Color.GREEN };
+    static final long AF_LOCK_MS = 100;
+
+    private final Headset mHeadset = mock(Headset.class);
+    private final HandlerThread mThread = new HandlerThread("FakeCamera");
+    private final Handler mHandler;
+    private final AtomicInteger mFramesDrawn = new AtomicInteger();
+
+    /* Fake camera thread */
+    private final Map<CaptureRequest, List<Surface>> mTargets = new WeakHashMap<>();
+    private Camera mOpen;
+
+    private volatile int mFramerate = 30;
+    private volatile long mOpenLatencyMs = 50;
+    private volatile int mFailingOpens;
+
+    /** State of one opened camera */
+    private final class Camera {
+        final int index;
+        final CameraDevice device = mock(CameraDevice.class);
+        final CaptureSession session = mock(CaptureSession.class);
+        CameraDevice.Listener listener;
+        Handler handler;
+        Surface target;
+        boolean closed;
+
+        Camera(int index) {
+            this.index = index;
+        }
+
+        /** Draw one frame and schedule the next one, until closed or the request changes. */
+        void draw(Surface surface) {
+            if (closed || surface != target)
+                return;
+            try {
+                Canvas canvas = surface.lockHardwareCanvas();
+                canvas.drawColor(COLORS[index]);
+                surface.unlockCanvasAndPost(canvas);
+                mFramesDrawn.incrementAndGet();
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                return; // surface released by the capturer
+            }
+            mHandler.postDelayed(() -> draw(surface), 1000 / mFramerate);
+        }
+    }
+
+    FakeHeadset() {
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        when(mHeadset.getCameraIdList()).thenReturn(CAMERAS);
+        for (int i = 0; i < CAMERAS.length; i++) {
+            CameraCharacteristics characteristics = characteristics(i);
+            when(mHeadset.getCameraCharacteristics(CAMERAS[i])).thenReturn(characteristics);
+        }
+        doAnswer(inv -> {
+            String name = inv.getArgument(0);
+            CameraDevice.Listener listener = inv.getArgument(1);
+            Handler handler = inv.getArgument(2);
+            mHandler.post(() -> open(name, listener, handler));
+            return null;
+        }).when(mHeadset).openCamera(anyString(), any(CameraDevice.Listener.class), any(Handler.class));
+    }
+
+    @NonNull
+    Headset getHeadset() {
+        return mHeadset;
+    }
+
+    void setFramerate(int framerate) {
+        mFramerate = framerate;
+    }
+
+    void setOpenLatency(long ms) {
+        mOpenLatencyMs = ms;
+    }
+
+    /** Make the next {@code count} attempts to open a camera fail with an error. */
+    void failOpens(int count) {
+        mFailingOpens = count;
+    }
+
+    /** Report an error on the camera currently streaming; it stops drawing frames. */
+    void injectError() {
+        mHandler.post(() -> {
+            Camera camera = mOpen;
+            if (camera == null)
+                return;
+            camera.closed = true;
+            camera.handler.post(() -> camera.listener.onError(camera.device, 1));
+        });
+    }
+
+    /** Report the camera currently streaming as disconnected, as on headset unplug. */
+    void disconnect() {
+        mHandler.post(() -> {
+            Camera camera = mOpen;
+            if (camera == null)
+                return;
+            camera.closed = true;
+            camera.handler.post(() -> camera.listener.onDisconnected(camera.device));
+        });
+    }
+
+    /** @return the number of frames drawn so far */
+    int getFramesDrawn() {
+        return mFramesDrawn.get();
+    }
+
+    void release() {
+        mThread.quitSafely();
+    }
+
+    private CameraCharacteristics characteristics(int index) {
+        CameraCharacteristics characteristics = mock(CameraCharacteristics.class);
+        Object configurations = mockKeyValue("SCALER_STREAM_CONFIGURATION_MAP",
+            new Point[] { new Point(1920, 1080), new Point(1280, 720) });
+        doAnswer(inv -> {
+            Object key = inv.getArgument(0);
+            if (key == CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP)
+                return configurations;
+            if (key == CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES)
+                return index == 1 ? new int[] { CaptureRequest.CONTROL_AF_MODE_AUTO } : null;
+            if (key == CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE)
+                return new Rect(0, 0, 1920, 1080);
+            return null;
+        }).when(characteristics).get(any());
+        return characteristics;
+    }
+
+    /**
+     * Mock the value type of a characteristics key, answering {@code answer} to any method
+     * returning its type.  The type is only known through the generic type of the key.
+     */
+    private static Object mockKeyValue(String keyName, Object answer) {
+        try {
+            ParameterizedType keyType = (ParameterizedType) CameraCharacteristics.class
+                .getField(keyName).getGenericType();
+            Class<?> valueType = (Class<?>) keyType.getActualTypeArguments()[0];
+            return mock(valueType, inv -> inv.getMethod().getReturnType().isInstance(answer)
+                ? answer : RETURNS_DEFAULTS.answer(inv));
+        } catch (NoSuchFieldException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /* Fake camera thread */
+
+    private void open(String name, CameraDevice.Listener listener, Handler handler) {
+        int index = name.equals(CAMERAS[1]) ? 1 : 0;
+        Camera camera = new Camera(index);
+        camera.listener = listener;
+        camera.handler = handler;
+        if (mOpen != null)
+            mOpen.closed = true;
+        mOpen = camera;
+
+        doAnswer(inv -> {
+            mHandler.post(() -> {
+                camera.closed = true;
+                if (mOpen == camera)
+                    mOpen = null;
+            });
+            return null;
+        }).when(camera.device).close();
+        when(camera.device.createCaptureRequest(anyInt())).thenAnswer(inv -> request());
+        doAnswer(inv -> {
+            CaptureSession.Listener sessionListener = inv.getArgument(1);
+            Handler sessionHandler = inv.getArgument(2);
+            sessionHandler.post(() -> sessionListener.onConfigured(camera.session));
+            return null;
+        }).when(camera.device).createCaptureSession(anyList(), any(CaptureSession.Listener.class), any(Handler.class));
+        doAnswer(inv -> {
+            CaptureRequest request = inv.getArgument(0);
+            mHandler.post(() -> {
+                List<Surface> targets = mTargets.get(request);
+                if (targets == null || targets.isEmpty())
+                    return;
+                boolean restart = camera.target != targets.get(0);
+                camera.target = targets.get(0);
+                if (restart)
+                    camera.draw(camera.target);
+            });
+            return 0;
+        }).when(camera.session).setRepeatingRequest(any(CaptureRequest.class), nullable(CaptureListener.class),
+                                                      any(Handler.class));
+        doAnswer(inv -> {
+            CaptureRequest request = inv.getArgument(0);
+            CaptureListener captureListener = inv.getArgument(1);
+            Handler captureHandler = inv.getArgument(2);
+            if (captureListener != null) {
+                CaptureResult result = mock(CaptureResult.class);
+                doAnswer(r -> r.getArgument(0) == CaptureResult.CONTROL_AF_STATE
+                    ? CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED : null).when(result).get(any());
+                captureHandler.postDelayed(() -> captureListener.onCaptureCompleted(camera.session, request, result),
+                                           AF_LOCK_MS);
+            }
+            return 0;
+        }).when(camera.session).capture(any(CaptureRequest.class), nullable(CaptureListener.class),
+                                        any(Handler.class));
+
+        boolean fail = mFailingOpens > 0;
+        if (fail)
+            mFailingOpens--;
+        handler.postDelayed(() -> {
+            if (fail)
+                listener.onError(camera.device, 1);
+            else
+                listener.onOpened(camera.device);
+        }, mOpenLatencyMs);
+    }
+
+    /** Builder recording the targets of the request it builds */
+    private CaptureRequest.Builder request() {
+        CaptureRequest.Builder builder = mock(CaptureRequest.Builder.class);
+        CaptureRequest request = mock(CaptureRequest.class);
+        List<Surface> targets = new ArrayList<>();
+        doAnswer(inv -> targets.add(inv.getArgument(0))).when(builder).addTarget(any(Surface.class));
+        when(builder.build()).thenAnswer(inv -> {
+            mHandler.post(() -> mTargets.put(request, targets));
+            return request;
+        });
+        return builder;
+    }
+
+}
@@ -0,0 +1,265 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.DataChannel;
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaConstraints;
+import org.webrtc.MediaStream;
+import org.webrtc.PeerConnection;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RtpReceiver;
+import org.webrtc.SdpObserver;
+import org.webrtc.SessionDescription;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+
+/**
+ * Scripted observer: joins a room of a {@link FakeSignalingServer} and answers the offers of the
+ * glass wearer with a receive-only peer connection, the way the web client does.
+ */
+class FakeObserver extends WebSocketListener implements PeerConnection.Observer {
+
+    private static final String TAG = "FakeObserver";
+
+    private final PeerConnectionFactory mFactory;
+    private final String mRoom;
+    private final WebSocket mSocket;
+    private final CountDownLatch mConnected = new CountDownLatch(1);
+
+    /* Guarded by this */
+    private PeerConnection mPeerConnection;
+    private List<IceCandidate> mPendingCandidates;
+    private volatile boolean mClosed;
+
+    FakeObserver(OkHttpClient client, HttpUrl socketUrl, String room, PeerConnectionFactory factory) {
+        mFactory = factory;
+        mRoom = room;
+        mSocket = client.newWebSocket(new Request.Builder()
+            .url(socketUrl)
+            .header("Sec-WebSocket-Protocol", FakeSignalingServer.PROTOCOL)
+            .build(), this);
+    }
+
+    /** Wait for ICE to be connected with the glass wearer. */
+    boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException {
+        return mConnected.await(timeout, unit);
+    }
+
+    void close() {
+        synchronized (this) {
+            mClosed = true;
+            if (mPeerConnection != null) {
+                mPeerConnection.dispose();
+                mPeerConnection = null;
+            }
+        }
+        try {
+            send(message("leave"));
+        } catch (JSONException e) {
+            Log.e(TAG, "Misformatted JSON", e);
+        }
+        mSocket.close(1000, null);
+    }
+
+    private static JSONObject message(String type) throws JSONException {
+        JSONObject msg = new JSONObject();
+        msg.put("type", type);
+        return msg;
+    }
+
+    private void send(JSONObject msg) {
+        mSocket.send(msg.toString());
+    }
+
+    /* WebSocketListener */
+
+    @Override
+    public void onOpen(WebSocket webSocket, Response response) {
+        try {
+            JSONObject msg = message("join");
+            msg.put("room", mRoom);
+            msg.put("role", "observer");
+            send(msg);
+        } catch (JSONException e) {
+            Log.e(TAG, "Misformatted JSON", e);
+        }
+    }
+
+    @Override
+    public void onMessage(WebSocket webSocket, String text) {
+        try {
+            JSONObject msg = new JSONObject(text);
+            switch (msg.getString("type")) {
+            case "offer":
+                offerReceived(new SessionDescription(SessionDescription.Type.OFFER,
+                    msg.getJSONObject("payload").getString("sdp")));
+                break;
+            case "ice-candidate":
+                JSONObject c = msg.getJSONObject("payload");
+                candidateReceived(new IceCandidate(c.getString("sdpMid"), c.getInt("sdpMLineIndex"),
+                    c.getString("candidate")));
+                break;
+            case "error":
+                Log.e(TAG, "Signaling error: " + msg.getString("text"));
+                break;
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Received invalid JSON message", e);
+        }
+    }
+
+    @Override
+    public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+        if (!mClosed)
+            Log.e(TAG, "Websocket failure", t);
+    }
+
+    /* Signaling */
+
+    private synchronized void offerReceived(SessionDescription offer) {
+        if (mClosed)
+            return;
+        if (mPeerConnection != null)
+            mPeerConnection.dispose();
+        mPeerConnection = mFactory.createPeerConnection(
+            new PeerConnection.RTCConfiguration(Collections.emptyList()), this);
+        mPendingCandidates = new ArrayList<>();
+        PeerConnection pc = mPeerConnection;
+        pc.setRemoteDescription(new SdpAdapter("setRemoteDescription") {
+            @Override
+            public void onSetSuccess() {
+                synchronized (FakeObserver.this) {
+                    if (pc != mPeerConnection)
+                        return;
+                    for (IceCandidate candidate : mPendingCandidates)
+                        pc.addIceCandidate(candidate);
+                    mPendingCandidates = null;
+                }
+                pc.createAnswer(new SdpAdapter("createAnswer") {
+                    @Override
+                    public void onCreateSuccess(SessionDescription answer) {
+                        pc.setLocalDescription(new SdpAdapter("setLocalDescription"), answer);
+                        try {
+                            JSONObject payload = new JSONObject();
+                            payload.put("type", "answer");
+                            payload.put("sdp", answer.description);
+                            JSONObject msg = message("answer");
+                            msg.put("payload", payload);
+                            send(msg);
+                        } catch (JSONException e) {
+                            Log.e(TAG, "Misformatted JSON", e);
+                        }
+                    }
+                }, new MediaConstraints());
+            }
+        }, offer);
+    }
+
+    private synchronized void candidateReceived(IceCandidate candidate) {
+        if (mPeerConnection == null)
+            return;
+        if (mPendingCandidates != null)
+            mPendingCandidates.add(candidate);
+        else
+            mPeerConnection.addIceCandidate(candidate);
+    }
+
+    /* PeerConnection.Observer */
+
+    @Override
+    public void onIceCandidate(IceCandidate candidate) {
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put("candidate", candidate.sdp);
+            payload.put("sdpMid", candidate.sdpMid);
+            payload.put("sdpMLineIndex", candidate.sdpMLineIndex);
+            JSONObject msg = message("ice-candidate");
+            msg.put("payload", payload);
+            send(msg);
+        } catch (JSONException e) {
+            Log.e(TAG, "Misformatted JSON", e);
+        }
+    }
+
+    @Override
+    public void onIceConnectionChange(PeerConnection.IceConnectionState state) {
+        if (state == PeerConnection.IceConnectionState.CONNECTED)
+            mConnected.countDown();
+    }
+
+    @Override
+    public void onSignalingChange(PeerConnection.SignalingState state) {}
+    @Override
+    public void onIceConnectionReceivingChange(boolean receiving) {}
+    @Override
+    public void onIceGatheringChange(PeerConnection.IceGatheringState state) {}
+    @Override
+    public void onIceCandidatesRemoved(IceCandidate[] candidates) {}
+    @Override
+    public void onAddStream(MediaStream stream) {}
+    @Override
+    public void onRemoveStream(MediaStream stream) {}
+    @Override
+    public void onDataChannel(DataChannel channel) {}
+    @Override
+    public void onRenegotiationNeeded() {}
+    @Override
+    public void onAddTrack(RtpReceiver receiver, MediaStream[] streams) {}
+
+    /** Log the failures of one step of the offer/answer exchange */
+    private static class SdpAdapter implements SdpObserver {
+        private final String mStep;
+
+        SdpAdapter(String step) {
+            mStep = step;
+        }
+
+        @Override
+        public void onCreateSuccess(SessionDescription description) {}
+        @Override
+        public void onSetSuccess() {}
+        @Override
+        public void onCreateFailure(String error) {
+            Log.e(TAG, mStep + " failed: " + error);
+        }
+        @Override
+        public void onSetFailure(String error) {
+            Log.e(TAG, mStep + " failed: " + error);
+        }
+    }
+
+}
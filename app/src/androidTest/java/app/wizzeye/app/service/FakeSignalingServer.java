@@ -0,0 +1,318 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import okhttp3.HttpUrl;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * In-process stand-in for the signaling server, speaking {@value #PROTOCOL} on {@code /ws}.
+ *
+ * It routes messages the way the router of the Go server does: clients join a room as glass
+ * wearer or observer, a client joining a full role waits for the seat to be freed, offers,
+ * answers, ICE candidates and resets are forwarded to the other side of the room, and observers
+ * are told apart by their peer ID.  Sessions are not granted, so clients do not number their
+ * messages and do not resume after losing their connection.
+ */
+class FakeSignalingServer {
+
+    static final String PROTOCOL = "v1.signaling.wizzeye.app";
+
+    private static final String TAG = "FakeSignalingServer";
+    private static final Pattern ROOM_NAME = Pattern.compile("^[-_a-z0-9]{5,64}$");
+
+    private static final int ERROR_BAD_MESSAGE = 2;
+    private static final int ERROR_NO_ROOM = 3;
+    private static final int ERROR_ROLE_TAKEN = 4;
+    private static final int ERROR_BAD_ROOM = 5;
+
+    private static final class Seat {
+        final WebSocket client;
+        final String role;
+        final String peer;
+
+        Seat(WebSocket client, String role, String peer) {
+            this.client = client;
+            this.role = role;
+            this.peer = peer;
+        }
+    }
+
+    private static final class Room {
+        final String name;
+        final Map<WebSocket, Seat> seats = new LinkedHashMap<>();
+        final Map<String, WebSocket> waiting = new HashMap<>();
+        int lastPeer;
+
+        Room(String name) {
+            this.name = name;
+        }
+
+        int count(String role) {
+            int n = 0;
+            for (Seat seat : seats.values()) {
+                if (seat.role.equals(role))
+                    n++;
+            }
+            return n;
+        }
+    }
+
+    private final MockWebServer mServer = new MockWebServer();
+    private final int mMaxObservers;
+
+    /* Guarded by this */
+    private final Map<String, Room> mRooms = new HashMap<>();
+    private final Map<WebSocket, Room> mClients = new HashMap<>();
+
+    FakeSignalingServer(int maxObservers) throws IOException {
+        mMaxObservers = maxObservers;
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (!"/ws".equals(request.getPath()))
+                    return new MockResponse().setResponseCode(404);
+                return new MockResponse()
+                    .setHeader("Sec-WebSocket-Protocol", PROTOCOL)
+                    .withWebSocketUpgrade(mListener);
+            }
+        });
+        mServer.start();
+    }
+
+    /** @return the URL of a room, as shared with the glass wearer */
+    HttpUrl roomUrl(String room) {
+        return mServer.url("/" + room);
+    }
+
+    /** @return the URL of the websocket */
+    HttpUrl socketUrl() {
+        return mServer.url("/ws");
+    }
+
+    void shutdown() throws IOException {
+        mServer.shutdown();
+    }
+
+    private final WebSocketListener mListener = new WebSocketListener() {
+        @Override
+        public void onMessage(WebSocket webSocket, String text) {
+            try {
+                handle(webSocket, new JSONObject(text));
+            } catch (JSONException e) {
+                Log.w(TAG, "Bad message: " + text, e);
+                webSocket.send(error(ERROR_BAD_MESSAGE, "Bad message"));
+            }
+        }
+
+        @Override
+        public void onClosing(WebSocket webSocket, int code, String reason) {
+            webSocket.close(code, null);
+            gone(webSocket);
+        }
+
+        @Override
+        public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+            gone(webSocket);
+        }
+    };
+
+    private synchronized void gone(WebSocket c) {
+        leave(c);
+    }
+
+    private synchronized void handle(WebSocket c, JSONObject msg) throws JSONException {
+        switch (msg.getString("type")) {
+        case "ping":
+            c.send(message("pong").toString());
+            break;
+        case "join":
+            join(c, msg.getString("room"), msg.getString("role"));
+            break;
+        case "leave":
+            leave(c);
+            break;
+        case "offer":
+        case "answer":
+        case "ice-candidate":
+        case "reset":
+            forward(c, msg);
+            break;
+        case "layer":
+            layer(c, msg.getString("layer"));
+            break;
+        default:
+            c.send(error(ERROR_BAD_MESSAGE, "Bad message"));
+        }
+    }
+
+    private void join(WebSocket c, String name, String role) throws JSONException {
+        if (!"glass-wearer".equals(role) && !"observer".equals(role)) {
+            c.send(error(ERROR_BAD_MESSAGE, "Bad message"));
+            return;
+        }
+        name = name.toLowerCase();
+        if (!ROOM_NAME.matcher(name).matches()) {
+            c.send(error(ERROR_BAD_ROOM, "Invalid room name"));
+            return;
+        }
+
+        leave(c);
+
+        Room room = mRooms.get(name);
+        if (room == null) {
+            room = new Room(name);
+            mRooms.put(name, room);
+        }
+        mClients.put(c, room);
+        int capacity = "observer".equals(role) ? Math.max(1, mMaxObservers) : 1;
+        if (room.count(role) >= capacity) {
+            WebSocket waiter = room.waiting.put(role, c);
+            if (waiter != null)
+                waiter.send(error(ERROR_ROLE_TAKEN, "Role is already taken in room"));
+            return;
+        }
+        Seat seat = new Seat(c, role, "observer".equals(role) ? Integer.toString(++room.lastPeer) : null);
+        room.seats.put(c, seat);
+        for (Seat other : room.seats.values()) {
+            if (other.role.equals(role))
+                continue; // observers do not see each other
+            other.client.send(message("join", room, seat).toString());
+            c.send(message("join", room, other).toString());
+        }
+    }
+
+    private void leave(WebSocket c) {
+        Room room = mClients.remove(c);
+        if (room == null)
+            return;
+        room.waiting.values().remove(c);
+        Seat seat = room.seats.remove(c);
+        if (seat != null) {
+            for (Seat other : new ArrayList<>(room.seats.values())) {
+                if (!other.role.equals(seat.role))
+                    other.client.send(message("leave", room, seat).toString());
+            }
+            WebSocket waiter = room.waiting.remove(seat.role);
+            if (waiter != null) {
+                try {
+                    join(waiter, room.name, seat.role);
+                } catch (JSONException e) {
+                    Log.e(TAG, "Misformatted JSON", e);
+                }
+            }
+        }
+        if (room.seats.isEmpty() && room.waiting.isEmpty())
+            mRooms.remove(room.name);
+    }
+
+    private void forward(WebSocket c, JSONObject msg) throws JSONException {
+        Room room = mClients.get(c);
+        Seat seat = room != null ? room.seats.get(c) : null;
+        if (seat == null) {
+            c.send(error(ERROR_NO_ROOM, "This action cannot be performed as no room has been joined yet"));
+            return;
+        }
+
+        if ("observer".equals(seat.role)) {
+            msg.put("peer", seat.peer);
+            for (Seat other : room.seats.values()) {
+                if (!"observer".equals(other.role))
+                    other.client.send(msg.toString());
+            }
+            return;
+        }
+
+        String peer = msg.optString("peer");
+        msg.remove("peer");
+        for (Seat other : room.seats.values()) {
+            if (other.role.equals(seat.role))
+                continue;
+            if (peer.isEmpty() || peer.equals(other.peer))
+                other.client.send(msg.toString());
+        }
+    }
+
+    private void layer(WebSocket c, String layer) throws JSONException {
+        Room room = mClients.get(c);
+        if (room == null) {
+            c.send(error(ERROR_NO_ROOM, "This action cannot be performed as no room has been joined yet"));
+            return;
+        }
+        Seat seat = room.seats.get(c);
+        if (seat == null || !"observer".equals(seat.role))
+            return; // still waiting for a seat
+        for (Seat other : room.seats.values()) {
+            if ("glass-wearer".equals(other.role)) {
+                JSONObject msg = message("layer");
+                msg.put("layer", layer);
+                msg.put("peer", seat.peer);
+                other.client.send(msg.toString());
+            }
+        }
+    }
+
+    private static JSONObject message(String type) throws JSONException {
+        JSONObject msg = new JSONObject();
+        msg.put("type", type);
+        return msg;
+    }
+
+    private static JSONObject message(String type, Room room, Seat seat) throws JSONException {
+        JSONObject msg = message(type);
+        msg.put("room", room.name);
+        msg.put("role", seat.role);
+        if (seat.peer != null)
+            msg.put("peer", seat.peer);
+        return msg;
+    }
+
+    private static String error(int code, String text) {
+        try {
+            JSONObject msg = message("error");
+            msg.put("code", code);
+            msg.put("text", text);
+            return msg.toString();
+        } catch (JSONException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}
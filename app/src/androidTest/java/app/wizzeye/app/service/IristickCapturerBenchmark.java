@@ -0,0 +1,197 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.webrtc.CameraVideoCapturer;
+import org.webrtc.CapturerObserver;
+import org.webrtc.EglBase;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoFrame;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static app.wizzeye.app.service.TestUtils.waitFor;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drive {@link IristickCapturer} with a {@link FakeHeadset} to measure the capture pipeline and
+ * its recovery from camera failures without a headset.  The measured metrics are logged under
+ * the {@value #TAG} tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IristickCapturerBenchmark {
+
+    private static final String TAG = "CapturerBenchmark";
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int FRAMERATE = 30;
+    private static final long TIMEOUT_S = 10;
+
+    private final CallMetrics mMetrics = new CallMetrics();
+    private final AtomicInteger mFrames = new AtomicInteger();
+    private final AtomicInteger mStarts = new AtomicInteger();
+    private final CountDownLatch mDisconnected = new CountDownLatch(1);
+    private final CountDownLatch mError = new CountDownLatch(1);
+    private FakeHeadset mHeadset;
+    private EglBase mEglBase;
+    private SurfaceTextureHelper mSurfaceHelper;
+    private IristickCapturer mCapturer;
+
+    private final CameraVideoCapturer.CameraEventsHandler mEvents = new CameraVideoCapturer.CameraEventsHandler() {
+        @Override
+        public void onCameraError(String s) {
+            mError.countDown();
+        }
+        @Override
+        public void onCameraDisconnected() {
+            mDisconnected.countDown();
+        }
+        @Override
+        public void onCameraFreezed(String s) {}
+        @Override
+        public void onCameraOpening(String s) {}
+        @Override
+        public void onFirstFrameAvailable() {}
+        @Override
+        public void onCameraClosed() {}
+    };
+
+    private final CapturerObserver mObserver = new CapturerObserver() {
+        @Override
+        public void onCapturerStarted(boolean success) {
+            if (success)
+                mStarts.incrementAndGet();
+        }
+        @Override
+        public void onCapturerStopped() {}
+        @Override
+        public void onFrameCaptured(VideoFrame frame) {
+            mFrames.incrementAndGet();
+        }
+    };
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mHeadset = new FakeHeadset();
+        mEglBase = EglBase.create();
+        mSurfaceHelper = SurfaceTextureHelper.create("CaptureThread", mEglBase.getEglBaseContext());
+        mCapturer = new IristickCapturer(mHeadset.getHeadset(), mEvents, null, null,
+            new FrameTaps(new BufferPool(0), mMetrics), new BufferPool(0), mMetrics, 0);
+        mCapturer.initialize(mSurfaceHelper, context, mObserver);
+    }
+
+    @After
+    public void tearDown() {
+        mCapturer.dispose();
+        mSurfaceHelper.dispose();
+        mEglBase.release();
+        mHeadset.release();
+        Log.i(TAG, "Metrics:" + mMetrics);
+    }
+
+    @Test
+    public void frameThroughput() throws InterruptedException {
+        mCapturer.startCapture(WIDTH, HEIGHT, FRAMERATE);
+        waitFor(() -> mFrames.get() > 0, TIMEOUT_S);
+        int start = mFrames.get();
+        Thread.sleep(5000);
+        double fps = (mFrames.get() - start) / 5.0;
+        Log.i(TAG, "Delivered " + fps + " fps of " + mHeadset.getFramesDrawn() + " frames drawn");
+        assertTrue("Delivered only " + fps + " fps", fps > FRAMERATE * 0.8);
+        assertNotNull(mMetrics.getSample(CallMetrics.CAMERA_OPEN_TIME));
+        assertNotNull(mMetrics.getSample(CallMetrics.CAMERA_FIRST_FRAME_TIME));
+    }
+
+    @Test
+    public void recoverFromErrors() throws InterruptedException {
+        mCapturer.startCapture(WIDTH, HEIGHT, FRAMERATE);
+        for (int i = 0; i < 20; i++) {
+            waitFor(() -> mFrames.get() > 0, TIMEOUT_S);
+            int starts = mStarts.get();
+            mFrames.set(0);
+            mHeadset.injectError();
+            waitFor(() -> mStarts.get() > starts, TIMEOUT_S);
+        }
+        waitFor(() -> mFrames.get() > 0, TIMEOUT_S);
+        CallMetrics.Sample recovery = mMetrics.getSample(CallMetrics.CAMERA_RECOVERY_TIME);
+        assertNotNull(recovery);
+        assertEquals(20, recovery.count);
+        Log.i(TAG, "Recovery: " + recovery);
+    }
+
+    @Test
+    public void recoverFromFailedOpens() throws InterruptedException {
+        mHeadset.failOpens(2);
+        mCapturer.startCapture(WIDTH, HEIGHT, FRAMERATE);
+        waitFor(() -> mFrames.get() > 0, TIMEOUT_S);
+        CallMetrics.Sample failures = mMetrics.getSample(CallMetrics.CAMERA_FAILURES);
+        assertNotNull(failures);
+        assertEquals(2, failures.count);
+        assertEquals(1, mError.getCount());
+    }
+
+    @Test
+    public void giveUpAfterRepeatedFailures() throws InterruptedException {
+        mHeadset.failOpens(10);
+        mCapturer.startCapture(WIDTH, HEIGHT, FRAMERATE);
+        assertTrue(mError.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(0, mFrames.get());
+    }
+
+    @Test
+    public void reportDisconnect() throws InterruptedException {
+        mCapturer.startCapture(WIDTH, HEIGHT, FRAMERATE);
+        waitFor(() -> mFrames.get() > 0, TIMEOUT_S);
+        mHeadset.disconnect();
+        assertTrue(mDisconnected.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(1, mError.getCount());
+    }
+
+    @Test
+    public void switchCameras() throws InterruptedException {
+        mCapturer.startCapture(WIDTH, HEIGHT, FRAMERATE);
+        for (int i = 0; i < 20; i++) {
+            waitFor(() -> mFrames.get() > 0, TIMEOUT_S);
+            int starts = mStarts.get();
+            mFrames.set(0);
+            mCapturer.setZoom(i % 2 == 0 ? 2 : 0);
+            waitFor(() -> mStarts.get() > starts && mFrames.get() > 0, TIMEOUT_S);
+        }
+        CallMetrics.Sample switches = mMetrics.getSample(CallMetrics.CAMERA_SWITCH_TIME);
+        assertNotNull(switches);
+        Log.i(TAG, "Switch: " + switches);
+    }
+
+}
@@ -25,10 +25,16 @@ import android.support.v7.app.AppCompatActivity;
 
 import com.iristick.smartglass.support.app.IristickApp;
 
+/**
+ * Base of the activities shown on the headset display as well, which need their context wrapped
+ * by the Iristick support library.  Phone-only activities do without, so that opening them does
+ * not set the library up.
+ */
 public abstract class BaseActivity extends AppCompatActivity {
 
     @Override
     protected void attachBaseContext(Context newBase) {
+        WizzeyeApplication.initIristick();
         super.attachBaseContext(IristickApp.wrapContext(newBase));
     }
 
@@ -31,16 +31,20 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v7.app.ActionBar;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
 import android.view.WindowManager;
 
 import com.iristick.smartglass.core.Headset;
 import com.iristick.smartglass.support.app.IristickApp;
 
 import app.wizzeye.app.fragments.BaseFragment;
+import app.wizzeye.app.fragments.CallFragment;
 import app.wizzeye.app.fragments.PermissionsFragment;
 import app.wizzeye.app.service.Call;
 import app.wizzeye.app.service.CallService;
@@ -63,6 +67,8 @@ public class MainActivity extends BaseActivity implements ServiceConnection, Cal
     private Fragment.SavedState mLastFragmentState;
     private boolean mBound;
     private CallService mCallService;
+    private View mPreparedCallView;
+    private Call mPreparedCall;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -135,6 +141,7 @@ public class MainActivity extends BaseActivity implements ServiceConnection, Cal
 
     @Override
     protected void onStop() {
+        releasePreparedCallView();
         if (mCallService != null) {
             mCallService.unregisterListener(this);
             mCallService = null;
@@ -197,12 +204,48 @@ public class MainActivity extends BaseActivity implements ServiceConnection, Cal
         return mCallService;
     }
 
+    /**
+     * Take the view prepared for {@link CallFragment} while the call was being established.
+     * @return the view, or {@code null} if none was prepared
+     */
+    @Nullable
+    public View takePreparedCallView() {
+        View view = mPreparedCallView;
+        mPreparedCallView = null;
+        mPreparedCall = null;
+        return view;
+    }
+
+    private void releasePreparedCallView() {
+        if (mPreparedCallView != null) {
+            CallFragment.releasePreparedView(mPreparedCallView, mPreparedCall);
+            mPreparedCallView = null;
+            mPreparedCall = null;
+        }
+    }
+
     @Override
     public void onCallStateChanged(CallState newState) {
-        try {
-            showFragment(newState.fragmentClass.newInstance());
-        } catch (InstantiationException | IllegalAccessException e) {
-            Log.e(TAG, "Could not create fragment for state " + newState, e);
+        BaseFragment current = (BaseFragment) getFragmentManager().findFragmentById(android.R.id.content);
+        if (current == null || current.getClass() != newState.fragmentClass ||
+                !current.updateState(newState)) {
+            try {
+                showFragment(newState.fragmentClass.newInstance());
+            } catch (InstantiationException | IllegalAccessException e) {
+                Log.e(TAG, "Could not create fragment for state " + newState, e);
+            }
+        }
+        /* Inflate the call view and set up its renderer before the call is in progress, so that
+         * the video shows up as soon as possible. */
+        if (newState == CallState.ESTABLISHING) {
+            if (mPreparedCallView == null) {
+                mPreparedCall = getCallService().getCall();
+                mPreparedCallView = CallFragment.prepareView(getLayoutInflater(),
+                    (ViewGroup) findViewById(android.R.id.content),
+                    getCallService().getEglBase().getEglBaseContext(), mPreparedCall);
+            }
+        } else if (newState != CallState.CALL_IN_PROGRESS) {
+            releasePreparedCallView();
         }
         ActionBar actionBar = getSupportActionBar();
         if (actionBar != null) {
@@ -21,12 +21,15 @@
 package app.wizzeye.app;
 
 import android.content.ActivityNotFoundException;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.os.Parcelable;
 import android.preference.ListPreference;
 import android.preference.Preference;
@@ -34,28 +37,36 @@ import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AlertDialog;
+import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.widget.Toast;
 
-import com.iristick.smartglass.core.Intents;
-import com.iristick.smartglass.support.app.IristickApp;
+import com.iristick.smartglass.core.Headset;
 
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
-public class SettingsActivity extends BaseActivity {
+import app.wizzeye.app.helpers.QrScanDialog;
+import app.wizzeye.app.service.Call;
+import app.wizzeye.app.service.CallService;
+
+public class SettingsActivity extends AppCompatActivity {
 
     public static final String KEY_VIDEO_QUALITY = "video_quality";
+    public static final String KEY_CLIP_DURATION = "clip_duration";
+    public static final String KEY_PREVIEW_MODE = "preview_mode";
+    public static final String KEY_AUDIO_PROFILE = "audio_profile";
     public static final String KEY_SERVER = "server";
     public static final String KEY_STUN_HOSTNAME = "stun_hostname";
     public static final String KEY_TURN_HOSTNAME = "turn_hostname";
     public static final String KEY_TURN_USERNAME = "turn_username";
     public static final String KEY_TURN_PASSWORD = "turn_password";
+    public static final String KEY_METERED_BANDWIDTH_CAP = "metered_bandwidth_cap";
     public static final String KEY_ABOUT_VERSION = "about_version";
     public static final String KEY_ABOUT_LEGAL = "about_legal";
 
@@ -66,16 +77,19 @@ public class SettingsActivity extends BaseActivity {
     static {
         IMPORTABLE_KEYS = new HashSet<>();
         IMPORTABLE_KEYS.add(KEY_VIDEO_QUALITY);
+        IMPORTABLE_KEYS.add(KEY_CLIP_DURATION);
+        IMPORTABLE_KEYS.add(KEY_PREVIEW_MODE);
+        IMPORTABLE_KEYS.add(KEY_AUDIO_PROFILE);
         IMPORTABLE_KEYS.add(KEY_SERVER);
         IMPORTABLE_KEYS.add(KEY_STUN_HOSTNAME);
         IMPORTABLE_KEYS.add(KEY_TURN_HOSTNAME);
         IMPORTABLE_KEYS.add(KEY_TURN_USERNAME);
         IMPORTABLE_KEYS.add(KEY_TURN_PASSWORD);
+        IMPORTABLE_KEYS.add(KEY_METERED_BANDWIDTH_CAP);
     }
 
     private static final String TAG = "SettingsActivity";
 
-    private static final int REQUEST_QR_IRISTICK = 0;
     private static final int REQUEST_QR_ZXING = 1;
 
     @Override
@@ -104,6 +118,9 @@ public class SettingsActivity extends BaseActivity {
     public static class SettingsFragment extends PreferenceFragment
         implements SharedPreferences.OnSharedPreferenceChangeListener {
 
+        private QrScanDialog mQrScanDialog;
+        private CallService mCallService;
+
         @Override
         public void onCreate(Bundle savedInstanceState) {
             super.onCreate(savedInstanceState);
@@ -136,24 +153,35 @@ public class SettingsActivity extends BaseActivity {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getActivity());
             prefs.registerOnSharedPreferenceChangeListener(this);
             onSharedPreferenceChanged(prefs, KEY_VIDEO_QUALITY);
+            onSharedPreferenceChanged(prefs, KEY_CLIP_DURATION);
+            onSharedPreferenceChanged(prefs, KEY_PREVIEW_MODE);
+            onSharedPreferenceChanged(prefs, KEY_AUDIO_PROFILE);
             onSharedPreferenceChanged(prefs, KEY_SERVER);
             onSharedPreferenceChanged(prefs, KEY_STUN_HOSTNAME);
             onSharedPreferenceChanged(prefs, KEY_TURN_HOSTNAME);
             onSharedPreferenceChanged(prefs, KEY_TURN_USERNAME);
             onSharedPreferenceChanged(prefs, KEY_TURN_PASSWORD);
+            onSharedPreferenceChanged(prefs, KEY_METERED_BANDWIDTH_CAP);
+            /* Bound for the headset and a running call, if any; no call is started */
+            getActivity().bindService(new Intent(getActivity(), CallService.class), mServiceConnection,
+                                      BIND_AUTO_CREATE);
         }
 
         @Override
         public void onPause() {
+            if (mQrScanDialog != null) {
+                mQrScanDialog.dismiss();
+                mQrScanDialog = null;
+            }
+            getActivity().unbindService(mServiceConnection);
+            mCallService = null;
             PreferenceManager.getDefaultSharedPreferences(getActivity()).unregisterOnSharedPreferenceChangeListener(this);
             super.onPause();
         }
 
         @Override
         public void onActivityResult(int requestCode, int resultCode, Intent data) {
-            if (requestCode == REQUEST_QR_IRISTICK && resultCode == Intents.RESULT_OK) {
-                importSettings(data.getStringExtra(Intents.EXTRA_BARCODE_RESULT));
-            } else if (requestCode == REQUEST_QR_ZXING && resultCode == RESULT_OK) {
+            if (requestCode == REQUEST_QR_ZXING && resultCode == RESULT_OK) {
                 importSettings(data.getStringExtra("SCAN_RESULT"));
             } else {
                 super.onActivityResult(requestCode, resultCode, data);
@@ -165,6 +193,10 @@ public class SettingsActivity extends BaseActivity {
             Preference pref = findPreference(key);
             switch (key) {
             case KEY_VIDEO_QUALITY:
+            case KEY_CLIP_DURATION:
+            case KEY_PREVIEW_MODE:
+            case KEY_AUDIO_PROFILE:
+            case KEY_METERED_BANDWIDTH_CAP:
                 pref.setSummary(((ListPreference) pref).getEntry());
                 break;
             case KEY_SERVER:
@@ -201,11 +233,19 @@ public class SettingsActivity extends BaseActivity {
         }
 
         private void scanQR() {
+            QrScanDialog.Callback callback = text -> {
+                mQrScanDialog = null;
+                importSettings(text);
+            };
             try {
-                if (IristickApp.getHeadset() != null) {
-                    Intent intent = new Intent(Intents.ACTION_SCAN_BARCODE);
-                    intent.putExtra(Intents.EXTRA_BARCODE_SCAN_FORMATS, "QR_CODE");
-                    startActivityForResult(intent, REQUEST_QR_IRISTICK);
+                Call call = mCallService != null ? mCallService.getCall() : null;
+                Headset headset = mCallService != null ? mCallService.getHeadsetManager().getHeadset() : null;
+                if (call != null) {
+                    /* The call holds the headset camera: decode its video instead */
+                    mQrScanDialog = QrScanDialog.show(getContext(), call, callback);
+                } else if (headset != null) {
+                    /* Decode in-app from the headset camera rather than in a separate activity */
+                    mQrScanDialog = QrScanDialog.show(getContext(), headset, callback);
                 } else {
                     Intent intent = new Intent("com.google.zxing.client.android.SCAN");
                     intent.putExtra("SCAN_MODE", "QR_CODE_MODE");
@@ -229,6 +269,20 @@ public class SettingsActivity extends BaseActivity {
             }
         }
 
+        private final ServiceConnection mServiceConnection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                mCallService = ((CallService.LocalBinder) service).getService();
+                /* Have the headset ready to scan from */
+                mCallService.getHeadsetManager().prewarm();
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                mCallService = null;
+            }
+        };
+
         /**
          * Open preference intent, but remove Wizzeye from the list of apps to choose from.
          */
@@ -21,15 +21,35 @@
 package app.wizzeye.app;
 
 import android.app.Application;
+import android.os.Looper;
 
 import com.iristick.smartglass.support.app.IristickApp;
 
 public class WizzeyeApplication extends Application {
 
+    private static WizzeyeApplication sInstance;
+    private static boolean sIristickInitialized;
+
     @Override
     public void onCreate() {
         super.onCreate();
-        IristickApp.init(this);
+        sInstance = this;
+    }
+
+    /**
+     * Set up the Iristick support library on first use rather than on process start.  Activities
+     * shown on the headset need it as soon as they attach, to wrap their context, but a process
+     * started for the call service alone, e.g., to redeliver a call or to hang up from the
+     * notification, only sets it up once a call waits for the headset.  Must be called on the
+     * main thread before any other use of {@link IristickApp}.
+     */
+    public static void initIristick() {
+        if (Looper.myLooper() != Looper.getMainLooper())
+            throw new IllegalStateException("Iristick must be initialized on the main thread");
+        if (sIristickInitialized)
+            return;
+        sIristickInitialized = true;
+        IristickApp.init(sInstance);
     }
 
 }
@@ -22,9 +22,11 @@ package app.wizzeye.app.fragments;
 
 import android.app.Fragment;
 import android.content.Context;
+import android.support.annotation.NonNull;
 
 import app.wizzeye.app.MainActivity;
 import app.wizzeye.app.service.CallService;
+import app.wizzeye.app.service.CallState;
 
 
 /**
@@ -50,4 +52,13 @@ public abstract class BaseFragment extends Fragment {
         return false;
     }
 
+    /**
+     * Called when the call moves to another state shown by the same fragment class.
+     * @return {@code true} if this fragment updated itself in place, {@code false} to have it
+     *         replaced by a new instance
+     */
+    public boolean updateState(@NonNull CallState newState) {
+        return false;
+    }
+
 }
@@ -20,13 +20,21 @@
  */
 package app.wizzeye.app.fragments;
 
+import android.content.ClipData;
+import android.content.ClipboardManager;
+import android.graphics.PointF;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.design.widget.FloatingActionButton;
 import android.support.design.widget.NavigationView;
 import android.support.v4.widget.DrawerLayout;
+import android.support.v7.app.AlertDialog;
 import android.view.LayoutInflater;
+import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
@@ -36,11 +44,15 @@ import android.widget.Toast;
 import com.iristick.smartglass.core.Headset;
 import com.iristick.smartglass.support.app.IristickApp;
 
+import org.webrtc.EglBase;
+import org.webrtc.RendererCommon;
 import org.webrtc.SurfaceViewRenderer;
 
 import app.wizzeye.app.R;
+import app.wizzeye.app.helpers.QrScanDialog;
 import app.wizzeye.app.service.Call;
 import app.wizzeye.app.service.LaserMode;
+import app.wizzeye.app.service.PreviewMode;
 
 public class CallFragment extends InRoomFragment {
 
@@ -48,33 +60,93 @@ public class CallFragment extends InRoomFragment {
 
     private static final int MSG_PARAMETERS_CHANGED = 0;
     private static final int MSG_TURBULENCE = 1;
+    private static final int MSG_POINTER = 2;
+    private static final int MSG_FOCUS = 3;
+    private static final int MSG_RECORDING = 4;
 
     private SurfaceViewRenderer mVideo;
     private ImageView mTurbulence;
+    private ImageView mPointer;
+    private ImageView mFocus;
     private SeekBar mZoom;
     private FloatingActionButton mMore;
     private DrawerLayout mDrawerLayout;
     private NavigationView mOptions;
     private Message mParametersChangedMessage;
     private Message mTurbulenceMessage;
+    private Message mPointerMessage;
+    private Message mFocusMessage;
+    private Message mRecordingMessage;
+    private QrScanDialog mQrScanDialog;
 
+    private boolean mVideoInitialized = false;
     private boolean mFocusHintShown = false;
+    private float mTouchX = 0.5f;
+    private float mTouchY = 0.5f;
+
+    /**
+     * Inflate the view of this fragment ahead of time, with the video renderer already set up
+     * and receiving the local video.  The view is then picked up by the next
+     * {@link CallFragment} through {@link app.wizzeye.app.MainActivity#takePreparedCallView()}.
+     */
+    @NonNull
+    public static View prepareView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container,
+                                   @NonNull EglBase.Context eglContext, @Nullable Call call) {
+        View view = inflater.inflate(R.layout.fragment_call, container, false);
+        SurfaceViewRenderer video = view.findViewById(R.id.video);
+        video.init(eglContext, new RendererEvents(call));
+        if (call != null)
+            call.addVideoSink(video);
+        return view;
+    }
+
+    /** Release a view from {@link #prepareView} that was never used. */
+    public static void releasePreparedView(@NonNull View view, @Nullable Call call) {
+        SurfaceViewRenderer video = view.findViewById(R.id.video);
+        if (call != null)
+            call.removeVideoSink(video);
+        video.release();
+    }
+
+    /** Report the first frame shown to the call metrics. */
+    private static class RendererEvents implements RendererCommon.RendererEvents {
+        private final Call mCall;
+
+        RendererEvents(@Nullable Call call) {
+            mCall = call;
+        }
+
+        @Override
+        public void onFirstFrameRendered() {
+            if (mCall != null)
+                mCall.reportFirstFrameRendered();
+        }
+
+        @Override
+        public void onFrameResolutionChanged(int videoWidth, int videoHeight, int rotation) {
+        }
+    }
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
-        View view = inflater.inflate(R.layout.fragment_call, container, false);
+        View view = mMainActivity.takePreparedCallView();
+        mVideoInitialized = (view != null);
+        if (view == null)
+            view = inflater.inflate(R.layout.fragment_call, container, false);
         mVideo = view.findViewById(R.id.video);
-        mVideo.init(mService.getEglBase().getEglBaseContext(), null);
         mVideo.setEnableHardwareScaler(true);
-        mVideo.setOnClickListener(v -> refocus());
+        mVideo.setOnTouchListener(this::onVideoTouch);
+        mVideo.setOnClickListener(v -> refocus(mTouchX, mTouchY));
 
         mTurbulence = view.findViewById(R.id.turbulence);
+        mPointer = view.findViewById(R.id.pointer);
+        mFocus = view.findViewById(R.id.focus);
 
         mZoom = view.findViewById(R.id.zoom);
         if (mCall != null)
             mZoom.setMax(mCall.getQuality().maxZoom);
         mZoom.setOnSeekBarChangeListener(mZoomListener);
-        mZoom.setOnClickListener(v -> refocus());
+        mZoom.setOnClickListener(v -> refocus(0.5f, 0.5f));
 
         mDrawerLayout = view.findViewById(R.id.drawer_layout);
         mDrawerLayout.addDrawerListener(mDrawerListener);
@@ -86,10 +158,17 @@ public class CallFragment extends InRoomFragment {
         Handler handler = new Handler(this::handleMessage);
         mParametersChangedMessage = handler.obtainMessage(MSG_PARAMETERS_CHANGED);
         mTurbulenceMessage = handler.obtainMessage(MSG_TURBULENCE);
+        mPointerMessage = handler.obtainMessage(MSG_POINTER);
+        mFocusMessage = handler.obtainMessage(MSG_FOCUS);
+        mRecordingMessage = handler.obtainMessage(MSG_RECORDING);
         if (mCall != null) {
             mCall.registerMessage(Call.Event.PARAMETERS_CHANGED, mParametersChangedMessage);
             handler.sendEmptyMessage(MSG_PARAMETERS_CHANGED);
             mCall.registerMessage(Call.Event.TURBULENCE, mTurbulenceMessage);
+            mCall.registerMessage(Call.Event.POINTER, mPointerMessage);
+            mCall.registerMessage(Call.Event.FOCUS, mFocusMessage);
+            mCall.registerMessage(Call.Event.RECORDING, mRecordingMessage);
+            handler.sendEmptyMessage(MSG_RECORDING);
         }
 
         if (savedInstanceState != null)
@@ -103,9 +182,15 @@ public class CallFragment extends InRoomFragment {
         if (mCall != null) {
             mCall.unregisterMessage(mParametersChangedMessage);
             mCall.unregisterMessage(mTurbulenceMessage);
+            mCall.unregisterMessage(mPointerMessage);
+            mCall.unregisterMessage(mFocusMessage);
+            mCall.unregisterMessage(mRecordingMessage);
         }
         mParametersChangedMessage.recycle();
         mTurbulenceMessage.recycle();
+        mPointerMessage.recycle();
+        mFocusMessage.recycle();
+        mRecordingMessage.recycle();
         super.onDestroy();
     }
 
@@ -118,6 +203,10 @@ public class CallFragment extends InRoomFragment {
     @Override
     public void onStart() {
         super.onStart();
+        if (!mVideoInitialized) {
+            mVideo.init(mService.getEglBase().getEglBaseContext(), new RendererEvents(mCall));
+            mVideoInitialized = true;
+        }
         if (mCall != null)
             mCall.addVideoSink(mVideo);
     }
@@ -127,23 +216,26 @@ public class CallFragment extends InRoomFragment {
         if (mCall != null)
             mCall.removeVideoSink(mVideo);
         mVideo.release();
+        mVideoInitialized = false;
         super.onStop();
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        Headset headset = IristickApp.getHeadset();
-        if (headset != null)
-            headset.configureVoiceCommands(Headset.VOICE_FLAG_INHIBIT_COMMAND_DISCOVERY |
-                                           Headset.VOICE_FLAG_INHIBIT_GO_BACK);
+        if (mCall != null)
+            mCall.setVoiceCommands(Headset.VOICE_FLAG_INHIBIT_COMMAND_DISCOVERY |
+                                   Headset.VOICE_FLAG_INHIBIT_GO_BACK);
     }
 
     @Override
     public void onPause() {
-        Headset headset = IristickApp.getHeadset();
-        if (headset != null)
-            headset.configureVoiceCommands(0);
+        if (mQrScanDialog != null) {
+            mQrScanDialog.dismiss();
+            mQrScanDialog = null;
+        }
+        if (mCall != null)
+            mCall.setVoiceCommands(0);
         super.onPause();
     }
 
@@ -156,13 +248,22 @@ public class CallFragment extends InRoomFragment {
         return super.onBackPressed();
     }
 
-    private void refocus() {
+    private boolean onVideoTouch(View v, MotionEvent event) {
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN && v.getWidth() > 0 && v.getHeight() > 0) {
+            mTouchX = event.getX() / v.getWidth();
+            mTouchY = event.getY() / v.getHeight();
+        }
+        return false;
+    }
+
+    /** Refocus on a point of the video, with coordinates from 0 to 1. */
+    private void refocus(float x, float y) {
         if (mCall == null)
             return;
         if (mCall.getZoom() >= mZoom.getMax())
             Toast.makeText(getContext(), R.string.call_toast_focus_forbidden, Toast.LENGTH_SHORT).show();
         else
-            mCall.triggerAF();
+            mCall.triggerAF(x, y);
     }
 
     private boolean handleMessage(Message msg) {
@@ -174,14 +275,55 @@ public class CallFragment extends InRoomFragment {
             mOptions.getMenu().findItem(R.id.torch).setChecked(mCall.getTorch());
             mOptions.getMenu().findItem(R.id.laser).setChecked(mCall.getLaser() != LaserMode.OFF);
             mOptions.getMenu().findItem(R.id.laser).setIcon(mCall.getLaser().icon);
+            MenuItem previewItem = mOptions.getMenu().findItem(R.id.preview);
+            previewItem.setVisible(mCall.getPreviewMode() != PreviewMode.OFF);
+            previewItem.setChecked(mCall.isPreviewEnabled());
+            mOptions.getMenu().findItem(R.id.save_clip).setVisible(mCall.isClipBufferEnabled());
+            if (mCall.getActivePreviewMode() == PreviewMode.OFF)
+                mVideo.clearImage();
             return true;
         case MSG_TURBULENCE:
             mTurbulence.setVisibility(msg.arg1 == 1 ? View.VISIBLE : View.GONE);
             return true;
+        case MSG_POINTER:
+            showPointer(msg.arg1, msg.arg2);
+            return true;
+        case MSG_FOCUS:
+            showFocus(msg.arg1 == 1, (PointF) msg.obj);
+            return true;
+        case MSG_RECORDING:
+            MenuItem record = mOptions.getMenu().findItem(R.id.record);
+            record.setChecked(mCall.isRecording());
+            record.setTitle(mCall.isRecording() ? R.string.call_action_stop_recording : R.string.call_action_record);
+            return true;
         }
         return false;
     }
 
+    /** Show the pointer of the observer over the video, at coordinates from 0 to 65535. */
+    private void showPointer(int x, int y) {
+        if (x < 0 || y < 0) {
+            mPointer.setVisibility(View.INVISIBLE);
+            return;
+        }
+        mPointer.setTranslationX(mVideo.getLeft() + x * mVideo.getWidth() / 65535f - mPointer.getWidth() / 2f);
+        mPointer.setTranslationY(mVideo.getTop() + y * mVideo.getHeight() / 65535f - mPointer.getHeight() / 2f);
+        mPointer.setVisibility(View.VISIBLE);
+    }
+
+    /** Show the focus indicator while autofocus converges, centered if no point is given. */
+    private void showFocus(boolean converging, @Nullable PointF point) {
+        if (!converging) {
+            mFocus.setVisibility(View.INVISIBLE);
+            return;
+        }
+        float x = (point != null ? point.x : 0.5f);
+        float y = (point != null ? point.y : 0.5f);
+        mFocus.setTranslationX(mVideo.getLeft() + x * mVideo.getWidth() - mFocus.getWidth() / 2f);
+        mFocus.setTranslationY(mVideo.getTop() + y * mVideo.getHeight() - mFocus.getHeight() / 2f);
+        mFocus.setVisibility(View.VISIBLE);
+    }
+
     private final SeekBar.OnSeekBarChangeListener mZoomListener = new SeekBar.OnSeekBarChangeListener() {
         @Override
         public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
@@ -204,6 +346,19 @@ public class CallFragment extends InRoomFragment {
         }
     };
 
+    private void showQrCode(@NonNull String text) {
+        mQrScanDialog = null;
+        new AlertDialog.Builder(getContext())
+            .setTitle(R.string.call_qr_result_title)
+            .setMessage(text)
+            .setPositiveButton(R.string.call_qr_result_copy, (dlg, which) -> {
+                ClipboardManager clipboard = getContext().getSystemService(ClipboardManager.class);
+                clipboard.setPrimaryClip(ClipData.newPlainText(getString(R.string.call_qr_result_title), text));
+            })
+            .setNegativeButton(android.R.string.ok, null)
+            .show();
+    }
+
     private final DrawerLayout.DrawerListener mDrawerListener = new DrawerLayout.SimpleDrawerListener() {
         @Override
         public void onDrawerSlide(View drawerView, float slideOffset) {
@@ -228,10 +383,28 @@ public class CallFragment extends InRoomFragment {
             LaserMode newLaser = mCall.getLaser().next();
             mCall.setLaser(newLaser);
             break;
+        case R.id.preview:
+            mCall.setPreviewEnabled(!mCall.isPreviewEnabled());
+            break;
         case R.id.take_picture:
             mCall.takePicture();
             mDrawerLayout.closeDrawers();
             break;
+        case R.id.save_clip:
+            mCall.saveClip();
+            mDrawerLayout.closeDrawers();
+            break;
+        case R.id.record:
+            if (mCall.isRecording())
+                mCall.stopRecording();
+            else
+                mCall.startRecording();
+            mDrawerLayout.closeDrawers();
+            break;
+        case R.id.scan_qr:
+            mQrScanDialog = QrScanDialog.show(getContext(), mCall, this::showQrCode);
+            mDrawerLayout.closeDrawers();
+            break;
         case R.id.hangup:
             mCall.stop();
             mDrawerLayout.closeDrawers();
@@ -22,6 +22,7 @@ package app.wizzeye.app.fragments;
 
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -36,7 +37,21 @@ public class ConnectingFragment extends InRoomFragment {
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.fragment_connecting, container, false);
-        CallState state = mCall != null ? mCall.getState() : CallState.IDLE;
+        showState(view, mCall != null ? mCall.getState() : CallState.IDLE);
+        return view;
+    }
+
+    @Override
+    public boolean updateState(@NonNull CallState newState) {
+        /* Connecting states all share this fragment: only the texts change */
+        View view = getView();
+        if (view == null || mCall == null || mCall != mService.getCall())
+            return false;
+        showState(view, newState);
+        return true;
+    }
+
+    private void showState(View view, CallState state) {
         ((TextView) view.findViewById(R.id.status)).setText(state.title);
         TextView hint = view.findViewById(R.id.hint);
         if (state.hint != 0) {
@@ -49,10 +64,10 @@ public class ConnectingFragment extends InRoomFragment {
             default:
                 hint.setText(state.hint);
             }
+            hint.setVisibility(View.VISIBLE);
         } else {
             hint.setVisibility(View.GONE);
         }
-        return view;
     }
 
 }
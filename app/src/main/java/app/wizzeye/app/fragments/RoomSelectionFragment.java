@@ -25,6 +25,7 @@ import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
 import android.support.annotation.StringRes;
 import android.text.Editable;
 import android.text.TextWatcher;
@@ -35,12 +36,17 @@ import android.view.inputmethod.EditorInfo;
 import android.widget.Button;
 import android.widget.EditText;
 
+import com.iristick.smartglass.core.Headset;
+
 import java.util.Random;
 import java.util.regex.Pattern;
 
 import app.wizzeye.app.R;
 import app.wizzeye.app.SettingsActivity;
+import app.wizzeye.app.helpers.QrScanDialog;
+import app.wizzeye.app.service.Call;
 import app.wizzeye.app.service.CallService;
+import app.wizzeye.app.service.HeadsetManager;
 
 public class RoomSelectionFragment extends BaseFragment implements TextWatcher {
 
@@ -54,6 +60,9 @@ public class RoomSelectionFragment extends BaseFragment implements TextWatcher {
     private Random mRandom;
     private Button mJoin;
     private EditText mRoom;
+    private View mScan;
+    private HeadsetManager mHeadsetManager;
+    private QrScanDialog mQrScanDialog;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -75,6 +84,8 @@ public class RoomSelectionFragment extends BaseFragment implements TextWatcher {
         mJoin = view.findViewById(R.id.join);
         mJoin.setOnClickListener(v -> joinRoom());
         view.findViewById(R.id.random).setOnClickListener(v -> mRoom.setText(generateRandomRoom()));
+        mScan = view.findViewById(R.id.scan);
+        mScan.setOnClickListener(v -> scanRoom());
         mRoom = view.findViewById(R.id.room);
         mRoom.addTextChangedListener(this);
         mRoom.setText(room);
@@ -89,6 +100,31 @@ public class RoomSelectionFragment extends BaseFragment implements TextWatcher {
         return view;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        /* The user is about to start a call: have the headset ready by then */
+        if (mService != null) {
+            mHeadsetManager = mService.getHeadsetManager();
+            /* The headset may have gone away while paused */
+            mScan.setVisibility(mHeadsetManager.getHeadset() != null ? View.VISIBLE : View.GONE);
+            mHeadsetManager.addListener(mHeadsetListener);
+        }
+    }
+
+    @Override
+    public void onPause() {
+        if (mQrScanDialog != null) {
+            mQrScanDialog.dismiss();
+            mQrScanDialog = null;
+        }
+        if (mHeadsetManager != null) {
+            mHeadsetManager.removeListener(mHeadsetListener);
+            mHeadsetManager = null;
+        }
+        super.onPause();
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -111,6 +147,43 @@ public class RoomSelectionFragment extends BaseFragment implements TextWatcher {
         }
     }
 
+    private void scanRoom() {
+        QrScanDialog.Callback callback = text -> {
+            mQrScanDialog = null;
+            /* Either a link to the room or its bare name */
+            Uri uri = Uri.parse(text);
+            String room = (uri.getScheme() != null ? uri.getLastPathSegment() : text);
+            if (room != null)
+                mRoom.setText(room);
+        };
+        Call call = mService != null ? mService.getCall() : null;
+        if (call != null) {
+            /* The call holds the headset camera: decode its video instead */
+            mQrScanDialog = QrScanDialog.show(getContext(), call, callback);
+            return;
+        }
+        Headset headset = mHeadsetManager != null ? mHeadsetManager.getHeadset() : null;
+        if (headset == null)
+            return;
+        mQrScanDialog = QrScanDialog.show(getContext(), headset, callback);
+    }
+
+    /** Offer to scan the room from the headset camera while one is connected. */
+    private final HeadsetManager.Listener mHeadsetListener = new HeadsetManager.Listener() {
+        @Override
+        public void onHeadsetConnected(@NonNull Headset headset) {
+            mScan.setVisibility(View.VISIBLE);
+        }
+        @Override
+        public void onHeadsetDisconnected() {
+            mScan.setVisibility(View.GONE);
+        }
+        @Override
+        public void onIristickServiceError(int error) {
+            mScan.setVisibility(View.GONE);
+        }
+    };
+
     private void joinRoom() {
         String room = mRoom.getText().toString();
         if (validateRoomName(room) != 0)
@@ -0,0 +1,101 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.helpers;
+
+import android.content.Context;
+import android.content.DialogInterface;
+import android.support.annotation.NonNull;
+import android.support.v7.app.AlertDialog;
+import android.widget.Toast;
+
+import com.iristick.smartglass.core.Headset;
+
+import app.wizzeye.app.R;
+import app.wizzeye.app.service.Call;
+import app.wizzeye.app.service.QrScanner;
+
+/**
+ * Dialog shown while a {@link QrScanner} looks for a QR code; dismissing it stops the scanner.
+ */
+public final class QrScanDialog implements QrScanner.Listener, DialogInterface.OnDismissListener {
+
+    public interface Callback {
+        void onQrCodeScanned(@NonNull String text);
+    }
+
+    private final Context mContext;
+    private final Callback mCallback;
+    private final QrScanner mScanner;
+    private final AlertDialog mDialog;
+
+    private QrScanDialog(@NonNull Context context, @NonNull Callback callback) {
+        mContext = context;
+        mCallback = callback;
+        mScanner = new QrScanner(this);
+        mDialog = new AlertDialog.Builder(context)
+            .setTitle(R.string.qr_scan_title)
+            .setMessage(R.string.qr_scan_message)
+            .setNegativeButton(android.R.string.cancel, null)
+            .setOnDismissListener(this)
+            .create();
+    }
+
+    /** Scan with the camera of the headset, which must not be used by a call. */
+    @NonNull
+    public static QrScanDialog show(@NonNull Context context, @NonNull Headset headset, @NonNull Callback callback) {
+        QrScanDialog dialog = new QrScanDialog(context, callback);
+        dialog.mScanner.start(context, headset);
+        dialog.mDialog.show();
+        return dialog;
+    }
+
+    /** Scan the video of a running call. */
+    @NonNull
+    public static QrScanDialog show(@NonNull Context context, @NonNull Call call, @NonNull Callback callback) {
+        QrScanDialog dialog = new QrScanDialog(context, callback);
+        dialog.mScanner.start(call);
+        dialog.mDialog.show();
+        return dialog;
+    }
+
+    /** Stop scanning, e.g., when the screen showing the dialog goes away. */
+    public void dismiss() {
+        mDialog.dismiss();
+    }
+
+    @Override
+    public void onDismiss(DialogInterface dialog) {
+        mScanner.stop();
+    }
+
+    @Override
+    public void onQrCodeScanned(@NonNull String text) {
+        mDialog.dismiss();
+        mCallback.onQrCodeScanned(text);
+    }
+
+    @Override
+    public void onQrScanError() {
+        mDialog.dismiss();
+        Toast.makeText(mContext, R.string.qr_scan_error, Toast.LENGTH_SHORT).show();
+    }
+
+}
@@ -0,0 +1,142 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.content.Context;
+import android.media.AudioDeviceCallback;
+import android.media.AudioDeviceInfo;
+import android.media.AudioManager;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+/**
+ * Route of the observer's voice during a call.
+ *
+ * Puts the audio in communication mode and picks the best output available: the headset when
+ * it exposes a USB audio device, then wired or Bluetooth headphones, then the loudspeaker (the
+ * phone is usually in a pocket, so the earpiece is of no use).  Routes are re-evaluated when
+ * audio devices come and go; this is purely local and does not affect the connections.
+ */
+final class AudioOutputManager extends AudioDeviceCallback {
+
+    enum Route {
+        USB,
+        WIRED,
+        BLUETOOTH,
+        SPEAKER,
+    }
+
+    private static final String TAG = "AudioOutputManager";
+
+    private final AudioManager mAudioManager;
+    private final CallMetrics mMetrics;
+    private Route mRoute;
+    private int mSavedMode;
+    private boolean mSavedSpeakerphone;
+
+    AudioOutputManager(@NonNull Context context, @NonNull CallMetrics metrics) {
+        mAudioManager = context.getSystemService(AudioManager.class);
+        mMetrics = metrics;
+    }
+
+    /** @param handler Handler on which route changes are handled */
+    void start(@NonNull Handler handler) {
+        mSavedMode = mAudioManager.getMode();
+        mSavedSpeakerphone = mAudioManager.isSpeakerphoneOn();
+        mAudioManager.setMode(AudioManager.MODE_IN_COMMUNICATION);
+        /* Reports the current devices right away, which selects the first route */
+        mAudioManager.registerAudioDeviceCallback(this, handler);
+    }
+
+    void stop() {
+        mAudioManager.unregisterAudioDeviceCallback(this);
+        if (mRoute == Route.BLUETOOTH)
+            stopBluetooth();
+        mRoute = null;
+        mAudioManager.setSpeakerphoneOn(mSavedSpeakerphone);
+        mAudioManager.setMode(mSavedMode);
+    }
+
+    @Override
+    public void onAudioDevicesAdded(AudioDeviceInfo[] addedDevices) {
+        selectRoute();
+    }
+
+    @Override
+    public void onAudioDevicesRemoved(AudioDeviceInfo[] removedDevices) {
+        selectRoute();
+    }
+
+    private void selectRoute() {
+        Route best = Route.SPEAKER;
+        for (AudioDeviceInfo device : mAudioManager.getDevices(AudioManager.GET_DEVICES_OUTPUTS)) {
+            Route route;
+            switch (device.getType()) {
+            case AudioDeviceInfo.TYPE_USB_HEADSET:
+            case AudioDeviceInfo.TYPE_USB_DEVICE:
+                route = Route.USB;
+                break;
+            case AudioDeviceInfo.TYPE_WIRED_HEADSET:
+            case AudioDeviceInfo.TYPE_WIRED_HEADPHONES:
+                route = Route.WIRED;
+                break;
+            case AudioDeviceInfo.TYPE_BLUETOOTH_SCO:
+                route = Route.BLUETOOTH;
+                break;
+            default:
+                continue;
+            }
+            if (route.ordinal() < best.ordinal())
+                best = route;
+        }
+        if (best == mRoute)
+            return;
+
+        Log.i(TAG, "Routing audio " + mRoute + " -> " + best);
+        if (mRoute == Route.BLUETOOTH)
+            stopBluetooth();
+        switch (best) {
+        case USB:
+        case WIRED:
+            /* Taken over by the platform as soon as speakerphone is off */
+            mAudioManager.setSpeakerphoneOn(false);
+            break;
+        case BLUETOOTH:
+            mAudioManager.setSpeakerphoneOn(false);
+            mAudioManager.startBluetoothSco();
+            mAudioManager.setBluetoothScoOn(true);
+            break;
+        case SPEAKER:
+            mAudioManager.setSpeakerphoneOn(true);
+            break;
+        }
+        mRoute = best;
+        mMetrics.setValue(CallMetrics.AUDIO_ROUTE, best.name());
+        mMetrics.increment(CallMetrics.AUDIO_ROUTE_CHANGES);
+    }
+
+    private void stopBluetooth() {
+        mAudioManager.setBluetoothScoOn(false);
+        mAudioManager.stopBluetoothSco();
+    }
+
+}
@@ -0,0 +1,88 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.support.annotation.NonNull;
+
+import org.webrtc.MediaConstraints;
+
+/**
+ * Audio processing and encoding suited to the noise level around the wearer.
+ *
+ * Louder environments get more aggressive noise suppression done by WebRTC rather than by the
+ * platform effects, a higher Opus bitrate and no discontinuous transmission, whose comfort noise
+ * sounds odd when the background is never quiet.  Only the very noisy profile drops automatic
+ * gain, which would bring the constant background noise up as much as the voice.
+ */
+public enum AudioProfile {
+    /** Office, outdoors */
+    QUIET(false, true, 32, true),
+    /** Workshop, machines running */
+    NOISY(true, true, 40, false),
+    /** Factory floor, constant loud noise */
+    VERY_NOISY(true, false, 48, false),
+    ;
+
+    /** Whether to use the WebRTC noise suppressor and echo canceller instead of the platform's */
+    public final boolean softwareProcessing;
+    /** Whether to apply automatic gain control */
+    public final boolean autoGainControl;
+    /** Maximum Opus bitrate in kbps */
+    public final int opusMaxBitrate;
+    /** Whether Opus may stop sending during silence */
+    public final boolean opusDtx;
+
+    AudioProfile(boolean softwareProcessing, boolean autoGainControl, int opusMaxBitrate, boolean opusDtx) {
+        this.softwareProcessing = softwareProcessing;
+        this.autoGainControl = autoGainControl;
+        this.opusMaxBitrate = opusMaxBitrate;
+        this.opusDtx = opusDtx;
+    }
+
+    /** CPU use and audio bitrate measured while a call runs with a profile */
+    public static final class Stats {
+        @NonNull public final AudioProfile profile;
+        /** CPU time used by the app, in percent of one core, averaged over the call; 0 until measured */
+        public final double cpuUsage;
+        /** Audio send bitrate to one observer, in kbps, averaged over the call; 0 until measured */
+        public final double sendBitrate;
+
+        Stats(@NonNull AudioProfile profile, double cpuUsage, double sendBitrate) {
+            this.profile = profile;
+            this.cpuUsage = cpuUsage;
+            this.sendBitrate = sendBitrate;
+        }
+    }
+
+    /** Constraints for the audio source. */
+    @NonNull
+    MediaConstraints createConstraints() {
+        MediaConstraints c = new MediaConstraints();
+        c.mandatory.add(new MediaConstraints.KeyValuePair("googEchoCancellation", "true"));
+        c.mandatory.add(new MediaConstraints.KeyValuePair("googNoiseSuppression", "true"));
+        c.mandatory.add(new MediaConstraints.KeyValuePair("googHighpassFilter", "true"));
+        c.mandatory.add(new MediaConstraints.KeyValuePair("googAutoGainControl",
+            Boolean.toString(autoGainControl)));
+        c.mandatory.add(new MediaConstraints.KeyValuePair("googExperimentalNoiseSuppression",
+            Boolean.toString(this == VERY_NOISY)));
+        return c;
+    }
+}
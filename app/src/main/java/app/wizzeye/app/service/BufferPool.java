@@ -0,0 +1,201 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import app.wizzeye.app.BuildConfig;
+
+/**
+ * Pool of direct byte buffers shared by the capture-side consumers.
+ *
+ * Buffers are handed out as {@link Lease}s and come in power-of-two size classes from 4 KiB to
+ * 64 MiB; larger requests are allocated directly and never pooled.  Released buffers are kept
+ * for reuse as long as the idle memory stays below the limit given at construction.
+ *
+ * In debug builds, leases which become unreachable without being released are reported, with
+ * the stack trace of the caller who leased them.  All methods are thread-safe.
+ */
+public final class BufferPool {
+
+    /** A buffer borrowed from the pool, to be closed when done with it. */
+    public final class Lease implements AutoCloseable {
+        private ByteBuffer mBuffer;
+        private final LeakTracker mTracker;
+
+        private Lease(ByteBuffer buffer) {
+            mBuffer = buffer;
+            mTracker = (BuildConfig.DEBUG ? new LeakTracker(this, mLeakQueue, buffer.capacity()) : null);
+        }
+
+        /**
+         * @return the buffer, with its limit set to the requested size.  It must not be used
+         *         after the lease is closed.
+         */
+        @NonNull
+        public ByteBuffer buffer() {
+            ByteBuffer buffer = mBuffer;
+            if (buffer == null)
+                throw new IllegalStateException("Lease already released");
+            return buffer;
+        }
+
+        /** Give the buffer back to the pool. */
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    private static class LeakTracker extends WeakReference<Lease> {
+        final int capacity;
+        final Throwable origin = new Throwable("Buffer leased here");
+
+        LeakTracker(Lease lease, ReferenceQueue<Lease> queue, int capacity) {
+            super(lease, queue);
+            this.capacity = capacity;
+        }
+    }
+
+    private static final String TAG = "BufferPool";
+
+    private static final int MIN_CLASS_SHIFT = 12;  // 4 KiB
+    private static final int MAX_CLASS_SHIFT = 26;  // 64 MiB
+
+    private final long mMaxIdleBytes;
+    private final ArrayDeque<ByteBuffer>[] mFree;
+    private final ReferenceQueue<Lease> mLeakQueue = new ReferenceQueue<>();
+    private final Set<LeakTracker> mTrackers = new HashSet<>();
+    private long mIdleBytes;
+    private long mLeasedBytes;
+    private long mLeases;
+    private long mHits;
+    private int mLeaks;
+
+    /** @param maxIdleBytes Maximum memory kept in released buffers. */
+    BufferPool(long maxIdleBytes) {
+        mMaxIdleBytes = maxIdleBytes;
+        //noinspection unchecked
+        mFree = new ArrayDeque[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < mFree.length; i++)
+            mFree[i] = new ArrayDeque<>();
+    }
+
+    /** @return the size class for {@code size} bytes, or -1 if too large to be pooled */
+    private static int sizeClass(int size) {
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+        return (shift <= MAX_CLASS_SHIFT ? shift - MIN_CLASS_SHIFT : -1);
+    }
+
+    /** Borrow a direct buffer of at least {@code size} bytes, in big-endian order. */
+    @NonNull
+    public synchronized Lease lease(int size) {
+        pollLeaks();
+        mLeases++;
+        int cls = sizeClass(size);
+        ByteBuffer buffer = (cls >= 0 ? mFree[cls].poll() : null);
+        if (buffer != null) {
+            mHits++;
+            mIdleBytes -= buffer.capacity();
+            buffer.clear();
+            buffer.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            buffer = ByteBuffer.allocateDirect(cls >= 0 ? 1 << (cls + MIN_CLASS_SHIFT) : size);
+        }
+        buffer.limit(size);
+        mLeasedBytes += buffer.capacity();
+        Lease lease = new Lease(buffer);
+        if (lease.mTracker != null)
+            mTrackers.add(lease.mTracker);
+        return lease;
+    }
+
+    private synchronized void release(Lease lease) {
+        ByteBuffer buffer = lease.mBuffer;
+        if (buffer == null) {
+            Log.w(TAG, "Lease released twice", new Throwable());
+            return;
+        }
+        lease.mBuffer = null;
+        if (lease.mTracker != null) {
+            mTrackers.remove(lease.mTracker);
+            lease.mTracker.clear();
+        }
+        int capacity = buffer.capacity();
+        mLeasedBytes -= capacity;
+        int cls = sizeClass(capacity);
+        if (cls >= 0 && capacity == 1 << (cls + MIN_CLASS_SHIFT) && mIdleBytes + capacity <= mMaxIdleBytes) {
+            mFree[cls].push(buffer);
+            mIdleBytes += capacity;
+        }
+    }
+
+    private void pollLeaks() {
+        Reference<? extends Lease> ref;
+        while ((ref = mLeakQueue.poll()) != null) {
+            LeakTracker tracker = (LeakTracker) ref;
+            mTrackers.remove(tracker);
+            mLeasedBytes -= tracker.capacity;
+            mLeaks++;
+            Log.e(TAG, "Leaked a buffer of " + tracker.capacity + " bytes", tracker.origin);
+        }
+    }
+
+    /** Drop all idle buffers. */
+    public synchronized void trim() {
+        for (ArrayDeque<ByteBuffer> free : mFree)
+            free.clear();
+        mIdleBytes = 0;
+    }
+
+    /** @return bytes currently leased out */
+    public synchronized long getLeasedBytes() {
+        return mLeasedBytes;
+    }
+
+    /** @return bytes kept in released buffers */
+    public synchronized long getIdleBytes() {
+        return mIdleBytes;
+    }
+
+    /** @return the fraction of leases served from released buffers */
+    public synchronized double getHitRate() {
+        return (mLeases > 0 ? (double) mHits / mLeases : 0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        pollLeaks();
+        return String.format(Locale.US, "leased=%dKiB idle=%dKiB hits=%d/%d leaks=%d",
+            mLeasedBytes >> 10, mIdleBytes >> 10, mHits, mLeases, mLeaks);
+    }
+}
@@ -21,6 +21,7 @@
 package app.wizzeye.app.service;
 
 import android.content.SharedPreferences;
+import android.graphics.PointF;
 import android.net.ConnectivityManager;
 import android.net.Network;
 import android.net.NetworkCapabilities;
@@ -29,15 +30,18 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import android.util.Size;
+import android.util.SparseIntArray;
+import android.widget.Toast;
 
 import com.iristick.smartglass.core.Headset;
-import com.iristick.smartglass.core.IristickBinding;
 import com.iristick.smartglass.core.IristickConnection;
-import com.iristick.smartglass.support.app.IristickApp;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -47,31 +51,42 @@ import org.webrtc.AudioTrack;
 import org.webrtc.CameraVideoCapturer;
 import org.webrtc.DataChannel;
 import org.webrtc.DefaultVideoDecoderFactory;
-import org.webrtc.DefaultVideoEncoderFactory;
 import org.webrtc.IceCandidate;
 import org.webrtc.MediaConstraints;
 import org.webrtc.MediaStream;
+import org.webrtc.MediaStreamTrack;
 import org.webrtc.PeerConnection;
 import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsCollectorCallback;
+import org.webrtc.RTCStatsReport;
+import org.webrtc.RtpParameters;
 import org.webrtc.RtpReceiver;
+import org.webrtc.RtpSender;
 import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
 import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.VideoSink;
-import org.webrtc.VideoSource;
 import org.webrtc.VideoTrack;
+import org.webrtc.voiceengine.WebRtcAudioUtils;
 
+import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import app.wizzeye.app.R;
 import app.wizzeye.app.SettingsActivity;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.WebSocket;
 import okhttp3.WebSocketListener;
+import okio.ByteString;
 
 public class Call {
 
@@ -79,10 +94,22 @@ public class Call {
         STATE_CHANGED,              // arg1 = (CallState) newState
         PARAMETERS_CHANGED,         // empty
         TURBULENCE,                 // arg1 = (boolean) turbulence
+        POINTER,                    // arg1 = x, arg2 = y (0..65535 over the video), or -1 if hidden
+        FOCUS,                      // arg1 = (boolean) converging, obj = (PointF) focus point or null
+        RECORDING,                  // arg1 = (boolean) recording
     }
 
     private static final String TAG = "Call";
 
+    /** Interval between two samplings of CPU use and send bitrates */
+    private static final long STATS_INTERVAL_MS = 5000;
+    /** Maximum length of the audio jitter buffer, in 10 ms packets (WebRTC default: 50) */
+    private static final int AUDIO_JITTER_BUFFER_MAX_PACKETS = 20;
+    /** Lowest video bitrate worth sending, in kbps: under a tighter bandwidth cap, video is paused */
+    private static final int MIN_VIDEO_BITRATE = 50;
+    /** Initial bandwidth estimate of a new connection, in kbps (WebRTC default: 300) */
+    private static final int START_BITRATE = 300;
+
     private final CallService mService;
     private final Uri mUri;
     private final SharedPreferences mPreferences;
@@ -94,6 +121,14 @@ public class Call {
 
     private final String mRoomName;
     private final CallQuality mQuality;
+    private final SdpTransform mSdpTransform;
+    private final AudioProfile mAudioProfile;
+    private final int mMeteredBandwidthCap;
+    private final int mClipDuration;
+    private final CallMetrics mMetrics = new CallMetrics();
+    /** Time of the first captured frame of the media pipeline: 0 before, -1 once rendered */
+    private final AtomicLong mFirstFrameNs = new AtomicLong();
+    private final FrameTaps mFrameTaps;
 
     private volatile CallState mState = CallState.IDLE;
     private volatile CallError mError = null;
@@ -101,6 +136,11 @@ public class Call {
     private volatile int mZoom = 0;
     private volatile boolean mTorch = false;
     private volatile LaserMode mLaser = LaserMode.AUTO;
+    private volatile PreviewMode mPreviewMode = PreviewMode.FULL;
+    private volatile boolean mPreviewEnabled = true;
+    private volatile PowerGovernor.Level mPowerLevel = PowerGovernor.Level.NORMAL;
+    private volatile int mVoiceCommands = 0;
+    private volatile int mBandwidthCap = 0;
 
     Call(@NonNull CallService service, @NonNull Uri uri) {
         mService = service;
@@ -113,6 +153,7 @@ public class Call {
         mHandler = new Handler(mThread.getLooper(), this::handleMessage);
         //noinspection unchecked
         mMessages = new List[Event.values().length];
+        mFrameTaps = new FrameTaps(mService.mBufferPool, mMetrics);
         for (int i = 0; i < mMessages.length; i++)
             mMessages[i] = new ArrayList<>();
 
@@ -130,11 +171,39 @@ public class Call {
             quality = CallQuality.NORMAL;
         }
         mQuality = quality;
+        AudioProfile audioProfile;
+        try {
+            audioProfile = AudioProfile.valueOf(mPreferences.getString(SettingsActivity.KEY_AUDIO_PROFILE, AudioProfile.QUIET.name()));
+        } catch (IllegalArgumentException e) {
+            audioProfile = AudioProfile.QUIET;
+        }
+        mAudioProfile = audioProfile;
+        mSdpTransform = SdpTransform.forCall(quality, audioProfile);
+        mMetrics.setValue(CallMetrics.AUDIO_PROFILE, audioProfile.name());
+        int clipDuration;
+        try {
+            clipDuration = Integer.parseInt(mPreferences.getString(SettingsActivity.KEY_CLIP_DURATION, "0"));
+        } catch (NumberFormatException e) {
+            clipDuration = 0;
+        }
+        mClipDuration = clipDuration;
+        int meteredBandwidthCap;
+        try {
+            meteredBandwidthCap = Integer.parseInt(mPreferences.getString(SettingsActivity.KEY_METERED_BANDWIDTH_CAP, "0"));
+        } catch (NumberFormatException e) {
+            meteredBandwidthCap = 0;
+        }
+        mMeteredBandwidthCap = meteredBandwidthCap;
         try {
             mLaser = LaserMode.valueOf(mPreferences.getString(SettingsActivity.KEY_LASER_MODE, LaserMode.AUTO.name()));
         } catch (IllegalArgumentException e) {
             // ignore bad preference value
         }
+        try {
+            mPreviewMode = PreviewMode.valueOf(mPreferences.getString(SettingsActivity.KEY_PREVIEW_MODE, PreviewMode.FULL.name()));
+        } catch (IllegalArgumentException e) {
+            // ignore bad preference value
+        }
     }
 
     void dispose() {
@@ -152,6 +221,8 @@ public class Call {
     }
 
     private synchronized void fireParametersChanged() {
+        /* Coalesce bursts of changes (e.g., remote zoom) into a single application */
+        removeMessages(What.PARAMETERS_CHANGED);
         sendMessage(What.PARAMETERS_CHANGED, 0, 0, null, 0);
         for (Message msg : mMessages[Event.PARAMETERS_CHANGED.ordinal()])
             Message.obtain(msg).sendToTarget();
@@ -165,6 +236,32 @@ public class Call {
         }
     }
 
+    private synchronized void firePointer(int x, int y) {
+        for (Message msg : mMessages[Event.POINTER.ordinal()]) {
+            Message copy = Message.obtain(msg);
+            copy.arg1 = x;
+            copy.arg2 = y;
+            copy.sendToTarget();
+        }
+    }
+
+    private synchronized void fireFocus(boolean converging, @Nullable PointF point) {
+        for (Message msg : mMessages[Event.FOCUS.ordinal()]) {
+            Message copy = Message.obtain(msg);
+            copy.arg1 = converging ? 1 : 0;
+            copy.obj = point;
+            copy.sendToTarget();
+        }
+    }
+
+    private synchronized void fireRecording(boolean recording) {
+        for (Message msg : mMessages[Event.RECORDING.ordinal()]) {
+            Message copy = Message.obtain(msg);
+            copy.arg1 = recording ? 1 : 0;
+            copy.sendToTarget();
+        }
+    }
+
     public synchronized void registerMessage(@NonNull Event event, @NonNull Message msg) {
         mMessages[event.ordinal()].add(msg);
     }
@@ -189,6 +286,20 @@ public class Call {
         return mQuality;
     }
 
+    @NonNull
+    public CallMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /** @return the CPU use and audio bitrate measured so far with the audio profile of the call */
+    @NonNull
+    public AudioProfile.Stats getAudioStats() {
+        CallMetrics.Sample cpu = mMetrics.getSample(CallMetrics.CPU_USAGE);
+        CallMetrics.Sample bitrate = mMetrics.getSample(CallMetrics.AUDIO_SEND_BITRATE);
+        return new AudioProfile.Stats(mAudioProfile,
+            cpu != null ? cpu.mean() : 0, bitrate != null ? bitrate.mean() : 0);
+    }
+
     @NonNull
     public CallState getState() {
         return mState;
@@ -215,6 +326,10 @@ public class Call {
         sendMessage(What.RESTART, 0, 0, null, 0);
     }
 
+    /**
+     * Add a preview of the local video.  Previews can be added in any state and receive frames as
+     * soon as the camera is running, paced and scaled according to {@link #getPreviewMode()}.
+     */
     public void addVideoSink(VideoSink sink) {
         sendMessage(What.ADD_VIDEO_SINK, 0, 0, sink, 0);
     }
@@ -223,14 +338,125 @@ public class Call {
         sendMessage(What.REMOVE_VIDEO_SINK, 0, 0, sink, 0);
     }
 
+    /**
+     * Subscribe to the captured video.  Taps are kept for the whole call and get frames whenever
+     * the camera runs.
+     */
+    public void addFrameTap(@NonNull FrameTap tap) {
+        mFrameTaps.add(tap);
+    }
+
+    public void removeFrameTap(@NonNull FrameTap tap) {
+        mFrameTaps.remove(tap);
+    }
+
+    /** To be called by renderers of the local video when they show their first frame. */
+    public void reportFirstFrameRendered() {
+        long capturedNs = mFirstFrameNs.getAndSet(-1);
+        if (capturedNs > 0)
+            mMetrics.addSample(CallMetrics.VIDEO_FIRST_RENDER_TIME, (System.nanoTime() - capturedNs) / 1e6);
+    }
+
     public void triggerAF() {
         sendMessage(What.TRIGGER_AF, 0, 0, null, 0);
     }
 
+    /** Trigger autofocus on a point of the video, with coordinates from 0 to 1. */
+    public void triggerAF(float x, float y) {
+        sendMessage(What.TRIGGER_AF, 0, 0, new PointF(x, y), 0);
+    }
+
     public void takePicture() {
         sendMessage(What.TAKE_PICTURE, 0, 0, null, 0);
     }
 
+    /** Start recording the local video and microphone to a file on external storage. */
+    public void startRecording() {
+        sendMessage(What.START_RECORDING, 0, 0, null, 0);
+    }
+
+    public void stopRecording() {
+        sendMessage(What.STOP_RECORDING, 0, 0, null, 0);
+    }
+
+    public boolean isRecording() {
+        return mRecorder != null;
+    }
+
+    /**
+     * @return whether the last seconds of video are kept for {@link #saveClip()}: enabled in the
+     *         settings and not suspended by the power level
+     */
+    public boolean isClipBufferEnabled() {
+        return mClipDuration > 0 && mPowerLevel.clipBuffer;
+    }
+
+    /** Save the last seconds of video to a file on external storage. */
+    public void saveClip() {
+        sendMessage(What.SAVE_CLIP, 0, 0, null, 0);
+    }
+
+    /**
+     * Configure the voice commands of the headset for the duration of the call.
+     * @param flags {@code Headset.VOICE_FLAG_*} flags
+     */
+    public void setVoiceCommands(int flags) {
+        mVoiceCommands = flags;
+        sendMessage(What.VOICE_COMMANDS_CHANGED, 0, 0, null, 0);
+    }
+
+    @NonNull
+    public PreviewMode getPreviewMode() {
+        return mPreviewMode;
+    }
+
+    public synchronized void setPreviewMode(@NonNull PreviewMode mode) {
+        mPreviewMode = mode;
+        sendMessage(What.PREVIEW_CHANGED, 0, 0, null, 0);
+        fireParametersChanged();
+    }
+
+    /** @return whether previews get frames; the preview mode is kept while disabled */
+    public boolean isPreviewEnabled() {
+        return mPreviewEnabled;
+    }
+
+    /** @return the preview mode in effect, once the toggle and the power level are accounted for */
+    @NonNull
+    public PreviewMode getActivePreviewMode() {
+        return mPreviewEnabled ? mPowerLevel.limitPreview(mPreviewMode) : PreviewMode.OFF;
+    }
+
+    /** Adapt the capture load, as decided by {@link PowerGovernor}. */
+    synchronized void setPowerLevel(@NonNull PowerGovernor.Level level) {
+        mPowerLevel = level;
+        sendMessage(What.POWER_LEVEL_CHANGED, 0, 0, null, 0);
+        sendMessage(What.PREVIEW_CHANGED, 0, 0, null, 0);
+        fireParametersChanged();
+    }
+
+    public synchronized void setPreviewEnabled(boolean enabled) {
+        mPreviewEnabled = enabled;
+        sendMessage(What.PREVIEW_CHANGED, 0, 0, null, 0);
+        fireParametersChanged();
+    }
+
+    /** @return the bandwidth cap set by {@link #setBandwidthCap}, in kbps, or 0 if none */
+    public int getBandwidthCap() {
+        return mBandwidthCap;
+    }
+
+    /**
+     * Limit the total send bitrate to each observer, on top of the cap from the settings that
+     * applies on metered networks.  Audio and video together never exceed the cap: the voice is
+     * served first, and video is paused when the cap leaves it less than a usable bitrate.
+     * @param kbps the cap in kbps, or 0 to remove it
+     */
+    public void setBandwidthCap(int kbps) {
+        mBandwidthCap = kbps;
+        sendMessage(What.BANDWIDTH_CHANGED, 0, 0, null, 0);
+    }
+
     public int getZoom() {
         return mZoom;
     }
@@ -269,17 +495,34 @@ public class Call {
     private List<PeerConnection.IceServer> mIceServers;
     private NetworkMonitor mNetworkMonitor;
     private SignalingProtocol mSignal;
+    private long mConnectStartNs;
     private IristickCallback mIristickCallback;
+    private long mHeadsetWaitStartNs;
     private Headset mHeadset;
-    private WebRtcCallback mWebRtcCallback;
+    private HeadsetControl mHeadsetControl;
+    private CameraCallback mCameraCallback;
     private PeerConnectionFactory mFactory;
     private SurfaceTextureHelper mSurfaceTextureHelper;
     private IristickCapturer mVideoCap;
-    private VideoSource mVideoSrc;
+    private Size mCaptureSize;
+    private int mCaptureFramerate;
+    private int mAppliedBandwidthCap;
+    private AudioOutputManager mAudioOutput;
+    private long mStatsCpuTime;
+    private long mStatsRealtime;
+    private int mAppliedZoom;
+    private boolean mZoomCameraActive;
+    private VideoLayers mVideoLayers;
     private VideoTrack mVideoTrack;
+    private final Map<VideoSink, PreviewSink> mPreviews = new HashMap<>();
     private AudioSource mAudioSrc;
     private AudioTrack mAudioTrack;
-    private PeerConnection mPC;
+    private MediaStream mLocalStream;
+    private final Map<String, CallQuality> mObservers = new HashMap<>(); // peer ID -> requested layer
+    private final Map<String, Peer> mPeers = new HashMap<>();
+    private String mPointerPeer; // ID of the peer which last showed the pointer, if still shown
+    private volatile CallRecorder mRecorder;
+    private ClipBuffer mClipBuffer;
 
     /** Internal message "what" codes */
     private enum What {
@@ -291,27 +534,51 @@ public class Call {
         WEBSOCKET_CONNECTED,        // empty
         WEBSOCKET_CLOSED,           // empty
         SIGNALING_ERROR,            // arg1 = code, obj = (String) text
-        SIGNALING_OBSERVER_JOINED,  // empty
-        SIGNALING_LEAVE,            // empty
-        SIGNALING_RESET,            // empty
-        SIGNALING_ANSWER,           // obj = (SessionDescription)
-        SIGNALING_ICE_CANDIDATE,    // obj = (IceCandidate)
+        SIGNALING_OBSERVER_JOINED,  // obj = (String) peer
+        SIGNALING_LEAVE,            // obj = (String) peer
+        SIGNALING_RESET,            // obj = (String) peer
+        SIGNALING_ANSWER,           // obj = (PeerMessage) SessionDescription
+        SIGNALING_ICE_CANDIDATE,    // obj = (PeerMessage) IceCandidate
+        SIGNALING_LAYER,            // obj = (PeerMessage) CallQuality
         HEADSET_CONNECTED,          // obj = (Headset)
         HEADSET_DISCONNECTED,       // empty
         IRISTICK_ERROR,             // arg1 = error
-        PC_ICE_CONNECTED,           // empty
-        PC_ICE_DISCONNECTED,        // empty
-        PC_ICE_FAILED,              // empty
-        PC_ICE_CANDIDATE,           // obj = (IceCandidate)
-        SDP_CREATE_SUCCESS,         // obj = (SessionDescription)
+        PC_ICE_CONNECTED,           // obj = (String) peer
+        PC_ICE_DISCONNECTED,        // obj = (String) peer
+        PC_ICE_FAILED,              // obj = (String) peer
+        PC_ICE_CANDIDATE,           // obj = (PeerMessage) IceCandidate
+        SDP_CREATE_SUCCESS,         // obj = (PeerMessage) SessionDescription
         SDP_CREATE_FAILURE,         // empty
         SDP_SET_FAILURE,            // empty
         CAMERA_ERROR,               // empty
+        CAMERA_SWITCHED,            // arg1 = zoom camera
         ADD_VIDEO_SINK,             // obj = (VideoSink)
         REMOVE_VIDEO_SINK,          // obj = (VideoSink)
+        PREVIEW_CHANGED,            // empty
+        POWER_LEVEL_CHANGED,        // empty
+        STATS_TICK,                 // empty
+        BANDWIDTH_CHANGED,          // empty
         PARAMETERS_CHANGED,         // empty
-        TRIGGER_AF,                 // empty
+        VOICE_COMMANDS_CHANGED,     // empty
+        TRIGGER_AF,                 // obj = (PointF) focus point, or null
         TAKE_PICTURE,               // empty
+        START_RECORDING,            // empty
+        STOP_RECORDING,             // empty
+        RECORDING_FINISHED,         // obj = (CallRecorder)
+        SAVE_CLIP,                  // empty
+        REMOTE_COMMAND,             // obj = (PeerMessage) RemoteCommand
+        REMOTE_ACK,                 // obj = (PeerMessage) RemoteCommand
+    }
+
+    /** Message payload concerning a single observer */
+    private static class PeerMessage {
+        final String peer;
+        final Object payload;
+
+        PeerMessage(String peer, Object payload) {
+            this.peer = peer;
+            this.payload = payload;
+        }
     }
 
     @SuppressWarnings("SameParameterValue")
@@ -326,6 +593,36 @@ public class Call {
     private boolean handleMessage(Message msg) {
         What what = What.values()[msg.what];
         Log.d(TAG, "State " + mState + ": message " + what);
+
+        /* Previews are kept across states and attached whenever there is a video track */
+        switch (what) {
+        case ADD_VIDEO_SINK:
+            addPreview((VideoSink) msg.obj);
+            return true;
+        case REMOVE_VIDEO_SINK:
+            removePreview((VideoSink) msg.obj);
+            return true;
+        case PREVIEW_CHANGED:
+            for (PreviewSink preview : mPreviews.values())
+                preview.setMode(getActivePreviewMode());
+            return true;
+        case POWER_LEVEL_CHANGED:
+            if (mVideoCap != null) {
+                applyCaptureFormat();
+                applyClipBuffer();
+            }
+            return true;
+        case STATS_TICK:
+            sampleStats();
+            return true;
+        case BANDWIDTH_CHANGED:
+            if (updateBandwidthCap()) {
+                for (Peer peer : mPeers.values())
+                    applyBudget(peer);
+            }
+            return true;
+        }
+
         switch (mState) {
         case IDLE:
             switch (what) {
@@ -370,6 +667,8 @@ public class Call {
         case CONNECTING_TO_SERVER:
             switch (what) {
             case WEBSOCKET_CONNECTED:
+                mMetrics.addSample(CallMetrics.SETUP_SIGNALING_TIME,
+                    (System.nanoTime() - mConnectStartNs) / 1e6);
                 gotoState(CallState.WAITING_FOR_OBSERVER);
                 return true;
             case WEBSOCKET_CLOSED:
@@ -386,8 +685,12 @@ public class Call {
         case WAITING_FOR_OBSERVER:
             switch (what) {
             case SIGNALING_OBSERVER_JOINED:
+                observerJoined((String) msg.obj);
                 gotoState(CallState.WAITING_FOR_HEADSET);
                 return true;
+            case SIGNALING_LAYER:
+                setLayer((PeerMessage) msg.obj);
+                return true;
             case SIGNALING_ERROR:
                 handleSignalingError(msg);
                 return true;
@@ -405,7 +708,9 @@ public class Call {
         case WAITING_FOR_HEADSET:
             switch (what) {
             case HEADSET_CONNECTED:
+                mMetrics.addSample(CallMetrics.HEADSET_CONNECT_TIME, (System.nanoTime() - mHeadsetWaitStartNs) / 1e6);
                 mHeadset = (Headset) msg.obj;
+                mHeadsetControl = new HeadsetControl(mHeadset, mMetrics);
                 gotoState(CallState.ESTABLISHING);
                 return true;
             case IRISTICK_ERROR:
@@ -427,8 +732,17 @@ public class Call {
                     gotoError(CallError.SERVICES_UNKNOWN);
                 }
                 return true;
+            case SIGNALING_OBSERVER_JOINED:
+                observerJoined((String) msg.obj);
+                return true;
+            case SIGNALING_LAYER:
+                setLayer((PeerMessage) msg.obj);
+                return true;
+            case VOICE_COMMANDS_CHANGED:
+                applyVoiceCommands();
+                return true;
             case SIGNALING_LEAVE:
-                gotoState(CallState.WAITING_FOR_OBSERVER);
+                observerLeft((String) msg.obj);
                 return true;
             case SIGNALING_ERROR:
                 handleSignalingError(msg);
@@ -447,24 +761,45 @@ public class Call {
         case ESTABLISHING:
             switch (what) {
             case SDP_CREATE_SUCCESS:
-                Log.d(TAG, "Offer created");
-                mPC.setLocalDescription(mWebRtcCallback, (SessionDescription) msg.obj);
-                mSignal.offer((SessionDescription) msg.obj, mIceServers);
+                offerCreated((PeerMessage) msg.obj);
                 return true;
             case SIGNALING_ANSWER:
-                mPC.setRemoteDescription(mWebRtcCallback, (SessionDescription) msg.obj);
+                answerReceived((PeerMessage) msg.obj);
                 return true;
             case SIGNALING_ICE_CANDIDATE:
-                mPC.addIceCandidate((IceCandidate) msg.obj);
+                addIceCandidate((PeerMessage) msg.obj);
                 return true;
-            case PC_ICE_CANDIDATE:
-                mSignal.iceCandidate((IceCandidate) msg.obj);
+            case SIGNALING_LAYER:
+                setLayer((PeerMessage) msg.obj);
                 return true;
+            case SIGNALING_OBSERVER_JOINED:
+                observerJoined((String) msg.obj);
+                return true;
+            case START_RECORDING:
+                startRecordingInternal();
+                return true;
+            case STOP_RECORDING:
+                stopRecordingInternal();
+                return true;
+            case RECORDING_FINISHED:
+                recordingFinished((CallRecorder) msg.obj);
+                return true;
+            case SAVE_CLIP:
+                saveClipInternal();
+                return true;
+            case VOICE_COMMANDS_CHANGED:
+                applyVoiceCommands();
+                return true;
+            case PC_ICE_CANDIDATE: {
+                PeerMessage m = (PeerMessage) msg.obj;
+                mSignal.iceCandidate(m.peer, (IceCandidate) m.payload);
+                return true;
+            }
             case PC_ICE_CONNECTED:
-                gotoState(CallState.CALL_IN_PROGRESS);
+                peerConnected((String) msg.obj);
                 return true;
             case PC_ICE_FAILED:
-                gotoError(CallError.ICE);
+                peerFailed((String) msg.obj);
                 return true;
             case SDP_CREATE_FAILURE:
             case SDP_SET_FAILURE:
@@ -473,14 +808,17 @@ public class Call {
             case CAMERA_ERROR:
                 gotoError(CallError.CAMERA);
                 return true;
+            case CAMERA_SWITCHED:
+                mZoomCameraActive = msg.arg1 != 0;
+                return true;
             case SIGNALING_RESET:
-                gotoState(CallState.ESTABLISHING);
+                restartPeer((String) msg.obj);
                 return true;
             case HEADSET_DISCONNECTED:
                 gotoState(CallState.WAITING_FOR_HEADSET);
                 return true;
             case SIGNALING_LEAVE:
-                gotoState(CallState.WAITING_FOR_OBSERVER);
+                observerLeft((String) msg.obj);
                 return true;
             case SIGNALING_ERROR:
                 handleSignalingError(msg);
@@ -498,47 +836,85 @@ public class Call {
             break;
         case CALL_IN_PROGRESS:
             switch (what) {
-            case ADD_VIDEO_SINK:
-                mVideoTrack.addSink((VideoSink) msg.obj);
-                return true;
-            case REMOVE_VIDEO_SINK:
-                mVideoTrack.addSink((VideoSink) msg.obj);
-                return true;
             case PARAMETERS_CHANGED:
                 applyParameters();
                 return true;
             case TRIGGER_AF:
-                mVideoCap.triggerAF();
+                mVideoCap.triggerAF((PointF) msg.obj);
                 return true;
             case TAKE_PICTURE:
                 mVideoCap.takePicture();
                 return true;
+            case REMOTE_COMMAND:
+                handleRemoteCommand((PeerMessage) msg.obj);
+                return true;
+            case REMOTE_ACK:
+                acknowledgeRemoteCommand((PeerMessage) msg.obj);
+                return true;
+            case SDP_CREATE_SUCCESS:
+                offerCreated((PeerMessage) msg.obj);
+                return true;
+            case SIGNALING_ANSWER:
+                answerReceived((PeerMessage) msg.obj);
+                return true;
             case SIGNALING_ICE_CANDIDATE:
-                mPC.addIceCandidate((IceCandidate) msg.obj);
+                addIceCandidate((PeerMessage) msg.obj);
+                return true;
+            case SIGNALING_LAYER:
+                setLayer((PeerMessage) msg.obj);
+                return true;
+            case SIGNALING_OBSERVER_JOINED:
+                observerJoined((String) msg.obj);
                 return true;
-            case PC_ICE_CANDIDATE:
-                mSignal.iceCandidate((IceCandidate) msg.obj);
+            case START_RECORDING:
+                startRecordingInternal();
                 return true;
+            case STOP_RECORDING:
+                stopRecordingInternal();
+                return true;
+            case RECORDING_FINISHED:
+                recordingFinished((CallRecorder) msg.obj);
+                return true;
+            case SAVE_CLIP:
+                saveClipInternal();
+                return true;
+            case VOICE_COMMANDS_CHANGED:
+                applyVoiceCommands();
+                return true;
+            case PC_ICE_CANDIDATE: {
+                PeerMessage m = (PeerMessage) msg.obj;
+                mSignal.iceCandidate(m.peer, (IceCandidate) m.payload);
+                return true;
+            }
             case PC_ICE_CONNECTED:
+                peerConnected((String) msg.obj);
                 fireTurbulence(false);
                 return true;
             case PC_ICE_DISCONNECTED:
                 fireTurbulence(true);
                 return true;
             case PC_ICE_FAILED:
-                gotoState(CallState.ESTABLISHING);
+                peerFailed((String) msg.obj);
+                return true;
+            case SDP_CREATE_FAILURE:
+            case SDP_SET_FAILURE:
+                gotoError(CallError.WEBRTC);
                 return true;
             case CAMERA_ERROR:
                 gotoError(CallError.CAMERA);
                 return true;
+            case CAMERA_SWITCHED:
+                mZoomCameraActive = msg.arg1 != 0;
+                applyLaser();
+                return true;
             case SIGNALING_RESET:
-                gotoState(CallState.ESTABLISHING);
+                restartPeer((String) msg.obj);
                 return true;
             case HEADSET_DISCONNECTED:
                 gotoState(CallState.WAITING_FOR_HEADSET);
                 return true;
             case SIGNALING_LEAVE:
-                gotoState(CallState.WAITING_FOR_OBSERVER);
+                observerLeft((String) msg.obj);
                 return true;
             case SIGNALING_ERROR:
                 handleSignalingError(msg);
@@ -598,28 +974,40 @@ public class Call {
         switch (oldState) {
         case CALL_IN_PROGRESS:
         case ESTABLISHING:
-            if (newState.ordinal() > CallState.ESTABLISHING.ordinal())
+            /* Observers connect and disconnect individually: losing the last connected observer
+             * brings us back to ESTABLISHING without tearing down the media pipeline. */
+            if (newState.ordinal() >= CallState.ESTABLISHING.ordinal())
                 break;
-            Log.v(TAG, "Turning off torch and laser pointer");
-            mHeadset.setTorchMode(false);
-            mHeadset.setLaserPointer(false);
-            Log.v(TAG, "Closing PeerConnection");
-            mSignal.reset();
+            Log.v(TAG, "Turning off torch, laser pointer and voice commands");
+            mHeadsetControl.setTorchMode(false);
+            mHeadsetControl.setLaserPointer(false);
+            mHeadsetControl.setVoiceCommands(0);
+            mHeadsetControl.apply();
+            stopRecordingInternal();
+            stopClipBuffer();
+            removeMessages(What.STATS_TICK);
+            mAudioOutput.stop();
+            mAudioOutput = null;
+            mMetrics.setValue(CallMetrics.BUFFER_POOL, mService.mBufferPool.toString());
+            Log.i(TAG, "Call metrics:" + mMetrics);
+            Log.v(TAG, "Closing PeerConnections");
+            mSignal.reset(null);
             mVideoCap.stopCapture();
-            mWebRtcCallback.alive = false;
-            mWebRtcCallback = null;
-            mPC.close();
-            mPC = null;
+            mCameraCallback.alive = false;
+            mCameraCallback = null;
+            for (Peer peer : mPeers.values())
+                closePeer(peer);
+            mPeers.clear();
+            mLocalStream = null;
             mAudioTrack.dispose();
             mAudioTrack = null;
             mAudioSrc.dispose();
             mAudioSrc = null;
-            mVideoTrack.dispose();
             mVideoTrack = null;
             mVideoCap.dispose();
             mVideoCap = null;
-            mVideoSrc.dispose();
-            mVideoSrc = null;
+            mVideoLayers.dispose();
+            mVideoLayers = null;
             mSurfaceTextureHelper.dispose();
             mSurfaceTextureHelper = null;
             mFactory.dispose();
@@ -629,8 +1017,9 @@ public class Call {
                 break;
             Log.v(TAG, "Unregistering Iristick listener");
             mHeadset = null;
+            mHeadsetControl = null;
             mIristickCallback.alive = false;
-            IristickApp.unregisterConnectionListener(mIristickCallback);
+            mService.mHeadsetManager.removeListener(mIristickCallback);
             mIristickCallback = null;
             removeMessages(What.HEADSET_CONNECTED);
             removeMessages(What.HEADSET_DISCONNECTED);
@@ -644,6 +1033,7 @@ public class Call {
             mSignal = null;
             removeMessages(What.SIGNALING_ICE_CANDIDATE);
             removeMessages(What.SIGNALING_ANSWER);
+            removeMessages(What.SIGNALING_LAYER);
             removeMessages(What.SIGNALING_RESET);
             removeMessages(What.SIGNALING_LEAVE);
             removeMessages(What.SIGNALING_OBSERVER_JOINED);
@@ -685,6 +1075,7 @@ public class Call {
 
         case CONNECTING_TO_SERVER:
             Log.v(TAG, "Connecting to websocket");
+            mConnectStartNs = System.nanoTime();
             mSignal = new SignalingProtocol(mUri.buildUpon().path("/ws").build().toString());
             break;
 
@@ -696,21 +1087,33 @@ public class Call {
             if (oldState.ordinal() < CallState.WAITING_FOR_OBSERVER.ordinal()) {
                 Log.v(TAG, "Joining room " + mRoomName);
                 mSignal.join(mRoomName);
+                mSignal.layer(mQuality);
             }
+            mObservers.clear();
             break;
 
         case WAITING_FOR_HEADSET:
             mIristickCallback = new IristickCallback();
-            IristickApp.registerConnectionListener(mIristickCallback, mMainThreadHandler);
+            mHeadsetWaitStartNs = System.nanoTime();
+            mService.mHeadsetManager.addListener(mIristickCallback);
             break;
 
         case ESTABLISHING:
+            if (oldState == CallState.CALL_IN_PROGRESS) {
+                Log.v(TAG, "No observer connected anymore");
+                break;
+            }
             if (mHeadset == null) {
                 Log.e(TAG, "No headset while construction " + newState);
                 break;
             }
-            Log.v(TAG, "Creating PeerConnection");
-            mWebRtcCallback = new WebRtcCallback();
+            Log.v(TAG, "Setting up media pipeline");
+            mCameraCallback = new CameraCallback();
+
+            /* Audio processing of the profile; these are global settings read by the audio
+             * device module when it is created with the factory. */
+            WebRtcAudioUtils.setWebRtcBasedAcousticEchoCanceler(mAudioProfile.softwareProcessing);
+            WebRtcAudioUtils.setWebRtcBasedNoiseSuppressor(mAudioProfile.softwareProcessing);
 
             /* Create PeerConnection factory */
             PeerConnectionFactory.Options options = new PeerConnectionFactory.Options();
@@ -718,39 +1121,52 @@ public class Call {
             options.disableNetworkMonitor = true;
             mFactory = PeerConnectionFactory.builder()
                 .setOptions(options)
-                .setVideoEncoderFactory(new DefaultVideoEncoderFactory(mService.mEglBase.getEglBaseContext(), false, false))
+                .setVideoEncoderFactory(new VideoEncoderSelector(mService.mEglBase.getEglBaseContext(), mQuality, mMetrics))
                 .setVideoDecoderFactory(new DefaultVideoDecoderFactory(mService.mEglBase.getEglBaseContext()))
                 .createPeerConnectionFactory();
 
-            /* Set up video source */
+            /* Set up video sources, one per layer up to the call quality: the one of the call
+             * quality also feeds the previews */
             mSurfaceTextureHelper = SurfaceTextureHelper.create("CaptureThread", mService.mEglBase.getEglBaseContext());
-            mVideoSrc = mFactory.createVideoSource(false);
-            mVideoCap = new IristickCapturer(mHeadset, mWebRtcCallback, mZoom);
-            mVideoCap.initialize(mSurfaceTextureHelper, mService, mVideoSrc.getCapturerObserver());
-            mVideoCap.startCapture(mQuality.frameSize.getWidth(), mQuality.frameSize.getHeight(), 30);
-            mVideoTrack = mFactory.createVideoTrack("Wizzeye_v0", mVideoSrc);
-            mVideoTrack.setEnabled(true);
-
-            /* Set up audio source */
-            mAudioSrc = mFactory.createAudioSource(new MediaConstraints());
+            mCaptureSize = mPowerLevel.frameSize(mQuality);
+            mCaptureFramerate = mPowerLevel.framerate;
+            mVideoLayers = new VideoLayers(mFactory, mCaptureFramerate, mMetrics);
+            mVideoTrack = mVideoLayers.get(mQuality).track;
+            mAppliedZoom = mZoom;
+            mZoomCameraActive = false;
+            mVideoCap = new IristickCapturer(mHeadset, mCameraCallback, mCameraCallback, mCameraCallback,
+                                             mFrameTaps, mService.mBufferPool, mMetrics, mAppliedZoom);
+            mVideoCap.initialize(mSurfaceTextureHelper, mService, mVideoLayers);
+            mFirstFrameNs.set(0);
+            mVideoCap.startCapture(mCaptureSize.getWidth(), mCaptureSize.getHeight(), mCaptureFramerate);
+            for (PreviewSink preview : mPreviews.values())
+                mVideoTrack.addSink(preview);
+            applyClipBuffer();
+
+            /* Set up audio source and output */
+            mAudioSrc = mFactory.createAudioSource(mAudioProfile.createConstraints());
+            mAudioOutput = new AudioOutputManager(mService, mMetrics);
+            mAudioOutput.start(mHandler);
             mAudioTrack = mFactory.createAudioTrack("Wizzeye_a0", mAudioSrc);
             mAudioTrack.setEnabled(true);
 
-            /* Create PeerConnection */
-            PeerConnection.RTCConfiguration config = new PeerConnection.RTCConfiguration(mIceServers);
-            mPC = mFactory.createPeerConnection(config, mWebRtcCallback);
-
-            /* Create local media stream */
-            MediaStream localStream = mFactory.createLocalMediaStream("Wizzeye");
-            localStream.addTrack(mVideoTrack);
-            localStream.addTrack(mAudioTrack);
-            mPC.addStream(localStream);
-
-            /* Create offer */
-            MediaConstraints sdpcstr = new MediaConstraints();
-            sdpcstr.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveAudio", "true"));
-            sdpcstr.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveVideo", "false"));
-            mPC.createOffer(mWebRtcCallback, sdpcstr);
+            /* Create local media stream, shared by all PeerConnections, with the video tracks of
+             * all layers from the lowest: the simulcast group of the offers lists them in order */
+            mLocalStream = mFactory.createLocalMediaStream("Wizzeye");
+            for (CallQuality layer : CallQuality.values()) {
+                if (layer.ordinal() <= mQuality.ordinal())
+                    mLocalStream.addTrack(mVideoLayers.get(layer).track);
+            }
+            mLocalStream.addTrack(mAudioTrack);
+
+            /* Connect to every observer */
+            updateBandwidthCap();
+            for (String id : mObservers.keySet())
+                createPeer(id);
+
+            mStatsCpuTime = Process.getElapsedCpuTime();
+            mStatsRealtime = SystemClock.elapsedRealtime();
+            sendMessage(What.STATS_TICK, 0, 0, null, STATS_INTERVAL_MS);
             break;
 
         case CALL_IN_PROGRESS:
@@ -768,22 +1184,57 @@ public class Call {
 
     private void applyParameters() {
         final int zoom = mZoom;
-        final boolean torch = mTorch;
-        final LaserMode laser = mLaser;
 
-        mVideoCap.setZoom(zoom);
-        mHeadset.setTorchMode(torch);
-        switch (laser) {
+        if (zoom != mAppliedZoom) {
+            mVideoCap.setZoom(zoom);
+            mAppliedZoom = zoom;
+        }
+        mHeadsetControl.setTorchMode(mTorch);
+        mHeadsetControl.setVoiceCommands(mVoiceCommands);
+        applyLaser();
+    }
+
+    /**
+     * In {@link LaserMode#AUTO} mode, the laser pointer turns off as soon as the zoom goes back
+     * to 0, but only turns on with the first frame of the zoom camera, so that it matches what the
+     * observer sees.  Headsets without a zoom camera follow the zoom level alone.
+     */
+    private void applyLaser() {
+        switch (mLaser) {
         case OFF:
-            mHeadset.setLaserPointer(false);
+            mHeadsetControl.setLaserPointer(false);
             break;
         case ON:
-            mHeadset.setLaserPointer(true);
+            mHeadsetControl.setLaserPointer(true);
             break;
         case AUTO:
-            mHeadset.setLaserPointer(mZoom > 0);
+            mHeadsetControl.setLaserPointer(mAppliedZoom > 0 &&
+                (mZoomCameraActive || !mVideoCap.hasZoomCamera()));
             break;
         }
+        mHeadsetControl.apply();
+    }
+
+    private void addPreview(VideoSink sink) {
+        if (mPreviews.containsKey(sink))
+            return;
+        PreviewSink preview = new PreviewSink(sink, getActivePreviewMode());
+        mPreviews.put(sink, preview);
+        if (mVideoTrack != null)
+            mVideoTrack.addSink(preview);
+    }
+
+    private void removePreview(VideoSink sink) {
+        PreviewSink preview = mPreviews.remove(sink);
+        if (preview != null && mVideoTrack != null)
+            mVideoTrack.removeSink(preview);
+    }
+
+    private void applyVoiceCommands() {
+        if (mHeadsetControl == null)
+            return;
+        mHeadsetControl.setVoiceCommands(mVoiceCommands);
+        mHeadsetControl.apply();
     }
 
     private static final Pattern HOSTNAME_PATTERN = Pattern.compile(
@@ -842,9 +1293,427 @@ public class Call {
     }
 
 
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Recording
+
+    private void startRecordingInternal() {
+        if (mRecorder != null)
+            return;
+        CallRecorder recorder = new CallRecorder(mService, mService.mEglBase.getEglBaseContext(),
+                                                 mCaptureSize, mMetrics, mRecorderCallback);
+        try {
+            recorder.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start recording", e);
+            return;
+        }
+        mRecorder = recorder;
+        mVideoCap.addSink(recorder);
+        fireRecording(true);
+    }
+
+    private void stopRecordingInternal() {
+        if (mRecorder == null)
+            return;
+        mVideoCap.removeSink(mRecorder);
+        mRecorder.stop();
+        mRecorder = null;
+        fireRecording(false);
+    }
+
+    /** The recorder stopped on its own, e.g., after an encoder error. */
+    private void recordingFinished(CallRecorder recorder) {
+        if (recorder == mRecorder)
+            stopRecordingInternal();
+    }
+
+    /** Start or stop the clip buffer as the settings and the power level allow. */
+    private void applyClipBuffer() {
+        if (!isClipBufferEnabled()) {
+            stopClipBuffer();
+            return;
+        }
+        if (mClipBuffer != null)
+            return;
+        ClipBuffer clipBuffer = new ClipBuffer(mService, mService.mEglBase.getEglBaseContext(),
+                                               mCaptureSize, mClipDuration,
+                                               mService.mBufferPool, mMetrics);
+        try {
+            clipBuffer.start();
+            mVideoCap.addSink(clipBuffer);
+            mClipBuffer = clipBuffer;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to set up clip buffer", e);
+        }
+    }
+
+    private void stopClipBuffer() {
+        if (mClipBuffer == null)
+            return;
+        mVideoCap.removeSink(mClipBuffer);
+        mClipBuffer.release();
+        mClipBuffer = null;
+    }
+
+    private void saveClipInternal() {
+        if (mClipBuffer == null || !mClipBuffer.save())
+            Toast.makeText(mService, R.string.call_toast_clip_fail, Toast.LENGTH_SHORT).show();
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Observers
+
+    /**
+     * Connection to one observer.  All connections share the same capturer and the local stream,
+     * with one video sender per layer: only the sender of the layer requested by the observer is
+     * active.  Transport is done per observer, encoding per layer.
+     */
+    private class Peer {
+        final String id;
+        final PeerCallback callback;
+        final ControlCallback controlCallback;
+        final StatsCallback statsCallback = new StatsCallback();
+        PeerConnection pc;
+        DataChannel control;
+        boolean connected;
+        /** Call setup milestones, from {@link System#nanoTime()} */
+        final long createdNs = System.nanoTime();
+        long offerSentNs;
+        /** Whether the initial bandwidth estimate was given to WebRTC */
+        boolean bitrateStarted;
+        /** Sequence number of the last remote command applied, per kind */
+        final SparseIntArray commandSeqs = new SparseIntArray();
+
+        Peer(String id) {
+            this.id = id;
+            callback = new PeerCallback(id);
+            controlCallback = new ControlCallback(id);
+        }
+    }
+
+    private void observerJoined(String id) {
+        Log.i(TAG, "Observer " + id + " joined");
+        mObservers.put(id, mQuality);
+        if (mFactory != null) {
+            Peer old = mPeers.remove(id);
+            if (old != null)
+                closePeer(old);
+            createPeer(id);
+        }
+    }
+
+    private void observerLeft(String id) {
+        Log.i(TAG, "Observer " + id + " left");
+        mObservers.remove(id);
+        Peer peer = mPeers.remove(id);
+        if (peer != null)
+            closePeer(peer);
+        if (mObservers.isEmpty()) {
+            gotoState(CallState.WAITING_FOR_OBSERVER);
+        } else if (mFactory != null) {
+            updateCallState();
+        }
+    }
+
+    private void createPeer(String id) {
+        Log.v(TAG, "Creating PeerConnection for observer " + id);
+        Peer peer = new Peer(id);
+        PeerConnection.RTCConfiguration config = new PeerConnection.RTCConfiguration(mIceServers);
+        /* Keep the remote voice close to real time, the observer is guiding the wearer */
+        config.audioJitterBufferMaxPackets = AUDIO_JITTER_BUFFER_MAX_PACKETS;
+        config.audioJitterBufferFastAccelerate = true;
+        peer.pc = mFactory.createPeerConnection(config, peer.callback);
+        peer.pc.addStream(mLocalStream);
+        mPeers.put(id, peer);
+
+        /* Control channel for high-rate commands: stale commands are superseded by newer
+         * ones, so do not retransmit nor wait for lost ones */
+        DataChannel.Init init = new DataChannel.Init();
+        init.ordered = false;
+        init.maxRetransmits = 0;
+        peer.control = peer.pc.createDataChannel("control", init);
+        peer.control.registerObserver(peer.controlCallback);
+
+        /* Create offer */
+        MediaConstraints sdpcstr = new MediaConstraints();
+        sdpcstr.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveAudio", "true"));
+        sdpcstr.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveVideo", "false"));
+        peer.pc.createOffer(peer.callback, sdpcstr);
+    }
+
+    private void closePeer(Peer peer) {
+        Log.v(TAG, "Closing PeerConnection for observer " + peer.id);
+        peer.callback.alive = false;
+        peer.controlCallback.alive = false;
+        peer.statsCallback.alive = false;
+        peer.control.unregisterObserver();
+        peer.control.close();
+        peer.control.dispose();
+        /* The connection disposes the streams still added to it, the local one is shared */
+        peer.pc.removeStream(mLocalStream);
+        peer.pc.dispose();
+        /* Leave the pointer of another observer in place */
+        if (peer.id.equals(mPointerPeer)) {
+            mPointerPeer = null;
+            firePointer(-1, -1);
+        }
+    }
+
+    /** Renegotiate with one observer from scratch. */
+    private void restartPeer(String id) {
+        Peer peer = mPeers.remove(id);
+        if (peer == null)
+            return;
+        closePeer(peer);
+        mSignal.reset(id);
+        createPeer(id);
+        updateCallState();
+    }
+
+    private void offerCreated(PeerMessage m) {
+        Peer peer = mPeers.get(m.peer);
+        if (peer == null)
+            return;
+        SessionDescription offer = (SessionDescription) m.payload;
+        String sdp = mSdpTransform.transformLocalOffer(offer.description);
+        Log.d(TAG, "Offer created, SDP reduced from " + offer.description.length() + " to " + sdp.length() + " bytes");
+        offer = new SessionDescription(offer.type, sdp);
+        peer.pc.setLocalDescription(peer.callback, offer);
+        /* The local description cannot hold the simulcast group, see SdpTransform */
+        mSignal.offer(peer.id, new SessionDescription(offer.type, mSdpTransform.groupSimulcast(sdp)), mIceServers);
+        peer.offerSentNs = System.nanoTime();
+        mMetrics.addSample(CallMetrics.SETUP_OFFER_TIME, (peer.offerSentNs - peer.createdNs) / 1e6);
+        applyBudget(peer);
+    }
+
+    private void answerReceived(PeerMessage m) {
+        Peer peer = mPeers.get(m.peer);
+        if (peer == null)
+            return;
+        if (peer.offerSentNs != 0)
+            mMetrics.addSample(CallMetrics.SETUP_ANSWER_TIME, (System.nanoTime() - peer.offerSentNs) / 1e6);
+        SessionDescription answer = (SessionDescription) m.payload;
+        answer = new SessionDescription(answer.type, mSdpTransform.transformRemoteAnswer(answer.description));
+        peer.pc.setRemoteDescription(peer.callback, answer);
+    }
+
+    private void addIceCandidate(PeerMessage m) {
+        Peer peer = mPeers.get(m.peer);
+        if (peer != null)
+            peer.pc.addIceCandidate((IceCandidate) m.payload);
+    }
+
+    private void peerConnected(String id) {
+        Peer peer = mPeers.get(id);
+        if (peer == null)
+            return;
+        if (!peer.connected)
+            mMetrics.addSample(CallMetrics.SETUP_CONNECT_TIME, (System.nanoTime() - peer.createdNs) / 1e6);
+        peer.connected = true;
+        updateCallState();
+    }
+
+    private void peerFailed(String id) {
+        Peer peer = mPeers.get(id);
+        if (peer == null)
+            return;
+        if (peer.connected) {
+            Log.i(TAG, "Lost connection to observer " + id + ", renegotiating");
+            restartPeer(id);
+        } else if (mPeers.size() == 1) {
+            gotoError(CallError.ICE);
+        } else {
+            /* The observer gives up as well and will leave */
+            Log.w(TAG, "Could not connect to observer " + id);
+            mPeers.remove(id);
+            closePeer(peer);
+        }
+    }
+
+    /** The call is in progress as long as at least one observer is connected. */
+    private void updateCallState() {
+        boolean connected = false;
+        for (Peer peer : mPeers.values())
+            connected |= peer.connected;
+        if (connected && mState == CallState.ESTABLISHING)
+            gotoState(CallState.CALL_IN_PROGRESS);
+        else if (!connected && mState == CallState.CALL_IN_PROGRESS)
+            gotoState(CallState.ESTABLISHING);
+    }
+
+    private void handleRemoteCommand(PeerMessage m) {
+        RemoteCommand cmd = (RemoteCommand) m.payload;
+        Peer peer = mPeers.get(m.peer);
+        if (peer == null)
+            return;
+        int last = peer.commandSeqs.indexOfKey(cmd.kind());
+        if (last >= 0 && !cmd.isAfter(peer.commandSeqs.valueAt(last))) {
+            mMetrics.increment(CallMetrics.CONTROL_STALE);
+            return;
+        }
+        peer.commandSeqs.put(cmd.kind(), cmd.seq);
+        switch (cmd.type) {
+        case RemoteCommand.POINTER:
+            mPointerPeer = peer.id;
+            firePointer(cmd.x, cmd.y);
+            break;
+        case RemoteCommand.POINTER_HIDE:
+            mPointerPeer = null;
+            firePointer(-1, -1);
+            break;
+        case RemoteCommand.ZOOM:
+            int zoom = Math.min(cmd.zoom, mQuality.maxZoom);
+            if (zoom != mZoom)
+                setZoom(zoom);
+            break;
+        case RemoteCommand.FOCUS:
+            if (mZoom < mQuality.maxZoom)
+                mVideoCap.triggerAF(new PointF((float) cmd.x / RemoteCommand.COORDINATE_MAX,
+                                               (float) cmd.y / RemoteCommand.COORDINATE_MAX));
+            break;
+        case RemoteCommand.LATENCY:
+            mMetrics.addSample(CallMetrics.CONTROL_LATENCY, cmd.latencyUs / 1000.0);
+            return;
+        }
+        /* Queued behind the parameter change, so acknowledged only once applied */
+        sendMessage(What.REMOTE_ACK, 0, 0, m, 0);
+    }
+
+    private void acknowledgeRemoteCommand(PeerMessage m) {
+        RemoteCommand cmd = (RemoteCommand) m.payload;
+        long processingUs = (System.nanoTime() - cmd.receivedNs) / 1000;
+        mMetrics.addSample(CallMetrics.CONTROL_APPLY_TIME, processingUs / 1000.0);
+        Peer peer = mPeers.get(m.peer);
+        if (peer != null && peer.control.state() == DataChannel.State.OPEN)
+            peer.control.send(new DataChannel.Buffer(RemoteCommand.ack(cmd.seq, processingUs), true));
+    }
+
+    private void setLayer(PeerMessage m) {
+        CallQuality layer = (CallQuality) m.payload;
+        if (layer.ordinal() > mQuality.ordinal())
+            layer = mQuality; // cannot send more than we capture
+        if (!mObservers.containsKey(m.peer)) {
+            Log.w(TAG, "Layer requested by unknown observer " + m.peer);
+            return;
+        }
+        if (mObservers.put(m.peer, layer) == layer)
+            return;
+        Log.i(TAG, "Observer " + m.peer + " requested " + layer + " video layer");
+        if (mFactory == null)
+            return;
+        Peer peer = mPeers.get(m.peer);
+        if (peer != null)
+            applyBudget(peer);
+    }
+
+    /** Record the CPU use of the app and request the send bitrates of connected observers. */
+    private void sampleStats() {
+        long cpuTime = Process.getElapsedCpuTime();
+        long realtime = SystemClock.elapsedRealtime();
+        if (realtime > mStatsRealtime)
+            mMetrics.addSample(CallMetrics.CPU_USAGE, 100.0 * (cpuTime - mStatsCpuTime) / (realtime - mStatsRealtime));
+        mStatsCpuTime = cpuTime;
+        mStatsRealtime = realtime;
+        for (Peer peer : mPeers.values()) {
+            if (peer.connected)
+                peer.pc.getStats(peer.statsCallback);
+        }
+        sendMessage(What.STATS_TICK, 0, 0, null, STATS_INTERVAL_MS);
+    }
+
+    /** Restart the capture if the power level calls for another format. */
+    private void applyCaptureFormat() {
+        PowerGovernor.Level level = mPowerLevel;
+        Size size = level.frameSize(mQuality);
+        if (size.equals(mCaptureSize) && level.framerate == mCaptureFramerate)
+            return;
+        Log.i(TAG, "Capturing at " + size + "@" + level.framerate + " for power level " + level);
+        mCaptureSize = size;
+        mCaptureFramerate = level.framerate;
+        mVideoCap.changeCaptureFormat(size.getWidth(), size.getHeight(), level.framerate);
+        mVideoLayers.setFramerate(level.framerate);
+    }
+
+    /**
+     * Recompute the bandwidth cap from the one set by the app and, on metered networks, the one
+     * from the settings.
+     * @return whether the cap changed
+     */
+    private boolean updateBandwidthCap() {
+        int cap = mBandwidthCap;
+        if (mMeteredBandwidthCap > 0 && mConnectivityManager.isActiveNetworkMetered() &&
+                (cap == 0 || mMeteredBandwidthCap < cap))
+            cap = mMeteredBandwidthCap;
+        if (cap == mAppliedBandwidthCap)
+            return false;
+        Log.i(TAG, "Bandwidth cap " + (cap > 0 ? cap + " kbps" : "removed"));
+        mAppliedBandwidthCap = cap;
+        mMetrics.setValue(CallMetrics.BANDWIDTH_CAP, cap > 0 ? cap + " kbps" : "none");
+        return true;
+    }
+
+    /**
+     * Split the bandwidth budget of the connection between its tracks.  Audio gets its full
+     * bitrate first and the connection never estimates below it, so the voice survives
+     * congestion; video gets the rest, up to the layer requested by the observer, and is paused
+     * when a bandwidth cap leaves it less than {@link #MIN_VIDEO_BITRATE}.  The video senders of
+     * the other layers are inactive, which switches the observer between layers.
+     */
+    private void applyBudget(Peer peer) {
+        CallQuality layer = mObservers.get(peer.id);
+        if (layer == null)
+            layer = mQuality;
+        int audioBitrate = mAudioProfile.opusMaxBitrate;
+        int videoBitrate = layer.maxBitrate;
+        if (mAppliedBandwidthCap > 0) {
+            audioBitrate = Math.min(audioBitrate, mAppliedBandwidthCap);
+            videoBitrate = Math.min(videoBitrate, mAppliedBandwidthCap - audioBitrate);
+            if (videoBitrate < MIN_VIDEO_BITRATE) {
+                Log.i(TAG, "Bandwidth cap leaves no room for video, pausing it for observer " + peer.id);
+                videoBitrate = 0;
+            }
+        }
+        for (RtpSender sender : peer.pc.getSenders()) {
+            MediaStreamTrack track = sender.track();
+            if (track == null)
+                continue;
+            boolean video = MediaStreamTrack.VIDEO_TRACK_KIND.equals(track.kind());
+            boolean sent = !video || VideoLayers.qualityOf(track.id()) == layer;
+            RtpParameters params = sender.getParameters();
+            if (params.encodings.isEmpty()) {
+                Log.d(TAG, "Sender " + track.kind() + " not negotiated yet, bitrate not applied");
+                continue;
+            }
+            for (RtpParameters.Encoding encoding : params.encodings) {
+                if (!video) {
+                    encoding.maxBitrateBps = audioBitrate * 1000;
+                } else {
+                    encoding.active = sent && videoBitrate > 0;
+                    if (encoding.active)
+                        encoding.maxBitrateBps = videoBitrate * 1000;
+                }
+            }
+            if (!sender.setParameters(params))
+                Log.w(TAG, "Could not apply " + track.kind() + " bitrate for observer " + peer.id);
+        }
+        int maxBitrate = audioBitrate + videoBitrate;
+        Integer startBitrate = null;
+        if (!peer.bitrateStarted) {
+            startBitrate = Math.min(START_BITRATE, maxBitrate) * 1000;
+            peer.bitrateStarted = true;
+        }
+        if (!peer.pc.setBitrate(audioBitrate * 1000, startBitrate, maxBitrate * 1000))
+            Log.w(TAG, "Could not apply bandwidth budget of " + maxBitrate + " kbps for observer " + peer.id);
+    }
+
+
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // Listeners
 
+    private final CallRecorder.Listener mRecorderCallback = (recorder, file) ->
+        sendMessage(What.RECORDING_FINISHED, 0, 0, recorder, 0);
+
     private class NetworkMonitor extends ConnectivityManager.NetworkCallback {
         volatile boolean alive = true;
         @Override
@@ -857,33 +1726,136 @@ public class Call {
             if (alive)
                 sendMessage(What.NETWORK_LOST, 0, 0, null, 0);
         }
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            if (alive)
+                sendMessage(What.BANDWIDTH_CHANGED, 0, 0, null, 0);
+        }
     }
 
-    private class IristickCallback implements IristickConnection {
+    private class IristickCallback implements HeadsetManager.Listener {
         volatile boolean alive = true;
         @Override
-        public void onHeadsetConnected(Headset headset) {
+        public void onHeadsetConnected(@NonNull Headset headset) {
             if (alive)
                 sendMessage(What.HEADSET_CONNECTED, 0, 0, headset, 0);
         }
         @Override
-        public void onHeadsetDisconnected(Headset headset) {
+        public void onHeadsetDisconnected() {
             if (alive)
                 sendMessage(What.HEADSET_DISCONNECTED, 0, 0, null, 0);
         }
         @Override
-        public void onIristickServiceInitialized(IristickBinding binding) {
-        }
-        @Override
         public void onIristickServiceError(int error) {
             if (alive)
                 sendMessage(What.IRISTICK_ERROR, error, 0, null, 0);
         }
     }
 
-    private class WebRtcCallback
-        implements PeerConnection.Observer, SdpObserver, CameraVideoCapturer.CameraEventsHandler {
+    /**
+     * Statistics of the connection to one observer: send bitrates, video frame rate and loss,
+     * bandwidth estimate, jitter buffer delay of the received audio, and an estimate of the
+     * mouth-to-ear latency from the observer.
+     */
+    private class StatsCallback implements RTCStatsCollectorCallback {
+        volatile boolean alive = true;
+        /* Only accessed from the WebRTC signaling thread */
+        private long mAudioBytesSent = -1;
+        private double mAudioTimestampUs;
+        private double mJitterBufferDelay = -1;
+        private long mJitterBufferEmitted;
+        private long mVideoBytesSent = -1;
+        private long mVideoFramesEncoded;
+        private long mVideoNacks;
+        private double mVideoTimestampUs;
+        @Override
+        public void onStatsDelivered(RTCStatsReport report) {
+            if (!alive)
+                return;
+            double rttMs = -1;
+            double jitterBufferMs = -1;
+            for (RTCStats stats : report.getStatsMap().values()) {
+                Map<String, Object> members = stats.getMembers();
+                Object kind = members.containsKey("kind") ? members.get("kind") : members.get("mediaType");
+                switch (stats.getType()) {
+                case "outbound-rtp": {
+                    Object bytes = members.get("bytesSent");
+                    if ("video".equals(kind)) {
+                        sampleVideo(stats, bytes, members.get("framesEncoded"), members.get("nackCount"));
+                        break;
+                    }
+                    if (!"audio".equals(kind) || !(bytes instanceof Number))
+                        break;
+                    long bytesSent = ((Number) bytes).longValue();
+                    double timestampUs = stats.getTimestampUs();
+                    if (mAudioBytesSent >= 0 && timestampUs > mAudioTimestampUs) {
+                        /* bits per microsecond are Mbps */
+                        mMetrics.addSample(CallMetrics.AUDIO_SEND_BITRATE,
+                            (bytesSent - mAudioBytesSent) * 8 * 1000 / (timestampUs - mAudioTimestampUs));
+                    }
+                    mAudioBytesSent = bytesSent;
+                    mAudioTimestampUs = timestampUs;
+                    break;
+                }
+                case "track": {
+                    /* Both are cumulative: the delay in seconds over all emitted samples */
+                    Object delay = members.get("jitterBufferDelay");
+                    Object emitted = members.get("jitterBufferEmittedCount");
+                    if (!"audio".equals(kind) || !Boolean.TRUE.equals(members.get("remoteSource")) ||
+                            !(delay instanceof Number) || !(emitted instanceof Number))
+                        break;
+                    double totalDelay = ((Number) delay).doubleValue();
+                    long totalEmitted = ((Number) emitted).longValue();
+                    if (mJitterBufferDelay >= 0 && totalEmitted > mJitterBufferEmitted) {
+                        jitterBufferMs = (totalDelay - mJitterBufferDelay) * 1000 / (totalEmitted - mJitterBufferEmitted);
+                        mMetrics.addSample(CallMetrics.AUDIO_JITTER_BUFFER_DELAY, jitterBufferMs);
+                    }
+                    mJitterBufferDelay = totalDelay;
+                    mJitterBufferEmitted = totalEmitted;
+                    break;
+                }
+                case "candidate-pair": {
+                    if (!Boolean.TRUE.equals(members.get("nominated")))
+                        break;
+                    Object rtt = members.get("currentRoundTripTime");
+                    if (rtt instanceof Number)
+                        rttMs = ((Number) rtt).doubleValue() * 1000;
+                    Object estimate = members.get("availableOutgoingBitrate");
+                    if (estimate instanceof Number)
+                        mMetrics.addSample(CallMetrics.BANDWIDTH_ESTIMATE, ((Number) estimate).doubleValue() / 1000);
+                    break;
+                }
+                }
+            }
+            if (rttMs >= 0 && jitterBufferMs >= 0)
+                mMetrics.addSample(CallMetrics.AUDIO_MOUTH_TO_EAR, rttMs / 2 + jitterBufferMs);
+        }
+        private void sampleVideo(RTCStats stats, Object bytes, Object frames, Object nacks) {
+            if (!(bytes instanceof Number) || !(frames instanceof Number) || !(nacks instanceof Number))
+                return;
+            long bytesSent = ((Number) bytes).longValue();
+            long framesEncoded = ((Number) frames).longValue();
+            long nackCount = ((Number) nacks).longValue();
+            double timestampUs = stats.getTimestampUs();
+            if (mVideoBytesSent >= 0 && timestampUs > mVideoTimestampUs) {
+                double elapsedUs = timestampUs - mVideoTimestampUs;
+                mMetrics.addSample(CallMetrics.VIDEO_SEND_BITRATE, (bytesSent - mVideoBytesSent) * 8 * 1000 / elapsedUs);
+                mMetrics.addSample(CallMetrics.VIDEO_SEND_FRAMERATE, (framesEncoded - mVideoFramesEncoded) * 1e6 / elapsedUs);
+                mMetrics.addSample(CallMetrics.VIDEO_NACK_RATE, (nackCount - mVideoNacks) * 1e6 / elapsedUs);
+            }
+            mVideoBytesSent = bytesSent;
+            mVideoFramesEncoded = framesEncoded;
+            mVideoNacks = nackCount;
+            mVideoTimestampUs = timestampUs;
+        }
+    }
+
+    private class PeerCallback implements PeerConnection.Observer, SdpObserver {
+        private final String mPeer;
         volatile boolean alive = true;
+        PeerCallback(String peer) {
+            mPeer = peer;
+        }
         @Override
         public void onSignalingChange(PeerConnection.SignalingState signalingState) {
         }
@@ -893,13 +1865,13 @@ public class Call {
                 return;
             switch (iceConnectionState) {
             case CONNECTED:
-                sendMessage(What.PC_ICE_CONNECTED, 0, 0, null, 0);
+                sendMessage(What.PC_ICE_CONNECTED, 0, 0, mPeer, 0);
                 break;
             case FAILED:
-                sendMessage(What.PC_ICE_FAILED, 0, 0, null, 0);
+                sendMessage(What.PC_ICE_FAILED, 0, 0, mPeer, 0);
                 break;
             case DISCONNECTED:
-                sendMessage(What.PC_ICE_DISCONNECTED, 0, 0, null, 0);
+                sendMessage(What.PC_ICE_DISCONNECTED, 0, 0, mPeer, 0);
                 break;
             }
         }
@@ -913,7 +1885,7 @@ public class Call {
         public void onIceCandidate(IceCandidate iceCandidate) {
             if (alive && iceCandidate != null) {
                 Log.d(TAG, "Got ICE candidate: " + iceCandidate);
-                sendMessage(What.PC_ICE_CANDIDATE, 0, 0, iceCandidate, 0);
+                sendMessage(What.PC_ICE_CANDIDATE, 0, 0, new PeerMessage(mPeer, iceCandidate), 0);
             }
         }
         @Override
@@ -937,7 +1909,7 @@ public class Call {
         @Override
         public void onCreateSuccess(SessionDescription sessionDescription) {
             if (alive)
-                sendMessage(What.SDP_CREATE_SUCCESS, 0, 0, sessionDescription, 0);
+                sendMessage(What.SDP_CREATE_SUCCESS, 0, 0, new PeerMessage(mPeer, sessionDescription), 0);
         }
         @Override
         public void onSetSuccess() {
@@ -956,6 +1928,36 @@ public class Call {
                 sendMessage(What.SDP_SET_FAILURE, 0, 0, null, 0);
             }
         }
+    }
+
+    private class ControlCallback implements DataChannel.Observer {
+        private final String mPeer;
+        volatile boolean alive = true;
+        ControlCallback(String peer) {
+            mPeer = peer;
+        }
+        @Override
+        public void onBufferedAmountChange(long previousAmount) {
+        }
+        @Override
+        public void onStateChange() {
+        }
+        @Override
+        public void onMessage(DataChannel.Buffer buffer) {
+            if (!alive || !buffer.binary)
+                return;
+            RemoteCommand cmd = RemoteCommand.decode(buffer.data);
+            if (cmd != null)
+                sendMessage(What.REMOTE_COMMAND, 0, 0, new PeerMessage(mPeer, cmd), 0);
+            else
+                Log.w(TAG, "Invalid control message from observer " + mPeer);
+        }
+    }
+
+    private class CameraCallback implements CameraVideoCapturer.CameraEventsHandler,
+                                            IristickCapturer.FocusListener,
+                                            IristickCapturer.CameraSwitchListener {
+        volatile boolean alive = true;
         @Override
         public void onCameraError(String msg) {
             if (alive) {
@@ -974,10 +1976,34 @@ public class Call {
         }
         @Override
         public void onFirstFrameAvailable() {
+            if (alive)
+                mFirstFrameNs.compareAndSet(0, System.nanoTime());
         }
         @Override
         public void onCameraClosed() {
         }
+        @Override
+        public void onFocusStarted(@Nullable PointF point) {
+            if (alive)
+                fireFocus(true, point);
+        }
+        @Override
+        public void onFocusFinished(boolean locked, long durationMs) {
+            if (!alive)
+                return;
+            if (durationMs >= 0) {
+                if (locked)
+                    mMetrics.addSample(CallMetrics.CAMERA_AF_LOCK_TIME, durationMs);
+                else
+                    mMetrics.increment(CallMetrics.CAMERA_AF_FAILURES);
+            }
+            fireFocus(false, null);
+        }
+        @Override
+        public void onCameraSwitched(boolean zoomCamera) {
+            if (alive)
+                sendMessage(What.CAMERA_SWITCHED, zoomCamera ? 1 : 0, 0, null, 0);
+        }
     }
 
 
@@ -986,102 +2012,289 @@ public class Call {
 
     private class SignalingProtocol extends WebSocketListener {
         static final String VERSION = "v1.signaling.wizzeye.app";
+        static final String VERSION_2 = "v2.signaling.wizzeye.app";
 
         @SuppressWarnings("unused") static final int ERROR_UNKNOWN = 1;
         @SuppressWarnings("unused") static final int ERROR_BAD_MESSAGE = 2;
         @SuppressWarnings("unused") static final int ERROR_NO_ROOM = 3;
         @SuppressWarnings("unused") static final int ERROR_ROLE_TAKEN = 4;
         @SuppressWarnings("unused") static final int ERROR_BAD_ROOM = 5;
+        @SuppressWarnings("unused") static final int ERROR_BAD_SESSION = 6;
 
         private static final int WEBSOCKET_CLOSE_GOING_AWAY = 1001;
 
-        private final WebSocket mSocket;
+        /* Reconnection back-off: 500ms, 1s, 2s, 4s, 8s.  The total must stay well below the
+         * resume timeout of the server (30s by default). */
+        private static final long RECONNECT_BASE_DELAY_MS = 500;
+        private static final int RECONNECT_MAX_ATTEMPTS = 5;
+
+        /* Within a session, messages are numbered and kept until the server acknowledges them,
+         * to be sent again on resume.  Received messages are acknowledged with the next message
+         * sent, or with an ack message every ACK_INTERVAL messages. */
+        private static final int ACK_INTERVAL = 8;
+        private static final int MAX_UNACKED = 50;
+
+        private final String mUri;
+        private final List<JSONObject> mUnacked = new ArrayList<>();
+        private final Runnable mReconnect = this::connect;
+        private volatile WebSocket mSocket;
+        private volatile boolean mBinary;
+        private String mSession;
+        private boolean mResuming;
+        private int mAttempts;
+        private long mSendSeq;
+        private long mRecvSeq;
+        private long mAckedSeq;
         private volatile boolean mClosed = false;
 
         SignalingProtocol(String uri) {
+            mUri = uri;
+            connect();
+        }
+
+        private synchronized void connect() {
+            if (mClosed)
+                return;
+            if (mResuming)
+                Log.i(TAG, "Reconnecting websocket (attempt " + mAttempts + ")");
             Request request = new Request.Builder()
-                .url(uri)
-                .header("Sec-WebSocket-Protocol", VERSION)
+                .url(mUri)
+                .header("Sec-WebSocket-Protocol", VERSION_2 + ", " + VERSION)
                 .build();
             mSocket = mService.mHttpClient.newWebSocket(request, this);
         }
 
         void close() {
-            mClosed = true;
+            synchronized (this) {
+                mClosed = true;
+                mHandler.removeCallbacks(mReconnect);
+                mUnacked.clear();
+            }
             mSocket.close(WEBSOCKET_CLOSE_GOING_AWAY, null);
         }
 
+        /**
+         * Handle loss of the websocket connection.  If we hold a session on the server, try to
+         * resume it with exponential back-off, leaving the call state untouched.  Otherwise, or
+         * when all attempts failed, report the connection as closed.
+         */
+        private synchronized void connectionLost() {
+            if (mSession == null || mAttempts >= RECONNECT_MAX_ATTEMPTS) {
+                mSession = null;
+                sendMessage(What.WEBSOCKET_CLOSED, 0, 0, null, 0);
+                return;
+            }
+            long delay = RECONNECT_BASE_DELAY_MS << mAttempts;
+            mAttempts++;
+            mResuming = true;
+            Log.i(TAG, "Websocket lost, reconnecting in " + delay + "ms");
+            mHandler.postDelayed(mReconnect, delay);
+        }
+
+        private synchronized void resumed(String session) {
+            mSession = session;
+            if (!mResuming)
+                return;
+            Log.i(TAG, "Signaling session resumed, sending " + mUnacked.size() + " unacknowledged messages");
+            mResuming = false;
+            mAttempts = 0;
+            for (JSONObject msg : mUnacked)
+                transmit(mSocket, msg);
+        }
+
+        /**
+         * Track the sequence numbers of a received message: forget the sent messages it
+         * acknowledges and acknowledge it in turn.
+         * @return false if the message was already received before a resume
+         */
+        private synchronized boolean received(JSONObject msg) throws JSONException {
+            if ("session".equals(msg.getString("type")) && !msg.getString("session").equals(mSession)) {
+                // a new session starts numbering over
+                mSendSeq = 0;
+                mRecvSeq = 0;
+                mAckedSeq = 0;
+                mUnacked.clear();
+            }
+            long ack = msg.optLong("ack");
+            while (!mUnacked.isEmpty() && mUnacked.get(0).getLong("seq") <= ack)
+                mUnacked.remove(0);
+            long seq = msg.optLong("seq");
+            if (seq == 0)
+                return true;
+            if (seq <= mRecvSeq) {
+                Log.d(TAG, "Dropping message " + seq + ", already received");
+                return false;
+            }
+            mRecvSeq = seq;
+            if (mRecvSeq - mAckedSeq >= ACK_INTERVAL && !mResuming) {
+                JSONObject a = new JSONObject();
+                a.put("type", "ack");
+                a.put("ack", mRecvSeq);
+                if (transmit(mSocket, a))
+                    mAckedSeq = mRecvSeq;
+            }
+            return true;
+        }
+
         @Override
         public void onOpen(WebSocket webSocket, Response response) {
-            if (mClosed)
-                return;
+            synchronized (this) {
+                if (mClosed || webSocket != mSocket)
+                    return;
+                mBinary = VERSION_2.equals(response.header("Sec-WebSocket-Protocol"));
+                Log.d(TAG, "Negotiated " + (mBinary ? VERSION_2 : VERSION));
+                if (mResuming) {
+                    try {
+                        JSONObject msg = new JSONObject();
+                        msg.put("type", "join");
+                        msg.put("session", mSession);
+                        if (mRecvSeq > 0)
+                            msg.put("ack", mRecvSeq);
+                        transmit(webSocket, msg);
+                    } catch (JSONException e) {
+                        Log.e(TAG, "Misformatted JSON", e);
+                    }
+                    return;
+                }
+            }
             sendMessage(What.WEBSOCKET_CONNECTED, 0, 0, null, 0);
         }
 
         @Override
         public void onFailure(WebSocket webSocket, Throwable t, @Nullable Response response) {
-            if (mClosed)
+            if (mClosed || webSocket != mSocket)
                 return;
             Log.e(TAG, "Websocket failure", t);
-            sendMessage(What.WEBSOCKET_CLOSED, 0, 0, null, 0);
+            connectionLost();
         }
 
         @Override
         public void onClosing(WebSocket webSocket, int code, String reason) {
-            if (mClosed)
+            if (mClosed || webSocket != mSocket)
                 return;
             Log.d(TAG, "Websocket closing, code: " + code + ", reason: " + reason);
-            mSocket.close(code, null);
-            sendMessage(What.WEBSOCKET_CLOSED, 0, 0, null, 0);
+            webSocket.close(code, null);
+            connectionLost();
         }
 
         @Override
         public void onMessage(WebSocket webSocket, String text) {
-            if (mClosed)
+            if (mClosed || webSocket != mSocket)
                 return;
             try {
                 Log.d(TAG, ">> " + text);
-                JSONObject msg = new JSONObject(text);
-                String type = msg.getString("type");
-                switch (type) {
-                case "error":
-                    sendMessage(What.SIGNALING_ERROR, msg.getInt("code"), 0, msg.getString("text"), 0);
-                    break;
-                case "join":
-                    if ("observer".equals(msg.getString("role")))
-                        sendMessage(What.SIGNALING_OBSERVER_JOINED, 0, 0, null, 0);
-                    break;
-                case "leave":
-                    sendMessage(What.SIGNALING_LEAVE, 0, 0, null, 0);
-                    break;
-                case "reset":
-                    sendMessage(What.SIGNALING_RESET, 0, 0, null, 0);
-                    break;
-                case "answer":
-                    sendMessage(What.SIGNALING_ANSWER, 0, 0,
-                        new SessionDescription(SessionDescription.Type.ANSWER,
-                            msg.getJSONObject("payload").getString("sdp")), 0);
-                    break;
-                case "ice-candidate":
-                    JSONObject c = msg.getJSONObject("payload");
-                    sendMessage(What.SIGNALING_ICE_CANDIDATE, 0, 0, new IceCandidate(
-                            c.getString("sdpMid"),
-                            c.getInt("sdpMLineIndex"),
-                            c.getString("candidate")
-                    ), 0);
-                    break;
-                default:
-                    Log.w(TAG, "Got unknown message of type " + type);
-                }
+                dispatch(new JSONObject(text));
             } catch (JSONException e) {
                 Log.e(TAG, "Received invalid JSON message", e);
             }
         }
 
-        private void send(JSONObject msg) {
+        @Override
+        public void onMessage(WebSocket webSocket, ByteString bytes) {
+            if (mClosed || webSocket != mSocket)
+                return;
+            try {
+                JSONObject msg = SignalingCodec.decode(bytes.toByteArray());
+                Log.d(TAG, ">> [" + bytes.size() + "B] " + msg);
+                dispatch(msg);
+            } catch (JSONException e) {
+                Log.e(TAG, "Received invalid binary message", e);
+            }
+        }
+
+        private void dispatch(JSONObject msg) throws JSONException {
+            if (!received(msg))
+                return;
+            String type = msg.getString("type");
+            switch (type) {
+            case "ack":
+                break;
+            case "error":
+                if (msg.getInt("code") == ERROR_BAD_SESSION) {
+                    Log.w(TAG, "Signaling session expired");
+                    synchronized (this) {
+                        mSession = null;
+                        mResuming = false;
+                        mUnacked.clear();
+                    }
+                    sendMessage(What.WEBSOCKET_CLOSED, 0, 0, null, 0);
+                    break;
+                }
+                sendMessage(What.SIGNALING_ERROR, msg.getInt("code"), 0, msg.getString("text"), 0);
+                break;
+            case "session":
+                resumed(msg.getString("session"));
+                break;
+            case "join":
+                if ("observer".equals(msg.getString("role")))
+                    sendMessage(What.SIGNALING_OBSERVER_JOINED, 0, 0, msg.optString("peer"), 0);
+                break;
+            case "leave":
+                sendMessage(What.SIGNALING_LEAVE, 0, 0, msg.optString("peer"), 0);
+                break;
+            case "reset":
+                sendMessage(What.SIGNALING_RESET, 0, 0, msg.optString("peer"), 0);
+                break;
+            case "layer":
+                CallQuality layer = CallQuality.fromLayerName(msg.getString("layer"));
+                if (layer != null)
+                    sendMessage(What.SIGNALING_LAYER, 0, 0, new PeerMessage(msg.optString("peer"), layer), 0);
+                else
+                    Log.w(TAG, "Got unknown video layer " + msg.getString("layer"));
+                break;
+            case "answer":
+                sendMessage(What.SIGNALING_ANSWER, 0, 0, new PeerMessage(msg.optString("peer"),
+                    new SessionDescription(SessionDescription.Type.ANSWER,
+                        msg.getJSONObject("payload").getString("sdp"))), 0);
+                break;
+            case "ice-candidate":
+                JSONObject c = msg.getJSONObject("payload");
+                sendMessage(What.SIGNALING_ICE_CANDIDATE, 0, 0, new PeerMessage(msg.optString("peer"), new IceCandidate(
+                        c.getString("sdpMid"),
+                        c.getInt("sdpMLineIndex"),
+                        c.getString("candidate")
+                )), 0);
+                break;
+            default:
+                Log.w(TAG, "Got unknown message of type " + type);
+            }
+        }
+
+        private boolean transmit(WebSocket socket, JSONObject msg) {
             String s = msg.toString();
-            Log.d(TAG, "<< " + s);
-            mSocket.send(s);
+            if (!mBinary) {
+                Log.d(TAG, "<< " + s);
+                return socket.send(s);
+            }
+            try {
+                byte[] data = SignalingCodec.encode(msg);
+                Log.d(TAG, "<< [" + data.length + "B, " + s.length() + "B as text] " + s);
+                return socket.send(ByteString.of(data));
+            } catch (JSONException e) {
+                Log.e(TAG, "Could not encode message", e);
+                return false;
+            }
+        }
+
+        private synchronized void send(JSONObject msg) throws JSONException {
+            if (mSession != null) {
+                // keep until acknowledged, it will be sent again on resume
+                msg.put("seq", ++mSendSeq);
+                if (mUnacked.size() >= MAX_UNACKED) {
+                    Log.w(TAG, "Too many unacknowledged messages, dropping " + mUnacked.get(0));
+                    mUnacked.remove(0);
+                }
+                mUnacked.add(msg);
+            }
+            if (mResuming) {
+                Log.d(TAG, "<< (queued) " + msg);
+                return;
+            }
+            if (mRecvSeq > 0) {
+                msg.put("ack", mRecvSeq);
+                mAckedSeq = mRecvSeq;
+            }
+            transmit(mSocket, msg);
         }
 
         void join(String room) {
@@ -1090,6 +2303,19 @@ public class Call {
                 msg.put("type", "join");
                 msg.put("room", room);
                 msg.put("role", "glass-wearer");
+                msg.put("resume", true);
+                send(msg);
+            } catch (JSONException e) {
+                Log.e(TAG, "Misformatted JSON", e);
+            }
+        }
+
+        /** Announce the highest video layer sent, the server does not pick a higher one for observers. */
+        void layer(CallQuality top) {
+            try {
+                JSONObject msg = new JSONObject();
+                msg.put("type", "layer");
+                msg.put("layer", top.layerName());
                 send(msg);
             } catch (JSONException e) {
                 Log.e(TAG, "Misformatted JSON", e);
@@ -1097,6 +2323,10 @@ public class Call {
         }
 
         void leave() {
+            synchronized (this) {
+                mSession = null;
+                mUnacked.clear();
+            }
             try {
                 JSONObject msg = new JSONObject();
                 msg.put("type", "leave");
@@ -1106,20 +2336,28 @@ public class Call {
             }
         }
 
-        void reset() {
+        /** Address a message to one observer, or to all of them if {@code peer} is empty. */
+        private void putPeer(JSONObject msg, @Nullable String peer) throws JSONException {
+            if (peer != null && !peer.isEmpty())
+                msg.put("peer", peer);
+        }
+
+        void reset(@Nullable String peer) {
             try {
                 JSONObject msg = new JSONObject();
                 msg.put("type", "reset");
+                putPeer(msg, peer);
                 send(msg);
             } catch (JSONException e) {
                 Log.e(TAG, "Misformatted JSON", e);
             }
         }
 
-        void offer(SessionDescription offer, List<PeerConnection.IceServer> iceServers) {
+        void offer(String peer, SessionDescription offer, List<PeerConnection.IceServer> iceServers) {
             try {
                 JSONObject msg = new JSONObject();
                 msg.put("type", "offer");
+                putPeer(msg, peer);
                 JSONObject payload = new JSONObject();
                 payload.put("type", "offer");
                 payload.put("sdp", offer.description);
@@ -1146,10 +2384,11 @@ public class Call {
             }
         }
 
-        void iceCandidate(IceCandidate candidate) {
+        void iceCandidate(String peer, IceCandidate candidate) {
             try {
                 JSONObject msg = new JSONObject();
                 msg.put("type", "ice-candidate");
+                putPeer(msg, peer);
                 JSONObject payload = new JSONObject();
                 payload.put("candidate", candidate.sdp);
                 payload.put("sdpMid", candidate.sdpMid);
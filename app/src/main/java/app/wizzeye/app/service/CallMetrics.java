@@ -0,0 +1,244 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Named measurements collected during a call.
+ *
+ * Values are either plain text (e.g., the selected encoder) or numeric samples for which the
+ * count, last value, mean, minimum and maximum are kept, as well as the most recent values to
+ * estimate percentiles.  All methods are thread-safe.
+ */
+public final class CallMetrics {
+
+    /** Name and implementation of the video encoder in use */
+    public static final String VIDEO_ENCODER = "video.encoder";
+    /** Video layers in use, each scaled by its own source */
+    public static final String VIDEO_LAYER = "video.layer";
+    /** Time between reception of a remote command and its application, in ms */
+    public static final String CONTROL_APPLY_TIME = "control.apply_time_ms";
+    /** One-way latency from observer to applied remote command, measured by the observer, in ms */
+    public static final String CONTROL_LATENCY = "control.latency_ms";
+    /** Remote commands dropped as they arrived after a newer one of the same kind */
+    public static final String CONTROL_STALE = "control.stale";
+    /** Time between handing a frame to the encoder and getting it back encoded, in ms */
+    public static final String VIDEO_ENCODE_TIME = "video.encode_time_ms";
+    /** Frames submitted by a connection but already encoded for another one on the same layer */
+    public static final String VIDEO_SHARED_FRAMES = "video.shared_frames";
+    /** Time between an autofocus trigger and the lens locking, in ms */
+    public static final String CAMERA_AF_LOCK_TIME = "camera.af_lock_time_ms";
+    /** Number of autofocus scans that ended without finding focus */
+    public static final String CAMERA_AF_FAILURES = "camera.af_failures";
+    /** Number of frames written to the local recording */
+    public static final String RECORDING_FRAMES = "recording.frames";
+    /** Number of frames not recorded because the recorder was still busy */
+    public static final String RECORDING_FRAMES_DROPPED = "recording.frames_dropped";
+    /** Number of microphone buffers not recorded because the audio queue was full */
+    public static final String RECORDING_AUDIO_DROPPED = "recording.audio_dropped";
+    /** Number of frames encoded into the clip buffer */
+    public static final String CLIP_FRAMES = "clip.frames";
+    /** Number of frames missing from the clip buffer, either not encoded or not stored */
+    public static final String CLIP_FRAMES_DROPPED = "clip.frames_dropped";
+    /** Time to write a clip to storage, in ms */
+    public static final String CLIP_SAVE_TIME = "clip.save_time_ms";
+    /** Time between opening a camera and its capture session being configured, in ms */
+    public static final String CAMERA_OPEN_TIME = "camera.open_time_ms";
+    /** Time between the capture session being configured and the first frame, in ms */
+    public static final String CAMERA_FIRST_FRAME_TIME = "camera.first_frame_time_ms";
+    /** Time between a zoom-triggered camera switch and the first frame of the other camera, in ms */
+    public static final String CAMERA_SWITCH_TIME = "camera.switch_time_ms";
+    /** Time between delivered frames, in ms */
+    public static final String CAMERA_FRAME_INTERVAL = "camera.frame_interval_ms";
+    /** Number of camera failures, including those recovered by reopening the camera */
+    public static final String CAMERA_FAILURES = "camera.failures";
+    /** Time between a camera failure and a capture session being configured again, in ms */
+    public static final String CAMERA_RECOVERY_TIME = "camera.recovery_time_ms";
+    /** Time between starting the websocket connection and it being open, in ms */
+    public static final String SETUP_SIGNALING_TIME = "setup.signaling_time_ms";
+    /** Time between creating the connection to an observer and sending the offer, in ms */
+    public static final String SETUP_OFFER_TIME = "setup.offer_time_ms";
+    /** Time between sending the offer and receiving the observer's answer, in ms */
+    public static final String SETUP_ANSWER_TIME = "setup.answer_time_ms";
+    /** Time between creating the connection to an observer and ICE being connected, in ms */
+    public static final String SETUP_CONNECT_TIME = "setup.connect_time_ms";
+    /** Time between waiting for the headset and having it connected, in ms */
+    public static final String HEADSET_CONNECT_TIME = "headset.connect_time_ms";
+    /** Time to switch the torch on the headset, in ms */
+    public static final String HEADSET_TORCH_TIME = "headset.torch_time_ms";
+    /** Time to switch the laser pointer on the headset, in ms */
+    public static final String HEADSET_LASER_TIME = "headset.laser_time_ms";
+    /** Time to configure voice commands on the headset, in ms */
+    public static final String HEADSET_VOICE_TIME = "headset.voice_time_ms";
+    /** Time between the first captured frame and its display on the local preview, in ms */
+    public static final String VIDEO_FIRST_RENDER_TIME = "video.first_render_time_ms";
+    /** Capture load level chosen by the power governor, and why */
+    public static final String POWER_LEVEL = "power.level";
+    /** Number of changes of the capture load level */
+    public static final String POWER_LEVEL_CHANGES = "power.level_changes";
+    /** Battery temperature, in °C */
+    public static final String POWER_BATTERY_TEMPERATURE = "power.battery_temperature_c";
+    /** Audio profile of the call */
+    public static final String AUDIO_PROFILE = "audio.profile";
+    /** Audio send bitrate to one observer, in kbps */
+    public static final String AUDIO_SEND_BITRATE = "audio.send_bitrate_kbps";
+    /** Average time the received audio spent in the jitter buffer, in ms */
+    public static final String AUDIO_JITTER_BUFFER_DELAY = "audio.jitter_buffer_delay_ms";
+    /** Estimated latency from the observer's voice to playout, excluding device buffers, in ms */
+    public static final String AUDIO_MOUTH_TO_EAR = "audio.mouth_to_ear_estimate_ms";
+    /** Output of the observer's voice */
+    public static final String AUDIO_ROUTE = "audio.route";
+    /** Number of audio output route changes, including the initial one */
+    public static final String AUDIO_ROUTE_CHANGES = "audio.route_changes";
+    /** Hard cap on the send bitrate to each observer */
+    public static final String BANDWIDTH_CAP = "bandwidth.cap";
+    /** Send bandwidth estimated by WebRTC for one observer, in kbps */
+    public static final String BANDWIDTH_ESTIMATE = "bandwidth.estimate_kbps";
+    /** Video send bitrate to one observer, in kbps */
+    public static final String VIDEO_SEND_BITRATE = "video.send_bitrate_kbps";
+    /** Frames encoded per second for one observer */
+    public static final String VIDEO_SEND_FRAMERATE = "video.send_framerate_fps";
+    /** Retransmissions requested by one observer per second, a measure of the video packet loss */
+    public static final String VIDEO_NACK_RATE = "video.nack_per_s";
+    /** Time spent on the capture thread scaling and converting frames for the frame taps, in ms */
+    public static final String TAP_DISPATCH_TIME = "tap.dispatch_time_ms";
+    /** Number of frames not handed to a frame tap because it was still busy with the previous one */
+    public static final String TAP_FRAMES_DROPPED = "tap.frames_dropped";
+    /** Time to look for a QR code in one frame, in ms */
+    public static final String QR_DECODE_TIME = "qr.decode_time_ms";
+    /** CPU time of the decoder thread to look for a QR code in one frame, in ms */
+    public static final String QR_CPU_TIME = "qr.cpu_time_ms";
+    /** Time between the capture of a frame and the decoding of a new QR code in it, in ms */
+    public static final String QR_LATENCY = "qr.latency_ms";
+    /** CPU time used by the app while the media pipeline runs, in percent of one core */
+    public static final String CPU_USAGE = "cpu.usage_percent";
+    /** Occupancy and hit rate of the buffer pool */
+    public static final String BUFFER_POOL = "buffer_pool";
+
+    public static final class Sample {
+        /** Number of most recent values kept for percentiles */
+        public static final int WINDOW = 64;
+
+        public int count;
+        public double last;
+        public double sum;
+        public double min = Double.POSITIVE_INFINITY;
+        public double max = Double.NEGATIVE_INFINITY;
+        /** Ring of the last {@link #WINDOW} values, oldest overwritten first */
+        final double[] recent = new double[WINDOW];
+
+        public double mean() {
+            return count > 0 ? sum / count : 0;
+        }
+
+        /**
+         * Estimate a percentile over the last {@link #WINDOW} values.
+         * @param p percentile between 0 and 100
+         */
+        public double percentile(double p) {
+            int n = Math.min(count, WINDOW);
+            if (n == 0)
+                return 0;
+            double[] sorted = Arrays.copyOf(recent, n);
+            Arrays.sort(sorted);
+            int idx = (int) Math.ceil(p / 100 * n) - 1;
+            return sorted[Math.max(0, Math.min(n - 1, idx))];
+        }
+
+        @Override
+        public String toString() {
+            String s = String.format(Locale.US, "n=%d last=%.1f mean=%.1f min=%.1f max=%.1f",
+                count, last, mean(), min, max);
+            /* A single value has no distribution */
+            if (count > 1)
+                s += String.format(Locale.US, " p50=%.1f p90=%.1f p99=%.1f",
+                    percentile(50), percentile(90), percentile(99));
+            return s;
+        }
+    }
+
+    private final Map<String, String> mValues = new TreeMap<>();
+    private final Map<String, Sample> mSamples = new TreeMap<>();
+
+    public synchronized void setValue(@NonNull String name, @Nullable String value) {
+        if (value == null)
+            mValues.remove(name);
+        else
+            mValues.put(name, value);
+    }
+
+    @Nullable
+    public synchronized String getValue(@NonNull String name) {
+        return mValues.get(name);
+    }
+
+    public synchronized void addSample(@NonNull String name, double value) {
+        Sample s = mSamples.get(name);
+        if (s == null) {
+            s = new Sample();
+            mSamples.put(name, s);
+        }
+        s.recent[s.count % Sample.WINDOW] = value;
+        s.count++;
+        s.last = value;
+        s.sum += value;
+        s.min = Math.min(s.min, value);
+        s.max = Math.max(s.max, value);
+    }
+
+    public void increment(@NonNull String name) {
+        addSample(name, 1);
+    }
+
+    /** @return a copy of the sample with the given name, or {@code null} if none was recorded */
+    @Nullable
+    public synchronized Sample getSample(@NonNull String name) {
+        Sample s = mSamples.get(name);
+        if (s == null)
+            return null;
+        Sample copy = new Sample();
+        copy.count = s.count;
+        copy.last = s.last;
+        copy.sum = s.sum;
+        copy.min = s.min;
+        copy.max = s.max;
+        System.arraycopy(s.recent, 0, copy.recent, 0, Sample.WINDOW);
+        return copy;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : mValues.entrySet())
+            sb.append('\n').append(e.getKey()).append(": ").append(e.getValue());
+        for (Map.Entry<String, Sample> e : mSamples.entrySet())
+            sb.append('\n').append(e.getKey()).append(": ").append(e.getValue());
+        return sb.toString();
+    }
+
+}
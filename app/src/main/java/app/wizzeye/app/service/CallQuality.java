@@ -20,19 +20,43 @@
  */
 package app.wizzeye.app.service;
 
+import android.support.annotation.Nullable;
 import android.util.Size;
 
+import java.util.Locale;
+
 public enum CallQuality {
-    LOW(320, 240, 3),
-    NORMAL(640, 480, 3),
-    HD(1280, 720, 2),
+    LOW(320, 240, 3, 300),
+    NORMAL(640, 480, 3, 800),
+    HD(1280, 720, 2, 2000),
     ;
 
     public final Size frameSize;
     public final int maxZoom;
+    /** Maximum video bitrate in kbps */
+    public final int maxBitrate;
 
-    CallQuality(int width, int height, int maxZoom) {
+    CallQuality(int width, int height, int maxZoom, int maxBitrate) {
         frameSize = new Size(width, height);
         this.maxZoom = maxZoom;
+        this.maxBitrate = maxBitrate;
+    }
+
+    /**
+     * Video layer names as used in the signaling protocol.  Each quality doubles as a layer of
+     * the video sent to an observer: an observer on a poor link may request a lower layer than
+     * the quality of the call.
+     */
+    public String layerName() {
+        return name().toLowerCase(Locale.US);
+    }
+
+    @Nullable
+    public static CallQuality fromLayerName(String name) {
+        for (CallQuality q : values()) {
+            if (q.layerName().equals(name))
+                return q;
+        }
+        return null;
     }
 }
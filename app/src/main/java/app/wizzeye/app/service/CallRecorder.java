@@ -0,0 +1,488 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.media.MediaScannerConnection;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+import android.widget.Toast;
+
+import org.webrtc.EglBase;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+import org.webrtc.voiceengine.WebRtcAudioRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import app.wizzeye.app.R;
+
+/**
+ * Records the local video and microphone of a call to an MP4 file.
+ *
+ * The recorder is a sink on the capturer, getting the frames at capture size before they are
+ * scaled for the observers, and feeds a MediaCodec encoder through a
+ * {@link SurfaceEncoderInput}.  Microphone samples are copied from the WebRTC recording thread
+ * into a bounded queue feeding an AAC encoder.  The output of both encoders is muxed on a
+ * separate I/O thread.
+ */
+class CallRecorder implements VideoSink, WebRtcAudioRecord.WebRtcAudioRecordSamplesReadyCallback {
+
+    interface Listener {
+        /** Called on the I/O thread once recording ended, with {@code null} if it failed. */
+        void onRecordingFinished(@NonNull CallRecorder recorder, @Nullable File file);
+    }
+
+    private static final String TAG = "CallRecorder";
+
+    private static final DateFormat VIDEO_FILENAME = new SimpleDateFormat("'VID_'yyyyMMdd_HHmmssSSS'.mp4'", Locale.US);
+
+    static final int VIDEO_FRAMERATE = 30;
+    private static final float VIDEO_BITS_PER_PIXEL = 0.1f;
+    static final int VIDEO_IFRAME_INTERVAL_S = 1;
+    private static final int AUDIO_BITRATE = 64000;
+
+    /** Microphone chunks of 10ms waiting for an encoder input buffer */
+    private static final int MAX_PENDING_AUDIO = 50;
+    /** How long to wait for the audio format before recording video only */
+    private static final long AUDIO_WAIT_MS = 1000;
+    /** How long to wait for the encoders to drain when stopping */
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    /* Initialized by constructor */
+    private final Context mContext;
+    private final EglBase.Context mEglContext;
+    private final int mWidth;
+    private final int mHeight;
+    private final CallMetrics mMetrics;
+    private final Listener mListener;
+    private final AtomicInteger mPendingAudio = new AtomicInteger();
+    private volatile boolean mStopping;
+
+    /* Initialized by start() */
+    private File mFile;
+    private HandlerThread mIoThread;
+    private Handler mIoHandler;
+    private MediaMuxer mMuxer;
+    private MediaCodec mVideoEncoder;
+    private SurfaceEncoderInput mVideoInput;
+
+    /* I/O thread */
+    private MediaCodec mAudioEncoder;
+    private boolean mAudioFailed;
+    private final ArrayDeque<Integer> mAudioInputs = new ArrayDeque<>();
+    private final ArrayDeque<AudioChunk> mAudioChunks = new ArrayDeque<>();
+    private long mLastAudioTimeUs;
+    private MediaFormat mVideoFormat;
+    private MediaFormat mAudioFormat;
+    private int mVideoTrackIndex = -1;
+    private int mAudioTrackIndex = -1;
+    private boolean mMuxerStarted;
+    private boolean mKeyFrameSeen;
+    private long mBaseTimeUs = -1;
+    private boolean mVideoDone;
+    private boolean mAudioDone;
+    private boolean mFinished;
+
+    private static class AudioChunk {
+        final byte[] data;
+        final long timeUs;
+        final boolean endOfStream;
+
+        AudioChunk(byte[] data, long timeUs, boolean endOfStream) {
+            this.data = data;
+            this.timeUs = timeUs;
+            this.endOfStream = endOfStream;
+        }
+    }
+
+    CallRecorder(@NonNull Context context, @NonNull EglBase.Context eglContext, @NonNull Size frameSize,
+                 @NonNull CallMetrics metrics, @NonNull Listener listener) {
+        mContext = context;
+        mEglContext = eglContext;
+        mWidth = frameSize.getWidth();
+        mHeight = frameSize.getHeight();
+        mMetrics = metrics;
+        mListener = listener;
+    }
+
+    /**
+     * Create the output file and the video encoder, and start listening to the microphone.
+     * Frames are recorded once the recorder is added as sink to the video track.
+     */
+    void start() throws IOException {
+        try {
+            mFile = createOutputFile(mContext, VIDEO_FILENAME);
+        } catch (IOException e) {
+            Toast.makeText(mContext, R.string.call_toast_recording_fail, Toast.LENGTH_SHORT).show();
+            throw e;
+        }
+
+        mIoThread = new HandlerThread("CallRecorderIO");
+        mIoThread.start();
+        mIoHandler = new Handler(mIoThread.getLooper());
+
+        MediaFormat format = createVideoFormat(mWidth, mHeight);
+        Surface surface;
+        try {
+            mMuxer = new MediaMuxer(mFile.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mVideoEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+            mVideoEncoder.setCallback(mVideoCallback, mIoHandler);
+            mVideoEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = mVideoEncoder.createInputSurface();
+            mVideoEncoder.start();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to set up recording", e);
+            mStopping = true;
+            mIoHandler.post(() -> finish(false));
+            throw (e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+        mVideoInput = new SurfaceEncoderInput("CallRecorder", mEglContext, surface, mWidth, mHeight,
+            mMetrics, CallMetrics.RECORDING_FRAMES, CallMetrics.RECORDING_FRAMES_DROPPED,
+            this::fail);
+        WebRtcAudioRecord.setOnAudioSamplesReady(this);
+        Log.i(TAG, "Recording to " + mFile.getPath());
+    }
+
+    /** @return a new file in the movies directory of the application */
+    @NonNull
+    static File createOutputFile(@NonNull Context context, @NonNull DateFormat name) throws IOException {
+        File dir = new File(
+            Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES),
+            context.getString(R.string.app_name));
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Failed to create directory " + dir.getPath());
+        return new File(dir, name.format(new Date()));
+    }
+
+    /** @return the format of AVC encoders fed through a {@link SurfaceEncoderInput} */
+    @NonNull
+    static MediaFormat createVideoFormat(int width, int height) {
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, getVideoBitrate(width, height));
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, VIDEO_FRAMERATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, VIDEO_IFRAME_INTERVAL_S);
+        return format;
+    }
+
+    static int getVideoBitrate(int width, int height) {
+        return (int) (width * height * VIDEO_FRAMERATE * VIDEO_BITS_PER_PIXEL);
+    }
+
+    /** Stop recording; the file is finalized asynchronously once the encoders are drained. */
+    void stop() {
+        if (mStopping)
+            return;
+        Log.d(TAG, "Stopping");
+        mStopping = true;
+        WebRtcAudioRecord.setOnAudioSamplesReady(null);
+        final MediaCodec videoEncoder = mVideoEncoder;
+        mVideoInput.release(() -> {
+            try {
+                videoEncoder.signalEndOfInputStream();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Failed to signal end of video stream", e);
+            }
+        });
+        mIoHandler.post(() -> {
+            if (mAudioEncoder != null) {
+                mAudioChunks.add(new AudioChunk(NO_DATA, mLastAudioTimeUs, true));
+                feedAudio();
+            } else {
+                mAudioDone = true;
+                if (mVideoDone)
+                    finish(true);
+            }
+            mIoHandler.postDelayed(mStopTimeout, STOP_TIMEOUT_MS);
+        });
+    }
+
+    private void fail(String error, Exception e) {
+        Log.e(TAG, error, e);
+        mStopping = true;
+        WebRtcAudioRecord.setOnAudioSamplesReady(null);
+        mIoHandler.post(() -> finish(false));
+    }
+
+    /* Called on capture thread */
+
+    @Override
+    public void onFrame(VideoFrame frame) {
+        if (!mStopping)
+            mVideoInput.onFrame(frame);
+    }
+
+    /* Called on WebRTC audio thread */
+
+    @Override
+    public void onWebRtcAudioRecordSamplesReady(WebRtcAudioRecord.AudioSamples samples) {
+        if (mStopping || samples.getAudioFormat() != AudioFormat.ENCODING_PCM_16BIT)
+            return;
+        if (mPendingAudio.get() >= MAX_PENDING_AUDIO) {
+            mMetrics.increment(CallMetrics.RECORDING_AUDIO_DROPPED);
+            return;
+        }
+        mPendingAudio.incrementAndGet();
+        /* The samples were recorded during the last buffer period */
+        long durationUs = samples.getData().length / 2 / samples.getChannelCount() * 1000000L / samples.getSampleRate();
+        long timeUs = System.nanoTime() / 1000 - durationUs;
+        if (!mIoHandler.post(() -> queueAudio(samples, timeUs)))
+            mPendingAudio.decrementAndGet();
+    }
+
+    /* Called on I/O thread */
+
+    private void queueAudio(WebRtcAudioRecord.AudioSamples samples, long timeUs) {
+        if (mAudioEncoder == null && !mAudioFailed && !mMuxerStarted)
+            setupAudioEncoder(samples.getSampleRate(), samples.getChannelCount());
+        if (mAudioEncoder == null || mFinished || (mMuxerStarted && mAudioTrackIndex < 0)) {
+            /* Too late to add an audio track */
+            mPendingAudio.decrementAndGet();
+            return;
+        }
+        mAudioChunks.add(new AudioChunk(samples.getData(), timeUs, false));
+        feedAudio();
+    }
+
+    private void setupAudioEncoder(int sampleRate, int channels) {
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channels);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BITRATE);
+        try {
+            mAudioEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            mAudioEncoder.setCallback(mAudioCallback, mIoHandler);
+            mAudioEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mAudioEncoder.start();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to set up audio encoder, recording video only", e);
+            if (mAudioEncoder != null) {
+                mAudioEncoder.release();
+                mAudioEncoder = null;
+            }
+            mAudioFailed = true;
+        }
+    }
+
+    private void feedAudio() {
+        while (!mAudioInputs.isEmpty() && !mAudioChunks.isEmpty()) {
+            int index = mAudioInputs.poll();
+            AudioChunk chunk = mAudioChunks.poll();
+            ByteBuffer buffer = mAudioEncoder.getInputBuffer(index);
+            int size = Math.min(chunk.data.length, buffer.remaining());
+            buffer.put(chunk.data, 0, size);
+            mAudioEncoder.queueInputBuffer(index, 0, size, chunk.timeUs,
+                chunk.endOfStream ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+            mLastAudioTimeUs = chunk.timeUs;
+            if (!chunk.endOfStream)
+                mPendingAudio.decrementAndGet();
+        }
+    }
+
+    private void startMuxer() {
+        if (mMuxerStarted || mFinished || mVideoFormat == null)
+            return;
+        mIoHandler.removeCallbacks(mStartMuxer);
+        mVideoTrackIndex = mMuxer.addTrack(mVideoFormat);
+        if (mAudioFormat != null)
+            mAudioTrackIndex = mMuxer.addTrack(mAudioFormat);
+        else
+            Log.w(TAG, "No audio format yet, recording video only");
+        mMuxer.start();
+        mMuxerStarted = true;
+        /* Output produced before now was dropped: start the file with a key frame */
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mVideoEncoder.setParameters(params);
+    }
+
+    private void writeOutput(MediaCodec codec, int index, MediaCodec.BufferInfo info, boolean video) {
+        if (mFinished)
+            return;
+        int track = (video ? mVideoTrackIndex : mAudioTrackIndex);
+        if (mMuxerStarted && track >= 0 && info.size > 0 &&
+                (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            if (video && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0)
+                mKeyFrameSeen = true;
+            if (mKeyFrameSeen) {
+                if (mBaseTimeUs < 0)
+                    mBaseTimeUs = info.presentationTimeUs;
+                if (info.presentationTimeUs >= mBaseTimeUs) {
+                    ByteBuffer buffer = codec.getOutputBuffer(index);
+                    info.presentationTimeUs -= mBaseTimeUs;
+                    mMuxer.writeSampleData(track, buffer, info);
+                }
+            }
+        }
+        codec.releaseOutputBuffer(index, false);
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            if (video)
+                mVideoDone = true;
+            else
+                mAudioDone = true;
+            if (mVideoDone && mAudioDone)
+                finish(true);
+        }
+    }
+
+    private void finish(boolean success) {
+        if (mFinished)
+            return;
+        mFinished = true;
+        mIoHandler.removeCallbacks(mStartMuxer);
+        mIoHandler.removeCallbacks(mStopTimeout);
+
+        for (MediaCodec codec : new MediaCodec[] { mVideoEncoder, mAudioEncoder }) {
+            if (codec == null)
+                continue;
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                // ignore
+            }
+            codec.release();
+        }
+        mVideoEncoder = null;
+        mAudioEncoder = null;
+
+        if (mMuxer != null) {
+            if (mMuxerStarted) {
+                try {
+                    mMuxer.stop();
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, "Failed to finalize " + mFile.getPath(), e);
+                    success = false;
+                }
+            } else {
+                success = false;
+            }
+            mMuxer.release();
+            mMuxer = null;
+        }
+
+        if (success) {
+            Log.i(TAG, "Recording saved to " + mFile.getPath());
+            MediaScannerConnection.scanFile(mContext, new String[] { mFile.toString() }, null, null);
+            Toast.makeText(mContext, R.string.call_toast_recording_saved, Toast.LENGTH_SHORT).show();
+        } else {
+            if (mFile.exists() && !mFile.delete())
+                Log.w(TAG, "Failed to delete " + mFile.getPath());
+            Toast.makeText(mContext, R.string.call_toast_recording_fail, Toast.LENGTH_SHORT).show();
+        }
+        mListener.onRecordingFinished(this, success ? mFile : null);
+
+        if (mVideoInput != null)
+            mVideoInput.release(null);
+        mIoThread.quitSafely();
+    }
+
+    private final Runnable mStartMuxer = this::startMuxer;
+
+    private final Runnable mStopTimeout = () -> {
+        Log.w(TAG, "Encoders did not drain in time");
+        finish(mMuxerStarted);
+    };
+
+    private final MediaCodec.Callback mVideoCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            writeOutput(codec, index, info, true);
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            fail("Video encoder error", e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            if (mFinished)
+                return;
+            mVideoFormat = format;
+            if (mAudioFormat != null || mAudioFailed)
+                startMuxer();
+            else
+                mIoHandler.postDelayed(mStartMuxer, AUDIO_WAIT_MS);
+        }
+    };
+
+    private final MediaCodec.Callback mAudioCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            if (mFinished)
+                return;
+            mAudioInputs.add(index);
+            feedAudio();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            writeOutput(codec, index, info, false);
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            if (mFinished)
+                return;
+            Log.e(TAG, "Audio encoder error, recording video only", e);
+            mAudioFailed = true;
+            mAudioDone = true;
+            codec.release();
+            mAudioEncoder = null;
+            mAudioChunks.clear();
+            mAudioInputs.clear();
+            mPendingAudio.set(0);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            mAudioFormat = format;
+            startMuxer();
+        }
+    };
+}
@@ -71,6 +71,9 @@ public class CallService extends Service {
 
     private static final int MSG_CALL_STATE_CHANGED = 0;
 
+    /** Idle memory kept by the buffer pool: enough to reuse the clip buffer arena */
+    private static final long BUFFER_POOL_MAX_IDLE_BYTES = 32 << 20;
+
     private final LocalBinder mBinder = new LocalBinder();
     private final List<Listener> mListeners = new LinkedList<>();
 
@@ -78,8 +81,11 @@ public class CallService extends Service {
     private NotificationManager mNotificationManager;
     OkHttpClient mHttpClient;
     EglBase mEglBase;
+    final BufferPool mBufferPool = new BufferPool(BUFFER_POOL_MAX_IDLE_BYTES);
+    final HeadsetManager mHeadsetManager = new HeadsetManager();
 
     private Call mCall;
+    private PowerGovernor mPowerGovernor;
     private Message mCallStateMessage;
 
     @Override
@@ -112,6 +118,8 @@ public class CallService extends Service {
     @Override
     public void onDestroy() {
         if (mCall != null) {
+            mPowerGovernor.stop();
+            mPowerGovernor = null;
             mCall.unregisterMessage(mCallStateMessage);
             mCall.dispose();
             mCall = null;
@@ -119,9 +127,18 @@ public class CallService extends Service {
         mCallStateMessage.recycle();
         PeerConnectionFactory.shutdownInternalTracer();
         mEglBase.release();
+        mBufferPool.trim();
+        mHeadsetManager.dispose();
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW)
+            mBufferPool.trim();
+    }
+
     public void registerListener(Listener listener) {
         mListeners.add(listener);
         listener.onCallStateChanged(mCall != null ? mCall.getState() : CallState.IDLE);
@@ -140,6 +157,10 @@ public class CallService extends Service {
         return mEglBase;
     }
 
+    public HeadsetManager getHeadsetManager() {
+        return mHeadsetManager;
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -172,6 +193,8 @@ public class CallService extends Service {
         mCall = new Call(this, uri);
         mCall.registerMessage(Call.Event.STATE_CHANGED, mCallStateMessage);
         mPreferences.edit().putString(SettingsActivity.KEY_LAST_ROOM, mCall.getRoomName()).apply();
+        mPowerGovernor = new PowerGovernor(this, mCall);
+        mPowerGovernor.start();
         mCall.start();
         return START_REDELIVER_INTENT;
     }
@@ -183,6 +206,8 @@ public class CallService extends Service {
                 return true;
             CallState newState = CallState.values()[msg.arg1];
             if (newState == CallState.IDLE) {
+                mPowerGovernor.stop();
+                mPowerGovernor = null;
                 mCall.unregisterMessage(mCallStateMessage);
                 mCall.dispose();
                 mCall = null;
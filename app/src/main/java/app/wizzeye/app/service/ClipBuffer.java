@@ -0,0 +1,357 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.media.MediaScannerConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+import android.widget.Toast;
+
+import org.webrtc.EglBase;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+import app.wizzeye.app.R;
+
+/**
+ * Keeps the last seconds of video, encoded, in memory so they can be saved after the fact.
+ *
+ * A dedicated encoder is fed with the frames as captured, before they are scaled for the
+ * observers, through a {@link SurfaceEncoderInput}.  Its output is copied into a single direct
+ * buffer leased up front and used as a circular arena, with the frame metadata in fixed-size
+ * arrays: memory use is bounded by the configured duration and the frame path does not
+ * allocate.  The oldest frames are evicted when too old or when their
+ * space is needed.  A saved clip always starts at a key frame.
+ *
+ * {@link #save()} writes the buffered frames to an MP4 file from a separate thread while the
+ * encoder keeps running.  Frames which would evict frames being saved are dropped in the
+ * meantime, and buffering resumes at the next key frame.
+ */
+class ClipBuffer implements VideoSink {
+
+    private static final String TAG = "ClipBuffer";
+
+    private static final DateFormat CLIP_FILENAME = new SimpleDateFormat("'CLIP_'yyyyMMdd_HHmmssSSS'.mp4'", Locale.US);
+
+    /** Margin over the nominal bitrate, as encoders overshoot on motion and key frames */
+    private static final float ARENA_HEADROOM = 1.5f;
+    /** Hard limit on the arena, whatever the configured duration */
+    private static final int MAX_ARENA_BYTES = 64 << 20;
+
+    private final Context mContext;
+    private final EglBase.Context mEglContext;
+    private final int mWidth;
+    private final int mHeight;
+    private final long mDurationUs;
+    private final CallMetrics mMetrics;
+    private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
+
+    /* Initialized by start() */
+    private HandlerThread mThread;
+    private MediaCodec mEncoder;
+    private SurfaceEncoderInput mInput;
+
+    /* Ring buffer guarded by mLock */
+    private final Object mLock = new Object();
+    private BufferPool.Lease mArenaLease;
+    private final ByteBuffer mArena;
+    private final int mArenaSize;
+    private final int mMaxFrames;
+    private final long[] mTimes;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final boolean[] mKeyFrames;
+    private int mFirst;
+    private int mCount;
+    private int mWriteOffset;
+    private MediaFormat mFormat;
+    private boolean mSaving;
+    private boolean mWaitKeyFrame = true;
+    private volatile boolean mReleased;
+
+    ClipBuffer(@NonNull Context context, @NonNull EglBase.Context eglContext, @NonNull Size frameSize,
+               int durationS, @NonNull BufferPool bufferPool, @NonNull CallMetrics metrics) {
+        mContext = context;
+        mEglContext = eglContext;
+        mWidth = frameSize.getWidth();
+        mHeight = frameSize.getHeight();
+        mDurationUs = durationS * 1000000L;
+        mMetrics = metrics;
+
+        long bytes = (long) (CallRecorder.getVideoBitrate(mWidth, mHeight) / 8 * durationS * ARENA_HEADROOM);
+        mArenaSize = (int) Math.min(bytes, MAX_ARENA_BYTES);
+        mArenaLease = bufferPool.lease(mArenaSize);
+        mArena = mArenaLease.buffer();
+        /* Twice the nominal frame rate leaves room for the time-based eviction to kick in first */
+        mMaxFrames = durationS * CallRecorder.VIDEO_FRAMERATE * 2;
+        mTimes = new long[mMaxFrames];
+        mOffsets = new int[mMaxFrames];
+        mSizes = new int[mMaxFrames];
+        mKeyFrames = new boolean[mMaxFrames];
+        Log.i(TAG, "Buffering " + durationS + "s of video in " + (mArenaSize >> 10) + " KiB");
+    }
+
+    void start() throws IOException {
+        mThread = new HandlerThread("ClipBuffer");
+        mThread.start();
+        Surface surface;
+        try {
+            mEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+            mEncoder.setCallback(mEncoderCallback, new Handler(mThread.getLooper()));
+            mEncoder.configure(CallRecorder.createVideoFormat(mWidth, mHeight), null, null,
+                               MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = mEncoder.createInputSurface();
+            mEncoder.start();
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw (e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+        mInput = new SurfaceEncoderInput("ClipBufferInput", mEglContext, surface, mWidth, mHeight,
+            mMetrics, CallMetrics.CLIP_FRAMES, CallMetrics.CLIP_FRAMES_DROPPED,
+            (error, e) -> release());
+    }
+
+    void release() {
+        if (mReleased)
+            return;
+        mReleased = true;
+        if (mInput != null)
+            mInput.release(null);
+        final MediaCodec encoder = mEncoder;
+        new Handler(mThread.getLooper()).post(() -> {
+            if (encoder != null) {
+                try {
+                    encoder.stop();
+                } catch (IllegalStateException e) {
+                    // ignore
+                }
+                encoder.release();
+            }
+            releaseArena();
+        });
+        mThread.quitSafely();
+    }
+
+    /** Return the arena to the pool, unless a clip is still being saved from it. */
+    private void releaseArena() {
+        synchronized (mLock) {
+            if (mSaving || mArenaLease == null)
+                return;
+            mArenaLease.close();
+            mArenaLease = null;
+        }
+    }
+
+    @Override
+    public void onFrame(VideoFrame frame) {
+        /* The input drops the frame itself if it gets released concurrently */
+        SurfaceEncoderInput input = mInput;
+        if (!mReleased && input != null)
+            input.onFrame(frame);
+    }
+
+    /**
+     * Save the buffered video to a new file, without interrupting buffering.
+     *
+     * @return false if a clip is already being saved or nothing is buffered yet.
+     */
+    boolean save() {
+        final int first;
+        final int count;
+        final MediaFormat format;
+        synchronized (mLock) {
+            if (mSaving || mFormat == null)
+                return false;
+            int skip = 0;
+            while (skip < mCount && !mKeyFrames[(mFirst + skip) % mMaxFrames])
+                skip++;
+            if (skip == mCount)
+                return false;
+            first = (mFirst + skip) % mMaxFrames;
+            count = mCount - skip;
+            format = mFormat;
+            mSaving = true;
+        }
+        new Thread(() -> write(first, count, format), "ClipSaver").start();
+        return true;
+    }
+
+    /* Called on saver thread.  The frames being saved cannot be evicted until mSaving is reset,
+     * so the arena and metadata can be read without holding the lock. */
+
+    private void write(int first, int count, MediaFormat format) {
+        long start = SystemClock.elapsedRealtime();
+        File file = null;
+        MediaMuxer muxer = null;
+        boolean success = false;
+        try {
+            file = CallRecorder.createOutputFile(mContext, CLIP_FILENAME);
+            muxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            int track = muxer.addTrack(format);
+            muxer.start();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long baseUs = mTimes[first];
+            for (int i = 0; i < count; i++) {
+                int idx = (first + i) % mMaxFrames;
+                info.set(mOffsets[idx], mSizes[idx], mTimes[idx] - baseUs,
+                         mKeyFrames[idx] ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                muxer.writeSampleData(track, mArena, info);
+            }
+            muxer.stop();
+            success = true;
+            Log.i(TAG, "Saved " + count + " frames to " + file.getPath());
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to save clip", e);
+        } finally {
+            if (muxer != null)
+                muxer.release();
+            synchronized (mLock) {
+                mSaving = false;
+            }
+            if (mReleased)
+                releaseArena();
+        }
+        mMetrics.addSample(CallMetrics.CLIP_SAVE_TIME, SystemClock.elapsedRealtime() - start);
+
+        if (success) {
+            MediaScannerConnection.scanFile(mContext, new String[] { file.toString() }, null, null);
+        } else if (file != null && file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to delete " + file.getPath());
+        }
+        final int text = (success ? R.string.call_toast_clip_saved : R.string.call_toast_clip_fail);
+        mMainThreadHandler.post(() -> Toast.makeText(mContext, text, Toast.LENGTH_SHORT).show());
+    }
+
+    /* Called on encoder thread with mLock held */
+
+    private void evictFirst() {
+        mFirst = (mFirst + 1) % mMaxFrames;
+        mCount--;
+    }
+
+    private boolean firstOverlaps(int offset, int size) {
+        return mOffsets[mFirst] < offset + size && offset < mOffsets[mFirst] + mSizes[mFirst];
+    }
+
+    /** @return whether room could be made without evicting frames being saved */
+    private boolean makeRoom(int size) {
+        int offset = mWriteOffset;
+        if (offset + size > mArenaSize) {
+            /* Wrap around: the end of the arena must be free first */
+            while (mCount > 0 && mOffsets[mFirst] >= offset) {
+                if (mSaving)
+                    return false;
+                evictFirst();
+            }
+            offset = 0;
+        }
+        while (mCount > 0 && (mCount == mMaxFrames || firstOverlaps(offset, size))) {
+            if (mSaving)
+                return false;
+            evictFirst();
+        }
+        mWriteOffset = offset;
+        return true;
+    }
+
+    private void append(ByteBuffer data, MediaCodec.BufferInfo info) {
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (mWaitKeyFrame && !keyFrame)
+            return;
+        if (info.size > mArenaSize || !makeRoom(info.size)) {
+            mMetrics.increment(CallMetrics.CLIP_FRAMES_DROPPED);
+            if (!mWaitKeyFrame) {
+                /* Following frames depend on this one */
+                mWaitKeyFrame = true;
+                Bundle params = new Bundle();
+                params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                mEncoder.setParameters(params);
+            }
+            return;
+        }
+        mWaitKeyFrame = false;
+
+        data.limit(info.offset + info.size).position(info.offset);
+        mArena.limit(mWriteOffset + info.size).position(mWriteOffset);
+        mArena.put(data);
+        int idx = (mFirst + mCount) % mMaxFrames;
+        mTimes[idx] = info.presentationTimeUs;
+        mOffsets[idx] = mWriteOffset;
+        mSizes[idx] = info.size;
+        mKeyFrames[idx] = keyFrame;
+        mCount++;
+        mWriteOffset += info.size;
+
+        if (!mSaving) {
+            while (mCount > 1 && info.presentationTimeUs - mTimes[mFirst] > mDurationUs)
+                evictFirst();
+        }
+    }
+
+    private final MediaCodec.Callback mEncoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            if (mReleased)
+                return;
+            if (info.size > 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                synchronized (mLock) {
+                    append(codec.getOutputBuffer(index), info);
+                }
+            }
+            codec.releaseOutputBuffer(index, false);
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error, clip buffer disabled", e);
+            release();
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            synchronized (mLock) {
+                mFormat = format;
+            }
+        }
+    };
+}
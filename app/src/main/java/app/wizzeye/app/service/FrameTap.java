@@ -0,0 +1,156 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.webrtc.VideoFrame;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Subscription to the captured video, for on-device analysis such as barcode detection.
+ *
+ * Frames are scaled down to fit the requested size, converted to the requested format and handed
+ * to the listener on the given executor.  Each conversion is done once per frame and shared by all
+ * taps asking for the same size and format.  Only one frame is in flight per tap: frames arriving
+ * while the listener is still busy are dropped, so a slow tap never holds back the camera.
+ *
+ * Texture frames keep the capture texture busy until the listener returns, which stalls the
+ * camera; use them only for short GPU work and prefer I420 or NV21 for anything slower.
+ */
+public final class FrameTap {
+
+    public enum Format {
+        /** {@link VideoFrame.TextureBuffer} of the capture, scaled on the GPU */
+        TEXTURE,
+        /** {@link VideoFrame.I420Buffer} in memory */
+        I420,
+        /** Packed NV21 bytes (Y plane, then interleaved V and U), as expected by most vision libraries */
+        NV21,
+    }
+
+    public interface Listener {
+        /**
+         * Called on the executor of the tap.  The frame and its buffers are only valid until this
+         * method returns: anything needed afterwards must be copied.
+         */
+        void onFrame(@NonNull Frame frame);
+    }
+
+    /** A captured frame in the format of the tap. */
+    public static final class Frame {
+        private final VideoFrame.Buffer mBuffer;
+        private final ByteBuffer mData;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mRotation;
+        private final long mTimestampNs;
+
+        Frame(@Nullable VideoFrame.Buffer buffer, @Nullable ByteBuffer data, int width, int height,
+              int rotation, long timestampNs) {
+            mBuffer = buffer;
+            mData = data;
+            mWidth = width;
+            mHeight = height;
+            mRotation = rotation;
+            mTimestampNs = timestampNs;
+        }
+
+        /** @return the texture or I420 buffer, or null for NV21 taps */
+        @Nullable
+        public VideoFrame.Buffer getBuffer() {
+            return mBuffer;
+        }
+
+        /** @return the packed NV21 bytes, or null for texture and I420 taps */
+        @Nullable
+        public ByteBuffer getData() {
+            return (mData != null ? mData.asReadOnlyBuffer() : null);
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /** @return clockwise rotation to apply for display, in degrees */
+        public int getRotation() {
+            return mRotation;
+        }
+
+        public long getTimestampNs() {
+            return mTimestampNs;
+        }
+    }
+
+    final Format format;
+    final int maxWidth;
+    final int maxHeight;
+    final int maxFramerate;
+    final Executor executor;
+    final Listener listener;
+    final AtomicBoolean busy = new AtomicBoolean();
+
+    /* Capture thread */
+    private long mNextFrameNs;
+
+    /**
+     * @param maxWidth Maximum frame width, or 0 for the capture width.
+     * @param maxHeight Maximum frame height, or 0 for the capture height.
+     * @param maxFramerate Maximum frames per second, or 0 for every captured frame.
+     * @param executor Executor on which the listener is called.
+     */
+    public FrameTap(@NonNull Format format, int maxWidth, int maxHeight, int maxFramerate,
+                    @NonNull Executor executor, @NonNull Listener listener) {
+        this.format = format;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.maxFramerate = maxFramerate;
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    /**
+     * Decide whether this tap gets a frame and mark it busy if so.  Called on the capture thread.
+     *
+     * @return 1 if the frame is to be delivered, 0 if skipped to respect the frame rate, -1 if
+     *         dropped because the listener is still busy
+     */
+    int accept(long timestampNs) {
+        if (maxFramerate > 0 && timestampNs < mNextFrameNs)
+            return 0;
+        if (!busy.compareAndSet(false, true))
+            return -1;
+        if (maxFramerate > 0) {
+            /* Same pacing as the frame rate reduction of EglRenderer */
+            mNextFrameNs = Math.max(mNextFrameNs + 1000000000L / maxFramerate, timestampNs);
+        }
+        return 1;
+    }
+
+}
@@ -0,0 +1,201 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.webrtc.VideoFrame;
+import org.webrtc.YuvHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatcher of the captured frames to the {@link FrameTap}s.
+ *
+ * Runs on the capture thread, which only scales and converts the frames: the taps get them on
+ * their own executors.  Conversions are reference-counted and released once the last tap which
+ * got them returns.
+ */
+class FrameTaps {
+
+    /** A frame converted to one size and format */
+    private static final class Conversion {
+        final FrameTap.Format format;
+        final int width;
+        final int height;
+        final VideoFrame.Buffer buffer;
+        final BufferPool.Lease lease;
+        private final AtomicInteger mRefs = new AtomicInteger(1);
+
+        Conversion(FrameTap.Format format, int width, int height, VideoFrame.Buffer buffer, BufferPool.Lease lease) {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.buffer = buffer;
+            this.lease = lease;
+        }
+
+        void retain() {
+            mRefs.incrementAndGet();
+        }
+
+        void release() {
+            if (mRefs.decrementAndGet() > 0)
+                return;
+            if (buffer != null)
+                buffer.release();
+            if (lease != null)
+                lease.close();
+        }
+    }
+
+    private static final String TAG = "FrameTaps";
+
+    private final BufferPool mBufferPool;
+    private final CallMetrics mMetrics;
+    private final List<FrameTap> mTaps = new CopyOnWriteArrayList<>();
+
+    /* Capture thread: conversions of the current frame */
+    private final List<Conversion> mConversions = new ArrayList<>();
+
+    FrameTaps(@NonNull BufferPool bufferPool, @NonNull CallMetrics metrics) {
+        mBufferPool = bufferPool;
+        mMetrics = metrics;
+    }
+
+    void add(@NonNull FrameTap tap) {
+        mTaps.add(tap);
+    }
+
+    /** Stop delivering frames to a tap.  A frame already handed to its executor is still delivered. */
+    void remove(@NonNull FrameTap tap) {
+        mTaps.remove(tap);
+    }
+
+    /** Hand a captured frame to the taps.  Called on the capture thread. */
+    void onFrame(@NonNull VideoFrame frame) {
+        if (mTaps.isEmpty())
+            return;
+        long startNs = System.nanoTime();
+        VideoFrame.Buffer buffer = frame.getBuffer();
+        try {
+            for (FrameTap tap : mTaps) {
+                int accepted = tap.accept(frame.getTimestampNs());
+                if (accepted < 0)
+                    mMetrics.increment(CallMetrics.TAP_FRAMES_DROPPED);
+                if (accepted <= 0)
+                    continue;
+
+                /* Fit within the requested size, keeping the aspect ratio and even dimensions */
+                float scale = 1;
+                if (tap.maxWidth > 0)
+                    scale = Math.min(scale, (float) tap.maxWidth / buffer.getWidth());
+                if (tap.maxHeight > 0)
+                    scale = Math.min(scale, (float) tap.maxHeight / buffer.getHeight());
+                int width = (scale < 1 ? Math.max(2, (int) (buffer.getWidth() * scale) & ~1) : buffer.getWidth());
+                int height = (scale < 1 ? Math.max(2, (int) (buffer.getHeight() * scale) & ~1) : buffer.getHeight());
+
+                final Conversion conversion;
+                try {
+                    conversion = convert(buffer, tap.format, width, height);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to convert frame to " + tap.format + " " + width + "x" + height, e);
+                    tap.busy.set(false);
+                    continue;
+                }
+                final FrameTap.Frame tapFrame = new FrameTap.Frame(conversion.buffer,
+                    (conversion.lease != null ? conversion.lease.buffer() : null),
+                    width, height, frame.getRotation(), frame.getTimestampNs());
+                conversion.retain();
+                try {
+                    tap.executor.execute(() -> deliver(tap, tapFrame, conversion));
+                } catch (RejectedExecutionException e) {
+                    Log.w(TAG, "Executor of frame tap rejected a frame");
+                    conversion.release();
+                    tap.busy.set(false);
+                }
+            }
+        } finally {
+            for (Conversion conversion : mConversions)
+                conversion.release();
+            mConversions.clear();
+        }
+        mMetrics.addSample(CallMetrics.TAP_DISPATCH_TIME, (System.nanoTime() - startNs) / 1e6);
+    }
+
+    /** @return the conversion of the current frame, done now if no other tap asked for it yet */
+    private Conversion convert(VideoFrame.Buffer buffer, FrameTap.Format format, int width, int height) {
+        for (Conversion conversion : mConversions) {
+            if (conversion.format == format && conversion.width == width && conversion.height == height)
+                return conversion;
+        }
+        final Conversion conversion;
+        switch (format) {
+        case TEXTURE:
+            if (width == buffer.getWidth() && height == buffer.getHeight()) {
+                buffer.retain();
+                conversion = new Conversion(format, width, height, buffer, null);
+            } else {
+                conversion = new Conversion(format, width, height,
+                    buffer.cropAndScale(0, 0, buffer.getWidth(), buffer.getHeight(), width, height), null);
+            }
+            break;
+        case I420:
+            /* Scale on the GPU before reading back */
+            conversion = new Conversion(format, width, height,
+                convert(buffer, FrameTap.Format.TEXTURE, width, height).buffer.toI420(), null);
+            break;
+        case NV21: {
+            VideoFrame.I420Buffer i420 = (VideoFrame.I420Buffer) convert(buffer, FrameTap.Format.I420, width, height).buffer;
+            int chromaSize = ((width + 1) / 2) * ((height + 1) / 2);
+            BufferPool.Lease lease = mBufferPool.lease(width * height + 2 * chromaSize);
+            /* NV21 is NV12 with the chroma planes swapped */
+            YuvHelper.I420ToNV12(i420.getDataY(), i420.getStrideY(),
+                                 i420.getDataV(), i420.getStrideV(),
+                                 i420.getDataU(), i420.getStrideU(),
+                                 lease.buffer(), width, height);
+            conversion = new Conversion(format, width, height, null, lease);
+            break;
+        }
+        default:
+            throw new IllegalArgumentException("Unknown format " + format);
+        }
+        mConversions.add(conversion);
+        return conversion;
+    }
+
+    /* Called on the executor of the tap */
+
+    private static void deliver(FrameTap tap, FrameTap.Frame frame, Conversion conversion) {
+        try {
+            tap.listener.onFrame(frame);
+        } finally {
+            conversion.release();
+            tap.busy.set(false);
+        }
+    }
+
+}
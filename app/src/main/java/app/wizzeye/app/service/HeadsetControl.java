@@ -0,0 +1,100 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.iristick.smartglass.core.Headset;
+
+/**
+ * Torch, laser pointer and voice command configuration of a headset.
+ *
+ * Each headset command is a round-trip through the Iristick Services down to the USB device.
+ * The setters only record the desired state; {@link #apply()} then sends the commands for
+ * whatever differs from the state last applied, so unchanged parameters cost nothing.  Nothing
+ * is assumed about the state of the device before the first application.
+ *
+ * Not thread-safe: used from the call thread only.
+ */
+final class HeadsetControl {
+
+    private static final String TAG = "HeadsetControl";
+
+    private static final int UNKNOWN = -1;
+
+    private final Headset mHeadset;
+    private final CallMetrics mMetrics;
+
+    private boolean mTorch;
+    private boolean mLaser;
+    private int mVoiceFlags;
+
+    private int mAppliedTorch = UNKNOWN;
+    private int mAppliedLaser = UNKNOWN;
+    private int mAppliedVoiceFlags = UNKNOWN;
+
+    HeadsetControl(@NonNull Headset headset, @NonNull CallMetrics metrics) {
+        mHeadset = headset;
+        mMetrics = metrics;
+    }
+
+    void setTorchMode(boolean torch) {
+        mTorch = torch;
+    }
+
+    void setLaserPointer(boolean laser) {
+        mLaser = laser;
+    }
+
+    /** @param flags {@code Headset.VOICE_FLAG_*} flags */
+    void setVoiceCommands(int flags) {
+        mVoiceFlags = flags;
+    }
+
+    /** Send the commands needed to bring the headset to the desired state. */
+    void apply() {
+        int torch = mTorch ? 1 : 0;
+        if (torch != mAppliedTorch) {
+            Log.v(TAG, "Setting torch " + mTorch);
+            long start = System.nanoTime();
+            mHeadset.setTorchMode(mTorch);
+            mMetrics.addSample(CallMetrics.HEADSET_TORCH_TIME, (System.nanoTime() - start) / 1e6);
+            mAppliedTorch = torch;
+        }
+        int laser = mLaser ? 1 : 0;
+        if (laser != mAppliedLaser) {
+            Log.v(TAG, "Setting laser pointer " + mLaser);
+            long start = System.nanoTime();
+            mHeadset.setLaserPointer(mLaser);
+            mMetrics.addSample(CallMetrics.HEADSET_LASER_TIME, (System.nanoTime() - start) / 1e6);
+            mAppliedLaser = laser;
+        }
+        if (mVoiceFlags != mAppliedVoiceFlags) {
+            Log.v(TAG, "Configuring voice commands " + mVoiceFlags);
+            long start = System.nanoTime();
+            mHeadset.configureVoiceCommands(mVoiceFlags);
+            mMetrics.addSample(CallMetrics.HEADSET_VOICE_TIME, (System.nanoTime() - start) / 1e6);
+            mAppliedVoiceFlags = mVoiceFlags;
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.iristick.smartglass.core.Headset;
+import com.iristick.smartglass.core.IristickBinding;
+import com.iristick.smartglass.core.IristickConnection;
+import com.iristick.smartglass.support.app.IristickApp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import app.wizzeye.app.WizzeyeApplication;
+
+/**
+ * Shared connection to the Iristick Services and the headset.
+ *
+ * The connection, and the Iristick support library if no activity has set it up yet, is only
+ * set up when first needed, either by a call or ahead of one through {@link #prewarm()}.  It is
+ * kept for a while after its last user goes away, so that the headset handle is already known
+ * when the next call starts and the call does not wait for the services to report it again.  All
+ * methods are thread-safe; listeners are called on the main thread.
+ */
+public final class HeadsetManager {
+
+    public interface Listener {
+        void onHeadsetConnected(@NonNull Headset headset);
+        void onHeadsetDisconnected();
+        void onIristickServiceError(int error);
+    }
+
+    private static final String TAG = "HeadsetManager";
+
+    /** Time the connection is kept without any user */
+    private static final long STANDBY_MS = 120000;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile Headset mHeadset;
+
+    /* Main thread */
+    private final List<Listener> mListeners = new ArrayList<>();
+    private boolean mRegistered;
+    private boolean mStandIn;
+    private boolean mFailed;
+    private int mError;
+
+    /** Connect in the background, e.g., as soon as the user may start a call. */
+    public void prewarm() {
+        mHandler.post(() -> {
+            register();
+            scheduleStandby();
+        });
+    }
+
+    /** @return the connected headset, or null if none or not connected yet */
+    @Nullable
+    public Headset getHeadset() {
+        return mHeadset;
+    }
+
+    /** Connect if needed, and tell the listener about the headset already connected if any. */
+    public void addListener(@NonNull Listener listener) {
+        mHandler.post(() -> {
+            mListeners.add(listener);
+            mHandler.removeCallbacks(mUnregister);
+            register();
+            if (mHeadset != null)
+                listener.onHeadsetConnected(mHeadset);
+            else if (mFailed)
+                listener.onIristickServiceError(mError);
+        });
+    }
+
+    /** Stop telling the listener, and disconnect after a while if it was the last one. */
+    public void removeListener(@NonNull Listener listener) {
+        mHandler.post(() -> {
+            mListeners.remove(listener);
+            scheduleStandby();
+        });
+    }
+
+    /**
+     * Report a headset as connected without going through the Iristick Services, so that calls
+     * can run against a stand-in headset.  The connection to the services, if any, is dropped
+     * first so that it cannot report the real headset in the meantime.
+     */
+    @VisibleForTesting
+    void connectForTesting(@NonNull Headset headset) {
+        mHandler.post(() -> {
+            if (mRegistered && !mStandIn) {
+                Log.v(TAG, "Unregistering Iristick listener for stand-in headset");
+                IristickApp.unregisterConnectionListener(mConnection);
+                mFailed = false;
+            }
+            mRegistered = true;
+            mStandIn = true;
+            mConnection.onHeadsetConnected(headset);
+        });
+    }
+
+    /** Disconnect right away. */
+    void dispose() {
+        mHandler.post(() -> {
+            mListeners.clear();
+            mHandler.removeCallbacks(mUnregister);
+            mUnregister.run();
+        });
+    }
+
+    /* Called on main thread */
+
+    private void register() {
+        if (mRegistered)
+            return;
+        Log.v(TAG, "Registering Iristick listener");
+        mRegistered = true;
+        WizzeyeApplication.initIristick();
+        IristickApp.registerConnectionListener(mConnection, mHandler);
+    }
+
+    private void scheduleStandby() {
+        mHandler.removeCallbacks(mUnregister);
+        if (mListeners.isEmpty())
+            mHandler.postDelayed(mUnregister, STANDBY_MS);
+    }
+
+    private final IristickConnection mConnection = new IristickConnection() {
+        @Override
+        public void onHeadsetConnected(Headset headset) {
+            mHeadset = headset;
+            for (Listener listener : new ArrayList<>(mListeners))
+                listener.onHeadsetConnected(headset);
+        }
+        @Override
+        public void onHeadsetDisconnected(Headset headset) {
+            mHeadset = null;
+            for (Listener listener : new ArrayList<>(mListeners))
+                listener.onHeadsetDisconnected();
+        }
+        @Override
+        public void onIristickServiceInitialized(IristickBinding binding) {
+            mFailed = false;
+        }
+        @Override
+        public void onIristickServiceError(int error) {
+            mFailed = true;
+            mError = error;
+            for (Listener listener : new ArrayList<>(mListeners))
+                listener.onIristickServiceError(error);
+        }
+    };
+
+    private final Runnable mUnregister = () -> {
+        if (!mRegistered || !mListeners.isEmpty())
+            return;
+        Log.v(TAG, "Unregistering Iristick listener");
+        if (!mStandIn)
+            IristickApp.unregisterConnectionListener(mConnection);
+        mRegistered = false;
+        mStandIn = false;
+        mHeadset = null;
+        mFailed = false;
+    };
+
+}
@@ -23,11 +23,16 @@ package app.wizzeye.app.service;
 import android.content.Context;
 import android.graphics.ImageFormat;
 import android.graphics.Point;
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.hardware.camera2.params.MeteringRectangle;
 import android.media.Image;
 import android.media.ImageReader;
 import android.media.MediaScannerConnection;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
@@ -53,6 +58,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -65,18 +71,45 @@ import app.wizzeye.app.R;
 
 class IristickCapturer implements CameraVideoCapturer {
 
+    /** Receives autofocus progress.  Called on the camera thread. */
+    interface FocusListener {
+        /** Autofocus started converging on {@code point}, or on the whole frame if null. */
+        void onFocusStarted(@Nullable PointF point);
+        /** Autofocus stopped converging.  {@code durationMs} is negative if the scan was aborted. */
+        void onFocusFinished(boolean locked, long durationMs);
+    }
+
+    /** Receives camera switches.  Called on the camera thread. */
+    interface CameraSwitchListener {
+        /**
+         * The first frame of a camera other than the previous one has been captured, including
+         * the very first camera.  {@code zoomCamera} tells whether it is the zoom camera.
+         */
+        void onCameraSwitched(boolean zoomCamera);
+    }
+
     private static final String TAG = "IristickCapturer";
 
+    /** Side of the AF region, relative to the shortest side of the visible frame */
+    private static final float AF_REGION_SIZE = 0.2f;
+
     private static final DateFormat PICTURE_FILENAME = new SimpleDateFormat("'IMG_'yyyyMMdd_HHmmssSSS'.jpg'", Locale.US);
 
     private static final int MSG_SET_ZOOM = 0;          // arg1 = zoom level
-    private static final int MSG_TRIGGER_AF = 1;        // empty
+    private static final int MSG_TRIGGER_AF = 1;        // obj = (PointF) focus point, or null
     private static final int MSG_TAKE_PICTURE = 2;      // empty
 
     /* Initialized by constructor */
     private final Headset mHeadset;
     private final CameraEventsHandler mEvents;
+    private final FocusListener mFocusListener;
+    private final CameraSwitchListener mSwitchListener;
+    private final FrameTaps mFrameTaps;
+    private final BufferPool mBufferPool;
+    private final CallMetrics mMetrics;
     private final String[] mCameraNames;
+    /* Sinks of the frames as captured, guarded by themselves */
+    private final List<VideoSink> mSinks = new ArrayList<>();
 
     /* Initialized by initialize() */
     private SurfaceTextureHelper mSurfaceHelper;
@@ -85,6 +118,8 @@ class IristickCapturer implements CameraVideoCapturer {
     private Handler mCameraThreadHandler;
     private Handler mMessageHandler;
     private ImageReader mImageReader;
+    private HandlerThread mPictureThread;
+    private Handler mPictureHandler;
 
     /* State objects guarded by mStateLock */
     private final Object mStateLock = new Object();
@@ -100,8 +135,21 @@ class IristickCapturer implements CameraVideoCapturer {
     private Surface mSurface;
     private CaptureSession mCaptureSession;
     private boolean mFirstFrameObserved;
-
-    IristickCapturer(@NonNull Headset headset, @Nullable CameraEventsHandler eventsHandler, int zoom) {
+    private boolean mAfSupported;
+    private Rect mActiveArray;
+    private MeteringRectangle[] mAfRegions;
+    private long mAfStartTime;      // 0 when not converging
+    private int mAfState;
+    private long mOpenStartNs;
+    private long mConfiguredNs;
+    private long mSwitchStartNs;    // 0 when not switching cameras
+    private int mReportedCameraIdx = -1;
+    private long mRecoveryStartNs;  // 0 when not recovering from a failure
+    private long mLastFrameNs;      // 0 before the first frame of a session
+
+    IristickCapturer(@NonNull Headset headset, @Nullable CameraEventsHandler eventsHandler,
+                     @Nullable FocusListener focusListener, @Nullable CameraSwitchListener switchListener,
+                     @NonNull FrameTaps frameTaps, @NonNull BufferPool bufferPool, @NonNull CallMetrics metrics, int zoom) {
         if (eventsHandler == null) {
             eventsHandler = new CameraEventsHandler() {
                 @Override
@@ -118,8 +166,23 @@ class IristickCapturer implements CameraVideoCapturer {
                 public void onCameraClosed() {}
             };
         }
+        if (focusListener == null) {
+            focusListener = new FocusListener() {
+                @Override
+                public void onFocusStarted(@Nullable PointF point) {}
+                @Override
+                public void onFocusFinished(boolean locked, long durationMs) {}
+            };
+        }
+        if (switchListener == null)
+            switchListener = zoomCamera -> {};
         mHeadset = headset;
         mEvents = eventsHandler;
+        mFocusListener = focusListener;
+        mSwitchListener = switchListener;
+        mFrameTaps = frameTaps;
+        mBufferPool = bufferPool;
+        mMetrics = metrics;
         mZoom = zoom;
         mCameraNames = headset.getCameraIdList();
     }
@@ -138,6 +201,9 @@ class IristickCapturer implements CameraVideoCapturer {
         mImageReader = ImageReader.newInstance(sizes[0].x, sizes[0].y,
             ImageFormat.JPEG, 2);
         mImageReader.setOnImageAvailableListener(mImageReaderListener, mCameraThreadHandler);
+        mPictureThread = new HandlerThread("PictureWriter");
+        mPictureThread.start();
+        mPictureHandler = new Handler(mPictureThread.getLooper());
     }
 
     @Override
@@ -153,10 +219,11 @@ class IristickCapturer implements CameraVideoCapturer {
                 return;
             }
 
-            mCameraIdx = (mCameraNames.length >= 2 && mZoom > 0 ? 1 : 0);
+            mCameraIdx = (hasZoomCamera() && mZoom > 0 ? 1 : 0);
             mWidth = width;
             mHeight = height;
             mFramerate = framerate;
+            mRecoveryStartNs = 0;
 
             openCamera(true);
         }
@@ -202,6 +269,8 @@ class IristickCapturer implements CameraVideoCapturer {
     @Override
     public void dispose() {
         stopCapture();
+        if (mPictureThread != null)
+            mPictureThread.quitSafely();
     }
 
     @Override
@@ -214,12 +283,39 @@ class IristickCapturer implements CameraVideoCapturer {
         throw new UnsupportedOperationException();
     }
 
+    /** @return whether the headset has a separate camera used for zoomed-in views */
+    boolean hasZoomCamera() {
+        return mCameraNames.length >= 2;
+    }
+
+    /**
+     * Add a sink getting the frames as captured, before the video sources scale them down to
+     * the layers sent to the observers.  The sink is called on the capture thread.
+     */
+    void addSink(@NonNull VideoSink sink) {
+        synchronized (mSinks) {
+            mSinks.add(sink);
+        }
+    }
+
+    /** Remove a sink; it does not get any frame once this returns. */
+    void removeSink(@NonNull VideoSink sink) {
+        synchronized (mSinks) {
+            mSinks.remove(sink);
+        }
+    }
+
     void setZoom(int zoom) {
         mMessageHandler.obtainMessage(MSG_SET_ZOOM, zoom, 0).sendToTarget();
     }
 
-    void triggerAF() {
-        mMessageHandler.obtainMessage(MSG_TRIGGER_AF).sendToTarget();
+    /**
+     * Trigger autofocus on a point of the frame.
+     *
+     * @param point Coordinates from 0 to 1 over the captured frame, or null for the whole frame.
+     */
+    void triggerAF(@Nullable PointF point) {
+        mMessageHandler.obtainMessage(MSG_TRIGGER_AF, point).sendToTarget();
     }
 
     void takePicture() {
@@ -232,6 +328,7 @@ class IristickCapturer implements CameraVideoCapturer {
                 mFailureCount = 0;
             closeCamera();
             mSessionOpening = true;
+            mOpenStartNs = System.nanoTime();
             mCameraThreadHandler.post(() -> {
                 synchronized (mStateLock) {
                     if (mCameraIdx >= mCameraNames.length) {
@@ -268,6 +365,12 @@ class IristickCapturer implements CameraVideoCapturer {
             mCaptureSession = null;
             mSurface = null;
             mCamera = null;
+            mLastFrameNs = 0;
+            mCameraThreadHandler.removeCallbacks(mInitialAF);
+            if (mAfStartTime != 0) {
+                mAfStartTime = 0;
+                mFocusListener.onFocusFinished(false, -1);
+            }
         }
     }
 
@@ -281,6 +384,9 @@ class IristickCapturer implements CameraVideoCapturer {
     private void handleFailure(String error) {
         checkIsOnCameraThread();
         synchronized (mStateLock) {
+            mMetrics.increment(CallMetrics.CAMERA_FAILURES);
+            if (mRecoveryStartNs == 0)
+                mRecoveryStartNs = System.nanoTime();
             if (mSessionOpening) {
                 if (mCamera != null) {
                     mCamera.close();
@@ -309,8 +415,31 @@ class IristickCapturer implements CameraVideoCapturer {
 
     private void setupCaptureRequest(CaptureRequest.Builder builder) {
         builder.set(CaptureRequest.SCALER_ZOOM, (float)(1 << Math.max(0, mZoom - 1)));
-        if (mCameraIdx == 1)
+        if (mAfSupported) {
             builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_AUTO);
+            if (mAfRegions != null)
+                builder.set(CaptureRequest.CONTROL_AF_REGIONS, mAfRegions);
+        }
+    }
+
+    /**
+     * Compute the AF region around a point of the visible frame.  The digital zoom crops the
+     * center of the sensor, so the point is mapped back to sensor coordinates first.
+     */
+    private MeteringRectangle[] computeAFRegions(PointF point) {
+        Rect array = mActiveArray != null ? mActiveArray : new Rect(0, 0, mWidth, mHeight);
+        float zoom = 1 << Math.max(0, mZoom - 1);
+        float cx = 0.5f + (Math.max(0, Math.min(1, point.x)) - 0.5f) / zoom;
+        float cy = 0.5f + (Math.max(0, Math.min(1, point.y)) - 0.5f) / zoom;
+        int half = (int) (Math.min(array.width(), array.height()) * AF_REGION_SIZE / zoom / 2);
+        int x = array.left + (int) (cx * array.width());
+        int y = array.top + (int) (cy * array.height());
+        Rect region = new Rect(
+            Math.max(array.left, x - half), Math.max(array.top, y - half),
+            Math.min(array.right - 1, x + half), Math.min(array.bottom - 1, y + half));
+        return new MeteringRectangle[] {
+            new MeteringRectangle(region, MeteringRectangle.METERING_WEIGHT_MAX),
+        };
     }
 
     private void applyParametersInternal() {
@@ -320,9 +449,10 @@ class IristickCapturer implements CameraVideoCapturer {
             if (mSessionOpening || mStopping || mCaptureSession == null)
                 return;
 
-            if (mCameraNames.length >= 2 &&
+            if (hasZoomCamera() &&
                     ((mZoom == 0 && mCameraIdx != 0) || (mZoom > 0 && mCameraIdx != 1))) {
                 Log.d(TAG, "Switching cameras");
+                mSwitchStartNs = System.nanoTime();
                 mCameraIdx = (mCameraIdx + 1) % 2;
                 openCamera(true);
             } else {
@@ -330,23 +460,51 @@ class IristickCapturer implements CameraVideoCapturer {
                 builder.addTarget(mSurface);
                 builder.set(CaptureRequest.SENSOR_FRAME_DURATION, 1000000000L / mFramerate);
                 setupCaptureRequest(builder);
-                mCaptureSession.setRepeatingRequest(builder.build(), null, null);
+                mCaptureSession.setRepeatingRequest(builder.build(),
+                    mAfSupported ? mFocusCaptureListener : null, mCameraThreadHandler);
             }
         }
     }
 
-    private void triggerAFInternal() {
-        Log.d(TAG, "triggerAFInternal");
+    private void triggerAFInternal(@Nullable PointF point) {
+        Log.d(TAG, "triggerAFInternal: " + point);
         checkIsOnCameraThread();
         synchronized (mStateLock) {
-            if (mCameraIdx != 1 || mSessionOpening || mStopping || mCaptureSession == null)
+            if (!mAfSupported || mSessionOpening || mStopping || mCaptureSession == null)
+                return;
+
+            /* Keep the regions in the repeating request, or AF would drift back to the center */
+            mAfRegions = (point != null ? computeAFRegions(point) : null);
+            applyParametersInternal();
+            if (mCaptureSession == null)
                 return;
 
             CaptureRequest.Builder builder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             builder.addTarget(mSurface);
             setupCaptureRequest(builder);
             builder.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_START);
-            mCaptureSession.capture(builder.build(), null, null);
+            mCaptureSession.capture(builder.build(), mFocusCaptureListener, mCameraThreadHandler);
+
+            mAfStartTime = SystemClock.elapsedRealtime();
+            mFocusListener.onFocusStarted(point);
+        }
+    }
+
+    private void updateAFState(int state) {
+        synchronized (mStateLock) {
+            if (state == mAfState)
+                return;
+            mAfState = state;
+            if (mAfStartTime == 0)
+                return;
+            if (state == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED ||
+                    state == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED) {
+                long duration = SystemClock.elapsedRealtime() - mAfStartTime;
+                mAfStartTime = 0;
+                Log.d(TAG, "AF " + (state == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED ? "locked" : "failed")
+                    + " after " + duration + "ms");
+                mFocusListener.onFocusFinished(state == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED, duration);
+            }
         }
     }
 
@@ -375,7 +533,7 @@ class IristickCapturer implements CameraVideoCapturer {
             }
             return true;
         case MSG_TRIGGER_AF:
-            triggerAFInternal();
+            triggerAFInternal((PointF) msg.obj);
             return true;
         case MSG_TAKE_PICTURE:
             takePictureInternal();
@@ -391,6 +549,20 @@ class IristickCapturer implements CameraVideoCapturer {
             synchronized (mStateLock) {
                 mCamera = device;
 
+                CameraCharacteristics characteristics = mHeadset.getCameraCharacteristics(mCameraNames[mCameraIdx]);
+                int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+                if (afModes != null) {
+                    mAfSupported = false;
+                    for (int mode : afModes)
+                        mAfSupported |= (mode == CaptureRequest.CONTROL_AF_MODE_AUTO);
+                } else {
+                    /* Only the zoom camera has a focus motor */
+                    mAfSupported = (mCameraIdx == 1);
+                }
+                mActiveArray = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+                mAfRegions = null;
+                mAfState = CaptureResult.CONTROL_AF_STATE_INACTIVE;
+
                 mSurfaceHelper.setTextureSize(mWidth, mHeight);
                 mSurface = new Surface(mSurfaceHelper.getSurfaceTexture());
 
@@ -437,10 +609,16 @@ class IristickCapturer implements CameraVideoCapturer {
                 mSessionOpening = false;
                 mCaptureSession = session;
                 mFirstFrameObserved = false;
+                mConfiguredNs = System.nanoTime();
+                mMetrics.addSample(CallMetrics.CAMERA_OPEN_TIME, (mConfiguredNs - mOpenStartNs) / 1e6);
+                if (mRecoveryStartNs != 0) {
+                    mMetrics.addSample(CallMetrics.CAMERA_RECOVERY_TIME, (mConfiguredNs - mRecoveryStartNs) / 1e6);
+                    mRecoveryStartNs = 0;
+                }
                 mStateLock.notifyAll();
-                if (mCameraIdx == 1) {
-                    mCameraThreadHandler.removeCallbacks(IristickCapturer.this::triggerAFInternal);
-                    mCameraThreadHandler.postDelayed(IristickCapturer.this::triggerAFInternal, 500);
+                if (mAfSupported) {
+                    mCameraThreadHandler.removeCallbacks(mInitialAF);
+                    mCameraThreadHandler.postDelayed(mInitialAF, 500);
                 }
                 applyParametersInternal();
             }
@@ -464,6 +642,8 @@ class IristickCapturer implements CameraVideoCapturer {
         public void onReady(CaptureSession session) {}
     };
 
+    private final Runnable mInitialAF = () -> triggerAFInternal(null);
+
     private final VideoSink mSink = new VideoSink() {
         @Override
         public void onFrame(VideoFrame frame) {
@@ -471,47 +651,79 @@ class IristickCapturer implements CameraVideoCapturer {
             synchronized (mStateLock) {
                 if (mCaptureSession == null)
                     return;
+                long now = System.nanoTime();
                 if (!mFirstFrameObserved) {
                     mEvents.onFirstFrameAvailable();
                     mFirstFrameObserved = true;
+                    mMetrics.addSample(CallMetrics.CAMERA_FIRST_FRAME_TIME, (now - mConfiguredNs) / 1e6);
+                    if (mSwitchStartNs != 0) {
+                        mMetrics.addSample(CallMetrics.CAMERA_SWITCH_TIME, (now - mSwitchStartNs) / 1e6);
+                        mSwitchStartNs = 0;
+                    }
+                    if (mCameraIdx != mReportedCameraIdx) {
+                        mReportedCameraIdx = mCameraIdx;
+                        mSwitchListener.onCameraSwitched(hasZoomCamera() && mCameraIdx == 1);
+                    }
                 }
+                if (mLastFrameNs != 0)
+                    mMetrics.addSample(CallMetrics.CAMERA_FRAME_INTERVAL, (now - mLastFrameNs) / 1e6);
+                mLastFrameNs = now;
                 mObserver.onFrameCaptured(frame);
             }
+            synchronized (mSinks) {
+                for (VideoSink sink : mSinks)
+                    sink.onFrame(frame);
+            }
+            /* Outside of the state lock, conversions for the taps may take a few milliseconds */
+            mFrameTaps.onFrame(frame);
         }
     };
 
+    /* Called on picture thread */
+
+    private void writePicture(BufferPool.Lease picture) {
+        try (BufferPool.Lease lease = picture) {
+            File dir = new File(
+                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES),
+                mContext.getString(R.string.app_name));
+            if (!dir.exists()) {
+                if (!dir.mkdirs()) {
+                    Log.e(TAG, "Failed to create directory " + dir.getPath());
+                    Toast.makeText(mContext, R.string.call_toast_picture_fail, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+            }
+
+            File file = new File(dir, PICTURE_FILENAME.format(new Date()));
+            try (OutputStream os = new FileOutputStream(file)) {
+                Channels.newChannel(os).write(lease.buffer());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write capture to " + file.getPath(), e);
+                Toast.makeText(mContext, R.string.call_toast_picture_fail, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            MediaScannerConnection.scanFile(mContext, new String[] { file.toString() }, null, null);
+            Toast.makeText(mContext, R.string.call_toast_picture_taken, Toast.LENGTH_SHORT).show();
+        }
+    }
+
     private final ImageReader.OnImageAvailableListener mImageReaderListener = new ImageReader.OnImageAvailableListener() {
         @Override
         public void onImageAvailable(ImageReader reader) {
             Log.d(TAG, "onImageAvailable");
+            final BufferPool.Lease lease;
             try (final Image image = reader.acquireLatestImage()) {
                 if (image == null) {
                     Log.w(TAG, "No image available in callback");
                     return;
                 }
-
-                File dir = new File(
-                    Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES),
-                    mContext.getString(R.string.app_name));
-                if (!dir.exists()) {
-                    if (!dir.mkdirs()) {
-                        Log.e(TAG, "Failed to create directory " + dir.getPath());
-                        Toast.makeText(mContext, R.string.call_toast_picture_fail, Toast.LENGTH_SHORT).show();
-                        return;
-                    }
-                }
-
-                File file = new File(dir, PICTURE_FILENAME.format(new Date()));
-                try (OutputStream os = new FileOutputStream(file)) {
-                    Channels.newChannel(os).write(image.getPlanes()[0].getBuffer());
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to write capture to " + file.getPath(), e);
-                    Toast.makeText(mContext, R.string.call_toast_picture_fail, Toast.LENGTH_SHORT).show();
-                    return;
-                }
-                MediaScannerConnection.scanFile(mContext, new String[] { file.toString() }, null, null);
-                Toast.makeText(mContext, R.string.call_toast_picture_taken, Toast.LENGTH_SHORT).show();
+                /* Copy the picture so the image is returned right away and the camera thread does
+                 * not wait on storage */
+                ByteBuffer data = image.getPlanes()[0].getBuffer();
+                lease = mBufferPool.lease(data.remaining());
+                lease.buffer().put(data).flip();
             }
+            mPictureHandler.post(() -> writePicture(lease));
         }
     };
 
@@ -541,4 +753,33 @@ class IristickCapturer implements CameraVideoCapturer {
         public void onCaptureSequenceAborted(CaptureSession session, int sequenceId) {
         }
     };
+
+    private final CaptureListener mFocusCaptureListener = new CaptureListener() {
+        @Override
+        public void onCaptureStarted(CaptureSession session, CaptureRequest request, long timestamp, long frameNumber) {
+        }
+
+        @Override
+        public void onCaptureBufferLost(CaptureSession session, CaptureRequest request, Surface surface, long frameNumber) {
+        }
+
+        @Override
+        public void onCaptureCompleted(CaptureSession session, CaptureRequest request, CaptureResult result) {
+            Integer state = result.get(CaptureResult.CONTROL_AF_STATE);
+            if (state != null)
+                updateAFState(state);
+        }
+
+        @Override
+        public void onCaptureFailed(CaptureSession session, CaptureRequest request, CaptureFailure failure) {
+        }
+
+        @Override
+        public void onCaptureSequenceCompleted(CaptureSession session, int sequenceId, long frameNumber) {
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(CaptureSession session, int sequenceId) {
+        }
+    };
 }
@@ -0,0 +1,163 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.Size;
+
+/**
+ * Lower the capture load of a call when the phone heats up or runs out of battery.
+ *
+ * Android only reports the thermal status of the device from API 29 on, so the battery
+ * temperature is used instead: it follows the temperature of the phone closely, and is what
+ * the phone itself uses to decide to throttle.  Thresholds come with a hysteresis so that the
+ * level does not flap around a threshold.
+ *
+ * Runs on the main thread.
+ */
+final class PowerGovernor extends BroadcastReceiver {
+
+    enum Level {
+        /** Capture as configured */
+        NORMAL(30, 0, PreviewMode.FULL, true),
+        /** Lower framerate, minimal preview, no clip buffer */
+        REDUCED(20, 0, PreviewMode.MINIMAL, false),
+        /** Lower framerate and resolution, no preview, no clip buffer */
+        CRITICAL(15, 1, PreviewMode.OFF, false),
+        ;
+
+        /** Capture framerate */
+        final int framerate;
+        /** Number of {@link CallQuality} steps below the quality of the call for the resolution */
+        final int qualityDrop;
+        /** Lightest preview mode allowed */
+        final PreviewMode minPreview;
+        /** Whether the clip buffer may run its own encoder */
+        final boolean clipBuffer;
+
+        Level(int framerate, int qualityDrop, PreviewMode minPreview, boolean clipBuffer) {
+            this.framerate = framerate;
+            this.qualityDrop = qualityDrop;
+            this.minPreview = minPreview;
+            this.clipBuffer = clipBuffer;
+        }
+
+        @NonNull
+        Size frameSize(@NonNull CallQuality quality) {
+            return CallQuality.values()[Math.max(0, quality.ordinal() - qualityDrop)].frameSize;
+        }
+
+        @NonNull
+        PreviewMode limitPreview(@NonNull PreviewMode mode) {
+            return mode.ordinal() >= minPreview.ordinal() ? mode : minPreview;
+        }
+    }
+
+    private static final String TAG = "PowerGovernor";
+
+    /** Battery temperatures for REDUCED and CRITICAL, in tenths of °C */
+    private static final int TEMPERATURE_REDUCED = 420;
+    private static final int TEMPERATURE_CRITICAL = 450;
+    private static final int TEMPERATURE_HYSTERESIS = 20;
+    /** Battery levels for REDUCED and CRITICAL when not charging, in percent */
+    private static final int BATTERY_REDUCED = 20;
+    private static final int BATTERY_CRITICAL = 10;
+    private static final int BATTERY_HYSTERESIS = 5;
+
+    private final Context mContext;
+    private final PowerManager mPowerManager;
+    private final Call mCall;
+    private Level mLevel = Level.NORMAL;
+    private Intent mLastBatteryStatus;
+
+    PowerGovernor(@NonNull Context context, @NonNull Call call) {
+        mContext = context;
+        mPowerManager = context.getSystemService(PowerManager.class);
+        mCall = call;
+    }
+
+    void start() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        /* The battery status is sticky: evaluated right away */
+        mContext.registerReceiver(this, filter);
+    }
+
+    void stop() {
+        mContext.unregisterReceiver(this);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction()))
+            mLastBatteryStatus = intent;
+        if (mLastBatteryStatus == null)
+            return;
+
+        int temperature = mLastBatteryStatus.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+        int level = mLastBatteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = mLastBatteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+        int battery = level >= 0 && scale > 0 ? level * 100 / scale : 100;
+        boolean charging = mLastBatteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        boolean powerSave = mPowerManager.isPowerSaveMode();
+        CallMetrics metrics = mCall.getMetrics();
+        metrics.addSample(CallMetrics.POWER_BATTERY_TEMPERATURE, temperature / 10.0);
+
+        /* Going down a level is immediate, going back up needs some margin */
+        int critical = (mLevel == Level.CRITICAL ? 1 : 0);
+        int reduced = (mLevel != Level.NORMAL ? 1 : 0);
+        Level newLevel = Level.NORMAL;
+        String reason = "nominal";
+        if (temperature >= TEMPERATURE_CRITICAL - critical * TEMPERATURE_HYSTERESIS) {
+            newLevel = Level.CRITICAL;
+            reason = "temperature " + temperature / 10.0 + "°C";
+        } else if (!charging && battery <= BATTERY_CRITICAL + critical * BATTERY_HYSTERESIS) {
+            newLevel = Level.CRITICAL;
+            reason = "battery " + battery + "%";
+        } else if (temperature >= TEMPERATURE_REDUCED - reduced * TEMPERATURE_HYSTERESIS) {
+            newLevel = Level.REDUCED;
+            reason = "temperature " + temperature / 10.0 + "°C";
+        } else if (!charging && battery <= BATTERY_REDUCED + reduced * BATTERY_HYSTERESIS) {
+            newLevel = Level.REDUCED;
+            reason = "battery " + battery + "%";
+        } else if (powerSave) {
+            newLevel = Level.REDUCED;
+            reason = "power save mode";
+        }
+
+        if (newLevel == mLevel)
+            return;
+        Log.i(TAG, "Power level " + mLevel + " -> " + newLevel + ": " + reason);
+        metrics.increment(CallMetrics.POWER_LEVEL_CHANGES);
+        metrics.setValue(CallMetrics.POWER_LEVEL, newLevel + " (" + reason + ")");
+        mLevel = newLevel;
+        mCall.setPowerLevel(newLevel);
+    }
+
+}
@@ -0,0 +1,47 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+/**
+ * How the local video is previewed on screen.  The preview is drawn separately from the encoded
+ * video, so lowering its rate and resolution saves GPU work without affecting the observers.
+ */
+public enum PreviewMode {
+    /** Every frame at the capture resolution */
+    FULL(0, 1),
+    /** At most 15 frames per second, at half the capture resolution */
+    LIGHT(15, 2),
+    /** At most 5 frames per second, at a quarter of the capture resolution */
+    MINIMAL(5, 4),
+    /** No preview at all */
+    OFF(0, 0),
+    ;
+
+    /** Maximum number of frames per second, 0 for no limit */
+    public final int maxFramerate;
+    /** Divider of the capture resolution, 0 to disable the preview */
+    public final int downscale;
+
+    PreviewMode(int maxFramerate, int downscale) {
+        this.maxFramerate = maxFramerate;
+        this.downscale = downscale;
+    }
+}
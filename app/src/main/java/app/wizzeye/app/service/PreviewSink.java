@@ -0,0 +1,81 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.support.annotation.NonNull;
+
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+
+/**
+ * Sink forwarding the local video to a preview according to a {@link PreviewMode}.
+ *
+ * Frames above the maximum framerate are skipped before reaching the renderer thread.
+ * Downscaling only changes the size of the texture buffer: the renderer then draws on a smaller
+ * surface that is scaled up by the display hardware.
+ */
+class PreviewSink implements VideoSink {
+
+    private final VideoSink mTarget;
+    private volatile PreviewMode mMode;
+
+    /* Capture thread */
+    private long mNextFrameNs;
+
+    PreviewSink(@NonNull VideoSink target, @NonNull PreviewMode mode) {
+        mTarget = target;
+        mMode = mode;
+    }
+
+    void setMode(@NonNull PreviewMode mode) {
+        mMode = mode;
+    }
+
+    @Override
+    public void onFrame(VideoFrame frame) {
+        final PreviewMode mode = mMode;
+        if (mode.downscale == 0)
+            return;
+
+        if (mode.maxFramerate > 0) {
+            /* Same pacing as the frame rate reduction of EglRenderer */
+            long now = frame.getTimestampNs();
+            if (now < mNextFrameNs)
+                return;
+            mNextFrameNs = Math.max(mNextFrameNs + 1000000000L / mode.maxFramerate, now);
+        }
+
+        if (mode.downscale == 1) {
+            mTarget.onFrame(frame);
+            return;
+        }
+        VideoFrame.Buffer buffer = frame.getBuffer();
+        int width = buffer.getWidth();
+        int height = buffer.getHeight();
+        VideoFrame scaled = new VideoFrame(
+            buffer.cropAndScale(0, 0, width, height,
+                                (width / mode.downscale) & ~1, (height / mode.downscale) & ~1),
+            frame.getRotation(), frame.getTimestampNs());
+        mTarget.onFrame(scaled);
+        scaled.release();
+    }
+
+}
@@ -0,0 +1,236 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.ChecksumException;
+import com.google.zxing.FormatException;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+import com.iristick.smartglass.core.Headset;
+
+import org.webrtc.CameraVideoCapturer;
+import org.webrtc.CapturerObserver;
+import org.webrtc.EglBase;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoFrame;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decoder of QR codes in the captured video.
+ *
+ * The scanner is a low-rate {@link FrameTap}: frames are scaled down on the GPU and sampled a few
+ * times per second, then only their luminance is decoded on a background thread.  Frames arriving
+ * while a decode runs are dropped, so the live stream never waits for the scanner.
+ *
+ * It either taps the capture of a running call, or opens the headset camera on its own when
+ * there is none.  A scanner is used once: it cannot be restarted after {@link #stop()}.
+ */
+public final class QrScanner {
+
+    public interface Listener {
+        /** Called on the main thread for each newly decoded text. */
+        void onQrCodeScanned(@NonNull String text);
+        /** Called on the main thread when the camera could not be opened; the scanner is stopped. */
+        void onQrScanError();
+    }
+
+    private static final String TAG = "QrScanner";
+
+    /** Frames are decoded at most at this size and rate */
+    private static final int SCAN_WIDTH = 640;
+    private static final int SCAN_HEIGHT = 480;
+    private static final int SCAN_FRAMERATE = 4;
+    /** Capture format when the scanner opens the camera itself */
+    private static final int CAPTURE_WIDTH = 1280;
+    private static final int CAPTURE_HEIGHT = 720;
+    private static final int CAPTURE_FRAMERATE = 15;
+
+    private final Listener mListener;
+    private final Handler mMainThreadHandler = new Handler();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(r -> new Thread(() -> {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        r.run();
+    }, TAG));
+    private final FrameTap mTap = new FrameTap(FrameTap.Format.I420, SCAN_WIDTH, SCAN_HEIGHT, SCAN_FRAMERATE,
+                                               mExecutor, this::decode);
+    private volatile CallMetrics mMetrics;
+    private volatile boolean mStopped;
+
+    /* Main thread */
+    private Call mCall;
+    private EglBase mEglBase;
+    private SurfaceTextureHelper mSurfaceTextureHelper;
+    private IristickCapturer mCapturer;
+
+    /* Decoder thread */
+    private final QRCodeReader mReader = new QRCodeReader();
+    private byte[] mLuminance;
+    private String mLastText;
+
+    public QrScanner(@NonNull Listener listener) {
+        mListener = listener;
+    }
+
+    /** Scan the video of a running call.  The metrics are added to those of the call. */
+    public void start(@NonNull Call call) {
+        mMetrics = call.getMetrics();
+        mCall = call;
+        call.addFrameTap(mTap);
+    }
+
+    /** Open the camera of the headset to scan; it must not be used by a call. */
+    public void start(@NonNull Context context, @NonNull Headset headset) {
+        mMetrics = new CallMetrics();
+        /* Nothing leases buffers for I420 taps nor pictures: do not keep any */
+        BufferPool bufferPool = new BufferPool(0);
+        FrameTaps taps = new FrameTaps(bufferPool, mMetrics);
+        taps.add(mTap);
+        mEglBase = EglBase.create();
+        mSurfaceTextureHelper = SurfaceTextureHelper.create("QrScannerCapture", mEglBase.getEglBaseContext());
+        mCapturer = new IristickCapturer(headset, mCameraEvents, null, null, taps, bufferPool, mMetrics, 0);
+        mCapturer.initialize(mSurfaceTextureHelper, context.getApplicationContext(), mCapturerObserver);
+        mCapturer.startCapture(CAPTURE_WIDTH, CAPTURE_HEIGHT, CAPTURE_FRAMERATE);
+    }
+
+    public void stop() {
+        if (mStopped)
+            return;
+        mStopped = true;
+        if (mCall != null) {
+            mCall.removeFrameTap(mTap);
+            mCall = null;
+        }
+        if (mCapturer != null) {
+            mCapturer.dispose();
+            mCapturer = null;
+            mSurfaceTextureHelper.dispose();
+            mSurfaceTextureHelper = null;
+            mEglBase.release();
+            mEglBase = null;
+            Log.i(TAG, "Metrics:\n" + mMetrics);
+        }
+        mExecutor.shutdown();
+    }
+
+    private void fail(String error) {
+        Log.e(TAG, error);
+        mMainThreadHandler.post(() -> {
+            if (mStopped)
+                return;
+            stop();
+            mListener.onQrScanError();
+        });
+    }
+
+    /* Called on decoder thread */
+
+    private void decode(FrameTap.Frame frame) {
+        if (mStopped)
+            return;
+        long startNs = System.nanoTime();
+        long startCpuMs = SystemClock.currentThreadTimeMillis();
+
+        /* The luminance is all the decoder needs */
+        VideoFrame.I420Buffer buffer = (VideoFrame.I420Buffer) frame.getBuffer();
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        if (mLuminance == null || mLuminance.length != width * height)
+            mLuminance = new byte[width * height];
+        ByteBuffer dataY = buffer.getDataY().duplicate();
+        int strideY = buffer.getStrideY();
+        for (int row = 0; row < height; row++) {
+            dataY.position(row * strideY);
+            dataY.get(mLuminance, row * width, width);
+        }
+
+        String text = null;
+        try {
+            BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(
+                new PlanarYUVLuminanceSource(mLuminance, width, height, 0, 0, width, height, false)));
+            text = mReader.decode(bitmap).getText();
+        } catch (NotFoundException | ChecksumException | FormatException e) {
+            // no readable code in this frame
+        } finally {
+            mReader.reset();
+        }
+
+        CallMetrics metrics = mMetrics;
+        metrics.addSample(CallMetrics.QR_DECODE_TIME, (System.nanoTime() - startNs) / 1e6);
+        metrics.addSample(CallMetrics.QR_CPU_TIME, SystemClock.currentThreadTimeMillis() - startCpuMs);
+        if (text == null || text.equals(mLastText))
+            return;
+        /* Frame timestamps come from the same monotonic clock */
+        metrics.addSample(CallMetrics.QR_LATENCY, (System.nanoTime() - frame.getTimestampNs()) / 1e6);
+        mLastText = text;
+        final String result = text;
+        mMainThreadHandler.post(() -> {
+            if (!mStopped)
+                mListener.onQrCodeScanned(result);
+        });
+    }
+
+    /* Listeners of the own capture pipeline */
+
+    private final CapturerObserver mCapturerObserver = new CapturerObserver() {
+        @Override
+        public void onCapturerStarted(boolean success) {
+            if (!success)
+                fail("Camera failed to start");
+        }
+        @Override
+        public void onCapturerStopped() {}
+        @Override
+        public void onFrameCaptured(VideoFrame frame) {}
+    };
+
+    private final CameraVideoCapturer.CameraEventsHandler mCameraEvents = new CameraVideoCapturer.CameraEventsHandler() {
+        @Override
+        public void onCameraError(String error) {
+            fail("Camera error: " + error);
+        }
+        @Override
+        public void onCameraDisconnected() {
+            fail("Camera disconnected");
+        }
+        @Override
+        public void onCameraFreezed(String error) {}
+        @Override
+        public void onCameraOpening(String name) {}
+        @Override
+        public void onFirstFrameAvailable() {}
+        @Override
+        public void onCameraClosed() {}
+    };
+
+}
@@ -0,0 +1,125 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Command received from an observer over the control data channel.
+ *
+ * Commands are encoded in binary, big-endian: one byte holding the type, a 16-bit sequence
+ * number and type-specific arguments.  Coordinates are normalized to the video frame, from 0
+ * (left/top) to 65535 (right/bottom).
+ * <ul>
+ * <li>POINTER: x (u16), y (u16)</li>
+ * <li>POINTER_HIDE: no arguments</li>
+ * <li>ZOOM: level (u8)</li>
+ * <li>FOCUS: x (u16), y (u16)</li>
+ * <li>LATENCY: command latency measured by the observer in microseconds (u32)</li>
+ * </ul>
+ * Each command except LATENCY is acknowledged once applied with an ACK message carrying the
+ * same sequence number and the time spent on our side in microseconds (u32).
+ *
+ * The control channel is unordered: a command overtaken by a newer one of the same kind is
+ * stale and must not be applied.  A pointer hide is of the same kind as pointer moves.
+ */
+final class RemoteCommand {
+
+    static final int POINTER = 1;
+    static final int POINTER_HIDE = 2;
+    static final int ZOOM = 3;
+    static final int FOCUS = 4;
+    static final int LATENCY = 5;
+    static final int ACK = 0x80;
+
+    static final int COORDINATE_MAX = 0xffff;
+
+    final int type;
+    final int seq;
+    final int x;
+    final int y;
+    final int zoom;
+    final long latencyUs;
+    /** Time of reception, in {@link System#nanoTime()} units */
+    final long receivedNs;
+
+    private RemoteCommand(int type, int seq, int x, int y, int zoom, long latencyUs) {
+        this.type = type;
+        this.seq = seq;
+        this.x = x;
+        this.y = y;
+        this.zoom = zoom;
+        this.latencyUs = latencyUs;
+        this.receivedNs = System.nanoTime();
+    }
+
+    /** @return the decoded command, or {@code null} if the message is malformed or unknown */
+    @Nullable
+    static RemoteCommand decode(@NonNull ByteBuffer data) {
+        try {
+            int type = data.get() & 0xff;
+            int seq = data.getShort() & 0xffff;
+            switch (type) {
+            case POINTER:
+            case FOCUS:
+                return new RemoteCommand(type, seq, data.getShort() & 0xffff, data.getShort() & 0xffff, 0, 0);
+            case POINTER_HIDE:
+                return new RemoteCommand(type, seq, 0, 0, 0, 0);
+            case ZOOM:
+                return new RemoteCommand(type, seq, 0, 0, data.get() & 0xff, 0);
+            case LATENCY:
+                return new RemoteCommand(type, seq, 0, 0, 0, data.getInt() & 0xffffffffL);
+            default:
+                return null;
+            }
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    /** Commands of the same kind supersede each other. */
+    int kind() {
+        return type == POINTER_HIDE ? POINTER : type;
+    }
+
+    /**
+     * Whether this command was sent after the one with the given sequence number, in serial
+     * number arithmetic so that the 16-bit sequence number may wrap around.
+     */
+    boolean isAfter(int seq) {
+        return (short) (this.seq - seq) > 0;
+    }
+
+    @NonNull
+    static ByteBuffer ack(int seq, long processingUs) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(7);
+        buf.put((byte) ACK);
+        buf.putShort((short) seq);
+        buf.putInt((int) Math.min(processingUs, 0xffffffffL));
+        buf.flip();
+        return buf;
+    }
+
+}
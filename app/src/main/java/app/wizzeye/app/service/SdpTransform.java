@@ -0,0 +1,350 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites session descriptions before they are applied.
+ *
+ * The local offer is stripped down to what is actually used: video codecs are pruned and
+ * reordered by preference, forward error correction may be removed, and unused RTP header
+ * extensions are dropped.  The remote answer gets a bandwidth limit on the video section,
+ * which caps the bitrate of the video we send, and Opus parameters on the audio section, which
+ * the Opus encoder follows as the receiver's preferences.
+ *
+ * The offer sent to the remote side also groups the video tracks of the layers into a Plan B
+ * simulcast group, for the remote side to pick a layer from.  The group is left out of the local
+ * description: this WebRTC release expects the layers of such a group to come from one encoder,
+ * whereas ours are separate tracks.
+ *
+ * This class only depends on the JDK so that it can be exercised on captured SDPs outside of
+ * Android.
+ */
+final class SdpTransform {
+
+    private static final String CRLF = "\r\n";
+
+    private static final Pattern MEDIA_LINE = Pattern.compile("^m=(\\w+) (\\S+) (\\S+)((?: \\S+)*)$");
+    private static final Pattern RTPMAP_LINE = Pattern.compile("^a=rtpmap:(\\d+) ([^/]+)/.*$");
+    private static final Pattern PT_ATTRIBUTE_LINE = Pattern.compile("^a=(?:rtpmap|fmtp|rtcp-fb):(\\d+)[ :].*$");
+    private static final Pattern APT_PARAMETER = Pattern.compile("(?:^|;)\\s*apt=(\\d+)");
+    private static final Pattern FMTP_LINE = Pattern.compile("^a=fmtp:(\\d+) (.*)$");
+    private static final Pattern EXTMAP_LINE = Pattern.compile("^a=extmap:\\d+(?:/\\w+)? (\\S+).*$");
+    private static final Pattern SSRC_MSID_LINE = Pattern.compile("^a=ssrc:(\\d+) msid:\\S+ (\\S+)$");
+    private static final Pattern FID_GROUP_LINE = Pattern.compile("^a=ssrc-group:FID \\d+ (\\d+)$");
+
+    private static final Set<String> FEC_CODECS = new HashSet<>(Arrays.asList("red", "ulpfec", "flexfec-03"));
+    private static final String RTX_CODEC = "rtx";
+
+    /** Header extensions that are of no use for a one-way camera stream. */
+    static final Set<String> UNUSED_EXTENSIONS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+        "urn:ietf:params:rtp-hdrext:toffset",
+        "http://www.webrtc.org/experiments/rtp-hdrext/playout-delay",
+        "http://www.webrtc.org/experiments/rtp-hdrext/video-content-type",
+        "http://www.webrtc.org/experiments/rtp-hdrext/video-timing",
+        "http://www.webrtc.org/experiments/rtp-hdrext/color-space",
+        "http://tools.ietf.org/html/draft-ietf-avtext-framemarking-07"
+    )));
+
+    private final List<String> mVideoCodecs;
+    private final boolean mDropFec;
+    private final Set<String> mDroppedExtensions;
+    private final int mMaxVideoBitrate;
+    private final int mOpusMaxBitrate;
+    private final boolean mOpusDtx;
+    private final List<String> mSimulcastTracks;
+
+    /**
+     * @param videoCodecs video codec names in order of preference; other codecs are removed
+     *                    (unless none of the preferred codecs is offered)
+     * @param dropFec whether to remove RED/ULPFEC/FlexFEC from the video section
+     * @param droppedExtensions URIs of the RTP header extensions to remove
+     * @param maxVideoBitrate maximum video send bitrate in kbps, or 0 for no limit
+     * @param opusMaxBitrate maximum Opus send bitrate in kbps, or 0 to leave Opus parameters alone
+     * @param opusDtx whether Opus may stop sending during silence
+     * @param simulcastTracks IDs of the video tracks of the layers, lowest first, to group in the
+     *                        offer sent; fewer than two for no simulcast group
+     */
+    SdpTransform(List<String> videoCodecs, boolean dropFec, Set<String> droppedExtensions, int maxVideoBitrate,
+                 int opusMaxBitrate, boolean opusDtx, List<String> simulcastTracks) {
+        mVideoCodecs = new ArrayList<>();
+        for (String codec : videoCodecs)
+            mVideoCodecs.add(codec.toLowerCase(Locale.US));
+        mDropFec = dropFec;
+        mDroppedExtensions = droppedExtensions;
+        mMaxVideoBitrate = maxVideoBitrate;
+        mOpusMaxBitrate = opusMaxBitrate;
+        mOpusDtx = opusDtx;
+        mSimulcastTracks = simulcastTracks;
+    }
+
+    /**
+     * Default transform for the given call quality and audio profile: H.264 first, VP8 as
+     * fallback, Opus with in-band FEC, and the layers up to the call quality in simulcast.
+     */
+    static SdpTransform forCall(CallQuality quality, AudioProfile audio) {
+        List<String> tracks = new ArrayList<>();
+        for (CallQuality layer : CallQuality.values()) {
+            if (layer.ordinal() <= quality.ordinal())
+                tracks.add(VideoLayers.trackId(layer));
+        }
+        return new SdpTransform(Arrays.asList("H264", "VP8"), true, UNUSED_EXTENSIONS, quality.maxBitrate,
+                                audio.opusMaxBitrate, audio.opusDtx, tracks);
+    }
+
+    String transformLocalOffer(String sdp) {
+        List<List<String>> sections = split(sdp);
+        for (List<String> section : sections) {
+            Matcher m = MEDIA_LINE.matcher(section.get(0));
+            if (!m.matches())
+                continue;
+            dropExtensions(section);
+            if ("video".equals(m.group(1)))
+                filterVideoCodecs(section, m);
+        }
+        return join(sections);
+    }
+
+    /** Add the simulcast group to a transformed local offer, before sending it. */
+    String groupSimulcast(String sdp) {
+        if (mSimulcastTracks.size() < 2)
+            return sdp;
+        List<List<String>> sections = split(sdp);
+        for (List<String> section : sections) {
+            Matcher m = MEDIA_LINE.matcher(section.get(0));
+            if (m.matches() && "video".equals(m.group(1)))
+                addSimulcastGroup(section);
+        }
+        return join(sections);
+    }
+
+    String transformRemoteAnswer(String sdp) {
+        if (mMaxVideoBitrate <= 0 && mOpusMaxBitrate <= 0)
+            return sdp;
+        List<List<String>> sections = split(sdp);
+        for (List<String> section : sections) {
+            Matcher m = MEDIA_LINE.matcher(section.get(0));
+            if (!m.matches())
+                continue;
+            if ("video".equals(m.group(1)) && mMaxVideoBitrate > 0)
+                limitBandwidth(section, mMaxVideoBitrate);
+            else if ("audio".equals(m.group(1)) && mOpusMaxBitrate > 0)
+                setOpusParameters(section);
+        }
+        return join(sections);
+    }
+
+    /** Split an SDP into the session section followed by one section per m-line. */
+    private static List<List<String>> split(String sdp) {
+        List<List<String>> sections = new ArrayList<>();
+        List<String> current = new ArrayList<>();
+        sections.add(current);
+        for (String line : sdp.split("\r?\n")) {
+            if (line.isEmpty())
+                continue;
+            if (line.startsWith("m=")) {
+                current = new ArrayList<>();
+                sections.add(current);
+            }
+            current.add(line);
+        }
+        return sections;
+    }
+
+    private static String join(List<List<String>> sections) {
+        StringBuilder sb = new StringBuilder();
+        for (List<String> section : sections) {
+            for (String line : section)
+                sb.append(line).append(CRLF);
+        }
+        return sb.toString();
+    }
+
+    private void dropExtensions(List<String> section) {
+        section.removeIf(line -> {
+            Matcher m = EXTMAP_LINE.matcher(line);
+            return m.matches() && mDroppedExtensions.contains(m.group(1));
+        });
+    }
+
+    private void filterVideoCodecs(List<String> section, Matcher mline) {
+        Map<String, String> codecs = new HashMap<>();   // payload type -> codec name
+        Map<String, String> apts = new HashMap<>();     // payload type -> associated payload type
+        for (String line : section) {
+            Matcher m = RTPMAP_LINE.matcher(line);
+            if (m.matches()) {
+                codecs.put(m.group(1), m.group(2).toLowerCase(Locale.US));
+                continue;
+            }
+            m = FMTP_LINE.matcher(line);
+            if (m.matches()) {
+                Matcher apt = APT_PARAMETER.matcher(m.group(2));
+                if (apt.find())
+                    apts.put(m.group(1), apt.group(1));
+            }
+        }
+
+        List<String> payloads = new ArrayList<>(Arrays.asList(mline.group(4).trim().split(" ")));
+
+        // Primary codecs in order of preference
+        List<String> kept = new ArrayList<>();
+        for (String codec : mVideoCodecs) {
+            for (String pt : payloads) {
+                if (codec.equals(codecs.get(pt)))
+                    kept.add(pt);
+            }
+        }
+        if (kept.isEmpty())
+            return; // none of our preferred codecs: leave the offer alone
+        // FEC codecs
+        if (!mDropFec) {
+            for (String pt : payloads) {
+                if (FEC_CODECS.contains(codecs.get(pt)))
+                    kept.add(pt);
+            }
+        }
+        // Retransmission for all kept codecs
+        for (String pt : payloads) {
+            if (RTX_CODEC.equals(codecs.get(pt)) && kept.contains(apts.get(pt)))
+                kept.add(pt);
+        }
+
+        final Set<String> removed = new HashSet<>(payloads);
+        removed.removeAll(kept);
+        section.removeIf(line -> {
+            Matcher m = PT_ATTRIBUTE_LINE.matcher(line);
+            return m.matches() && removed.contains(m.group(1));
+        });
+
+        StringBuilder sb = new StringBuilder("m=").append(mline.group(1))
+            .append(' ').append(mline.group(2))
+            .append(' ').append(mline.group(3));
+        for (String pt : kept)
+            sb.append(' ').append(pt);
+        section.set(0, sb.toString());
+    }
+
+    private void addSimulcastGroup(List<String> section) {
+        Map<String, String> ssrcs = new HashMap<>();    // track ID -> primary SSRC
+        Set<String> rtx = new HashSet<>();
+        int insertAt = -1;
+        for (int i = 1; i < section.size(); i++) {
+            String line = section.get(i);
+            if (line.startsWith("a=ssrc-group:SIM "))
+                return; // already grouped
+            if (insertAt < 0 && line.startsWith("a=ssrc"))
+                insertAt = i;
+            Matcher m = FID_GROUP_LINE.matcher(line);
+            if (m.matches())
+                rtx.add(m.group(1));
+        }
+        for (String line : section) {
+            Matcher m = SSRC_MSID_LINE.matcher(line);
+            if (m.matches() && !rtx.contains(m.group(1)))
+                ssrcs.put(m.group(2), m.group(1));
+        }
+
+        StringBuilder sb = new StringBuilder("a=ssrc-group:SIM");
+        for (String track : mSimulcastTracks) {
+            String ssrc = ssrcs.get(track);
+            if (ssrc == null)
+                return; // layer not sent: no simulcast
+            sb.append(' ').append(ssrc);
+        }
+        section.add(insertAt, sb.toString());
+    }
+
+    private void setOpusParameters(List<String> section) {
+        String pt = null;
+        int rtpmapAt = -1;
+        for (int i = 1; i < section.size(); i++) {
+            Matcher m = RTPMAP_LINE.matcher(section.get(i));
+            if (m.matches() && "opus".equalsIgnoreCase(m.group(2))) {
+                pt = m.group(1);
+                rtpmapAt = i;
+                break;
+            }
+        }
+        if (pt == null)
+            return;
+
+        Map<String, String> params = new LinkedHashMap<>();
+        int fmtpAt = -1;
+        for (int i = 1; i < section.size(); i++) {
+            Matcher m = FMTP_LINE.matcher(section.get(i));
+            if (m.matches() && pt.equals(m.group(1))) {
+                fmtpAt = i;
+                for (String param : m.group(2).split(";")) {
+                    int eq = param.indexOf('=');
+                    if (eq > 0)
+                        params.put(param.substring(0, eq).trim(), param.substring(eq + 1).trim());
+                }
+                break;
+            }
+        }
+        params.put("maxaveragebitrate", Integer.toString(mOpusMaxBitrate * 1000));
+        params.put("usedtx", mOpusDtx ? "1" : "0");
+        params.put("useinbandfec", "1");
+
+        StringBuilder sb = new StringBuilder("a=fmtp:").append(pt).append(' ');
+        for (Map.Entry<String, String> e : params.entrySet())
+            sb.append(e.getKey()).append('=').append(e.getValue()).append(';');
+        sb.setLength(sb.length() - 1);
+        if (fmtpAt >= 0)
+            section.set(fmtpAt, sb.toString());
+        else
+            section.add(rtpmapAt + 1, sb.toString());
+    }
+
+    private static void limitBandwidth(List<String> section, int kbps) {
+        int insertAt = 1;
+        for (int i = 1; i < section.size(); i++) {
+            String line = section.get(i);
+            if (line.startsWith("b=AS:")) {
+                try {
+                    int current = Integer.parseInt(line.substring(5).trim());
+                    if (current <= kbps)
+                        return;
+                } catch (NumberFormatException e) {
+                    // replace malformed value
+                }
+                section.set(i, "b=AS:" + kbps);
+                return;
+            }
+            if (line.startsWith("i=") || line.startsWith("c="))
+                insertAt = i + 1;
+        }
+        section.add(insertAt, "b=AS:" + kbps);
+    }
+
+}
@@ -0,0 +1,256 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of signaling messages, as used by the v2 signaling sub-protocol.
+ *
+ * A message starts with one byte holding the numeric message type, followed by its fields.
+ * Each field is encoded as one identifier byte, the length of its data as varint and the data
+ * itself.  The JSON payload and ICE servers are raw-deflate compressed.
+ */
+final class SignalingCodec {
+
+    /** Numeric message types; the index is the value on the wire. */
+    private static final String[] TYPES = {
+        null,
+        "error",
+        "ping",
+        "pong",
+        "join",
+        "leave",
+        "offer",
+        "answer",
+        "ice-candidate",
+        "reset",
+        "session",
+        "layer",
+        "ack",
+    };
+
+    private static final int FIELD_CODE = 1;
+    private static final int FIELD_TEXT = 2;
+    private static final int FIELD_ROOM = 3;
+    private static final int FIELD_ROLE = 4;
+    private static final int FIELD_PAYLOAD = 5;
+    private static final int FIELD_ICE_SERVERS = 6;
+    private static final int FIELD_RESUME = 7;
+    private static final int FIELD_SESSION = 8;
+    private static final int FIELD_LAYER = 9;
+    private static final int FIELD_PEER = 10;
+    private static final int FIELD_SEQ = 11;
+    private static final int FIELD_ACK = 12;
+
+    private static final int MAX_PAYLOAD_SIZE = 1 << 20;
+
+    private SignalingCodec() {}
+
+    @NonNull
+    static byte[] encode(@NonNull JSONObject msg) throws JSONException {
+        String type = msg.getString("type");
+        int id = 0;
+        for (int i = 1; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type))
+                id = i;
+        }
+        if (id == 0)
+            throw new JSONException("Cannot encode message type " + type);
+
+        /* Fields in the order of their identifiers, as the server writes them, so that both
+         * ends produce the same bytes for the same message */
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(id);
+        if (msg.has("code"))
+            writeField(out, FIELD_CODE, varint(msg.getInt("code")));
+        if (msg.has("text"))
+            writeField(out, FIELD_TEXT, utf8(msg.getString("text")));
+        if (msg.has("room"))
+            writeField(out, FIELD_ROOM, utf8(msg.getString("room")));
+        if (msg.has("role"))
+            writeField(out, FIELD_ROLE, utf8(msg.getString("role")));
+        if (msg.has("payload"))
+            writeField(out, FIELD_PAYLOAD, deflate(utf8(msg.get("payload").toString())));
+        if (msg.has("iceServers"))
+            writeField(out, FIELD_ICE_SERVERS, deflate(utf8(msg.get("iceServers").toString())));
+        if (msg.optBoolean("resume"))
+            writeField(out, FIELD_RESUME, new byte[0]);
+        if (msg.has("session"))
+            writeField(out, FIELD_SESSION, utf8(msg.getString("session")));
+        if (msg.has("layer"))
+            writeField(out, FIELD_LAYER, utf8(msg.getString("layer")));
+        if (msg.has("peer"))
+            writeField(out, FIELD_PEER, utf8(msg.getString("peer")));
+        if (msg.has("seq"))
+            writeField(out, FIELD_SEQ, varint(msg.getLong("seq")));
+        if (msg.has("ack"))
+            writeField(out, FIELD_ACK, varint(msg.getLong("ack")));
+        return out.toByteArray();
+    }
+
+    @NonNull
+    static JSONObject decode(@NonNull byte[] data) throws JSONException {
+        if (data.length == 0 || (data[0] & 0xff) == 0 || (data[0] & 0xff) >= TYPES.length)
+            throw new JSONException("Unknown message type");
+        JSONObject msg = new JSONObject();
+        msg.put("type", TYPES[data[0] & 0xff]);
+        int[] pos = { 1 };
+        while (pos[0] < data.length) {
+            int id = data[pos[0]++] & 0xff;
+            long len = readVarint(data, pos, data.length);
+            if (len > data.length - pos[0])
+                throw new JSONException("Truncated field " + id);
+            int start = pos[0];
+            int end = start + (int) len;
+            pos[0] = end;
+            switch (id) {
+            case FIELD_CODE:
+                msg.put("code", readVarint(data, new int[] { start }, end));
+                break;
+            case FIELD_TEXT:
+                msg.put("text", new String(data, start, end - start, StandardCharsets.UTF_8));
+                break;
+            case FIELD_ROOM:
+                msg.put("room", new String(data, start, end - start, StandardCharsets.UTF_8));
+                break;
+            case FIELD_ROLE:
+                msg.put("role", new String(data, start, end - start, StandardCharsets.UTF_8));
+                break;
+            case FIELD_PAYLOAD:
+                msg.put("payload", new JSONObject(inflate(data, start, end - start)));
+                break;
+            case FIELD_ICE_SERVERS:
+                msg.put("iceServers", new JSONArray(inflate(data, start, end - start)));
+                break;
+            case FIELD_RESUME:
+                msg.put("resume", true);
+                break;
+            case FIELD_SESSION:
+                msg.put("session", new String(data, start, end - start, StandardCharsets.UTF_8));
+                break;
+            case FIELD_LAYER:
+                msg.put("layer", new String(data, start, end - start, StandardCharsets.UTF_8));
+                break;
+            case FIELD_PEER:
+                msg.put("peer", new String(data, start, end - start, StandardCharsets.UTF_8));
+                break;
+            case FIELD_SEQ:
+                msg.put("seq", readVarint(data, new int[] { start }, end));
+                break;
+            case FIELD_ACK:
+                msg.put("ack", readVarint(data, new int[] { start }, end));
+                break;
+            default:
+                // ignore unknown fields for forward compatibility
+            }
+        }
+        return msg;
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void writeField(ByteArrayOutputStream out, int id, byte[] data) {
+        out.write(id);
+        writeVarint(out, data.length);
+        out.write(data, 0, data.length);
+    }
+
+    private static byte[] varint(long value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, value);
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** Read a varint ending before {@code end}, e.g., the end of the field holding it. */
+    private static long readVarint(byte[] data, int[] pos, int end) throws JSONException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos[0] >= end)
+                throw new JSONException("Truncated varint");
+            int b = data[pos[0]++] & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new JSONException("Varint overflow");
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            byte[] buf = new byte[1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String inflate(byte[] data, int offset, int length) throws JSONException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, offset, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+            byte[] buf = new byte[1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new JSONException("Truncated deflate stream");
+                out.write(buf, 0, n);
+                if (out.size() > MAX_PAYLOAD_SIZE)
+                    throw new JSONException("Payload too large");
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new JSONException("Invalid deflate stream: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
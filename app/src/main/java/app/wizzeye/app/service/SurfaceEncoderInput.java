@@ -0,0 +1,197 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.view.Surface;
+
+import org.webrtc.EglBase;
+import org.webrtc.GlRectDrawer;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoFrameDrawer;
+import org.webrtc.VideoSink;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Video sink drawing frames on the input surface of a MediaCodec encoder.
+ *
+ * Frames stay textures and are drawn from a dedicated thread through an EGL context shared with
+ * the capturer, so the live WebRTC encoder never waits for this one.  The capture texture cannot
+ * be reused before the frame is released, so only one frame is in flight: frames arriving while
+ * the previous one is still being drawn are dropped and counted.
+ */
+class SurfaceEncoderInput implements VideoSink {
+
+    interface ErrorHandler {
+        /** Called on the render thread; no more frames are drawn afterwards. */
+        void onRenderError(String error, Exception e);
+    }
+
+    private static final String TAG = "SurfaceEncoderInput";
+
+    /** Frames being drawn; the capture texture is blocked while a frame is held */
+    private static final int MAX_PENDING_FRAMES = 1;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final CallMetrics mMetrics;
+    private final String mFramesMetric;
+    private final String mDroppedMetric;
+    private final ErrorHandler mErrorHandler;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final AtomicInteger mPendingFrames = new AtomicInteger();
+    private volatile boolean mReleased;
+    private volatile boolean mFailed;
+
+    /* Render thread */
+    private Surface mSurface;
+    private EglBase mEglBase;
+    private GlRectDrawer mDrawer;
+    private VideoFrameDrawer mFrameDrawer;
+
+    /**
+     * @param surface Input surface of the encoder, released together with this object.
+     * @param framesMetric Name of the metric counting drawn frames.
+     * @param droppedMetric Name of the metric counting dropped frames.
+     */
+    SurfaceEncoderInput(@NonNull String name, @NonNull EglBase.Context eglContext, @NonNull Surface surface,
+                        int width, int height, @NonNull CallMetrics metrics,
+                        @NonNull String framesMetric, @NonNull String droppedMetric,
+                        @NonNull ErrorHandler errorHandler) {
+        mWidth = width;
+        mHeight = height;
+        mMetrics = metrics;
+        mFramesMetric = framesMetric;
+        mDroppedMetric = droppedMetric;
+        mErrorHandler = errorHandler;
+        mThread = new HandlerThread(name);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(() -> setup(eglContext, surface));
+    }
+
+    /**
+     * Stop drawing frames and release the EGL surface.
+     *
+     * @param then Run on the render thread once the surface is released, e.g., to signal the end
+     *             of stream to the encoder.
+     */
+    void release(@Nullable Runnable then) {
+        if (mReleased)
+            return;
+        mReleased = true;
+        mHandler.post(() -> {
+            releaseInternal();
+            if (then != null)
+                then.run();
+        });
+        mThread.quitSafely();
+    }
+
+    @Override
+    public void onFrame(VideoFrame frame) {
+        if (mReleased || mFailed)
+            return;
+        if (mPendingFrames.get() >= MAX_PENDING_FRAMES) {
+            mMetrics.increment(mDroppedMetric);
+            return;
+        }
+        mPendingFrames.incrementAndGet();
+        frame.retain();
+        if (!mHandler.post(() -> draw(frame))) {
+            /* The render thread quit since the check above */
+            frame.release();
+            mPendingFrames.decrementAndGet();
+        }
+    }
+
+    /* Called on render thread */
+
+    private void setup(EglBase.Context eglContext, Surface surface) {
+        mSurface = surface;
+        try {
+            mEglBase = EglBase.create(eglContext, EglBase.CONFIG_RECORDABLE);
+            mEglBase.createSurface(surface);
+            mEglBase.makeCurrent();
+            mDrawer = new GlRectDrawer();
+            mFrameDrawer = new VideoFrameDrawer();
+        } catch (RuntimeException e) {
+            releaseInternal();
+            fail("Failed to set up renderer", e);
+        }
+    }
+
+    private void releaseInternal() {
+        if (mFrameDrawer != null) {
+            mFrameDrawer.release();
+            mFrameDrawer = null;
+        }
+        if (mDrawer != null) {
+            mDrawer.release();
+            mDrawer = null;
+        }
+        if (mEglBase != null) {
+            mEglBase.release();
+            mEglBase = null;
+        }
+        if (mSurface != null) {
+            mSurface.release();
+            mSurface = null;
+        }
+    }
+
+    private void fail(String error, Exception e) {
+        Log.e(TAG, error, e);
+        mFailed = true;
+        mErrorHandler.onRenderError(error, e);
+    }
+
+    private void draw(VideoFrame frame) {
+        final long timestampNs = frame.getTimestampNs();
+        try {
+            if (mReleased || mFailed || mEglBase == null)
+                return;
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            mFrameDrawer.drawFrame(frame, mDrawer, null, 0, 0, mWidth, mHeight);
+            /* Be done with the capture texture before possibly blocking on the encoder */
+            GLES20.glFinish();
+        } catch (RuntimeException e) {
+            fail("Failed to draw frame", e);
+            return;
+        } finally {
+            frame.release();
+            mPendingFrames.decrementAndGet();
+        }
+        try {
+            mEglBase.swapBuffers(timestampNs);
+            mMetrics.increment(mFramesMetric);
+        } catch (RuntimeException e) {
+            fail("Failed to submit frame", e);
+        }
+    }
+}
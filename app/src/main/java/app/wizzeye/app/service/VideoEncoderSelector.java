@@ -0,0 +1,473 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Size;
+
+import org.webrtc.EglBase;
+import org.webrtc.EncodedImage;
+import org.webrtc.HardwareVideoEncoderFactory;
+import org.webrtc.SoftwareVideoEncoderFactory;
+import org.webrtc.ThreadUtils;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoEncoderFactory;
+import org.webrtc.VideoEncoderFallback;
+import org.webrtc.VideoFrame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Video encoder factory preferring hardware encoders.
+ *
+ * H.264 is only advertised when the device has a hardware AVC encoder able to handle the frame
+ * size of the call quality; High Profile is enabled above {@link CallQuality#LOW} and is used
+ * whenever the observer accepts it.  Software VP8 remains available as fallback, both in
+ * negotiation and when a hardware encoder fails to initialize.
+ *
+ * Hardware encoders are shared between connections: the connections sending the same layer, at
+ * the same frame size and with the same codec, feed a single {@link SharedEncoder}, so that each
+ * frame of a layer is encoded once however many observers watch it.  Software encoders are
+ * native and cannot be driven from Java, each connection has its own.
+ *
+ * The selected encoder is reported in {@link CallMetrics#VIDEO_ENCODER} and, for hardware
+ * encoders, the per-frame encode time in {@link CallMetrics#VIDEO_ENCODE_TIME} and the frames
+ * spared by sharing in {@link CallMetrics#VIDEO_SHARED_FRAMES}.
+ */
+class VideoEncoderSelector implements VideoEncoderFactory {
+
+    private static final String TAG = "VideoEncoderSelector";
+
+    private static final String H264 = "H264";
+
+    private final HardwareVideoEncoderFactory mHardware;
+    private final SoftwareVideoEncoderFactory mSoftware;
+    private final CallMetrics mMetrics;
+    private final boolean mHardwareH264;
+    /* Shared encoders by codec and frame size, guarded by itself */
+    private final Map<String, SharedEncoder> mSharedEncoders = new HashMap<>();
+
+    VideoEncoderSelector(@NonNull EglBase.Context eglContext, @NonNull CallQuality quality, @NonNull CallMetrics metrics) {
+        mHardware = new HardwareVideoEncoderFactory(eglContext, true, quality != CallQuality.LOW);
+        mSoftware = new SoftwareVideoEncoderFactory();
+        mMetrics = metrics;
+        mHardwareH264 = probeHardwareEncoder(MediaFormat.MIMETYPE_VIDEO_AVC, quality.frameSize);
+        Log.i(TAG, "Hardware H.264 encoder " + (mHardwareH264 ? "available" : "unavailable") +
+            " for " + quality.frameSize);
+    }
+
+    /**
+     * Check whether the device has a hardware encoder for the given type that supports the
+     * given frame size at 30 fps.
+     */
+    private static boolean probeHardwareEncoder(String mimeType, Size size) {
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder() || isSoftwareCodec(info.getName()))
+                continue;
+            for (String type : info.getSupportedTypes()) {
+                if (!type.equalsIgnoreCase(mimeType))
+                    continue;
+                try {
+                    MediaCodecInfo.VideoCapabilities caps = info.getCapabilitiesForType(type).getVideoCapabilities();
+                    if (caps != null && caps.areSizeAndRateSupported(size.getWidth(), size.getHeight(), 30))
+                        return true;
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Could not query capabilities of " + info.getName(), e);
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSoftwareCodec(String name) {
+        return name.startsWith("OMX.google.") || name.startsWith("c2.android.");
+    }
+
+    @Override
+    public VideoCodecInfo[] getSupportedCodecs() {
+        List<VideoCodecInfo> codecs = new ArrayList<>();
+        for (VideoCodecInfo info : mHardware.getSupportedCodecs()) {
+            if (mHardwareH264 || !H264.equalsIgnoreCase(info.name))
+                codecs.add(info);
+        }
+        for (VideoCodecInfo info : mSoftware.getSupportedCodecs()) {
+            boolean found = false;
+            for (VideoCodecInfo other : codecs)
+                found |= other.name.equalsIgnoreCase(info.name);
+            if (!found)
+                codecs.add(info);
+        }
+        return codecs.toArray(new VideoCodecInfo[0]);
+    }
+
+    @Nullable
+    @Override
+    public VideoEncoder createEncoder(VideoCodecInfo info) {
+        VideoEncoder software = mSoftware.createEncoder(info);
+        VideoEncoder hardware = null;
+        if (mHardwareH264 || !H264.equalsIgnoreCase(info.name))
+            hardware = mHardware.createEncoder(info);
+
+        String description = info.name + (info.params.isEmpty() ? "" : " " + info.params);
+        if (hardware != null) {
+            mMetrics.setValue(CallMetrics.VIDEO_ENCODER, description + " (hardware)");
+            Log.i(TAG, "Using hardware encoder for " + description);
+            VideoEncoder shared = new SharedEncoderHandle(info, hardware);
+            return software != null ? new VideoEncoderFallback(software, shared) : shared;
+        }
+        if (software != null) {
+            mMetrics.setValue(CallMetrics.VIDEO_ENCODER, description + " (software)");
+            Log.i(TAG, "Using software encoder for " + description);
+        } else {
+            Log.e(TAG, "No encoder for " + description);
+        }
+        return software;
+    }
+
+    /**
+     * Hardware encoder fed by every connection sending the same layer.
+     *
+     * The connections hand it the same frames, from the source of their layer: the first one to
+     * submit a frame has it encoded, the others are skipped, and the output goes to the callback
+     * of every connection.  A key frame requested by any connection is produced for all of them.
+     * The rates follow the connection with the lowest budget, as a layer sent faster would
+     * congest it; connections with their video paused are left out.
+     *
+     * Hardware encoders must be driven from a single thread, whereas each connection calls from
+     * its own: all calls to the encoder are made on a thread of its own.
+     */
+    private final class SharedEncoder implements VideoEncoder.Callback {
+        final String key;
+        private final VideoEncoder mEncoder;
+        private final HandlerThread mThread;
+        private final Handler mHandler;
+        /* Guarded by mSharedEncoders */
+        int users;
+        /* Guarded by itself */
+        private final List<SharedEncoderHandle> mHandles = new ArrayList<>();
+        /* Encoding thread */
+        private boolean mInitialized;
+        private long mLastTimestampNs = Long.MIN_VALUE;
+        private boolean mKeyFrameRequested;
+        private volatile boolean mFailed;
+
+        SharedEncoder(String key, VideoEncoder encoder) {
+            this.key = key;
+            mEncoder = new TimedVideoEncoder(encoder, mMetrics);
+            mThread = new HandlerThread("SharedEncoder");
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+
+        /** Initialize the encoder for its first connection, then send its output to the handle. */
+        VideoCodecStatus attach(SharedEncoderHandle handle, VideoEncoder.Settings settings) {
+            return ThreadUtils.invokeAtFrontUninterruptibly(mHandler, () -> {
+                if (!mInitialized) {
+                    VideoCodecStatus status = mEncoder.initEncode(settings, this);
+                    if (status != VideoCodecStatus.OK)
+                        return status;
+                    mInitialized = true;
+                }
+                synchronized (mHandles) {
+                    mHandles.add(handle);
+                    Log.v(TAG, "Sharing " + key + " encoder with " + mHandles.size() + " connections");
+                }
+                return VideoCodecStatus.OK;
+            });
+        }
+
+        /** Stop sending output to the handle, and release the encoder after its last connection. */
+        void detach(SharedEncoderHandle handle) {
+            synchronized (mHandles) {
+                mHandles.remove(handle);
+            }
+            boolean last;
+            synchronized (mSharedEncoders) {
+                last = --users == 0;
+                if (last)
+                    mSharedEncoders.remove(key);
+            }
+            if (!last) {
+                mHandler.post(this::applyRates);
+                return;
+            }
+            mHandler.post(() -> {
+                if (mInitialized)
+                    mEncoder.release();
+            });
+            mThread.quitSafely();
+        }
+
+        VideoCodecStatus encode(VideoFrame frame, boolean keyFrame) {
+            if (mFailed)
+                return VideoCodecStatus.FALLBACK_SOFTWARE;
+            frame.retain();
+            if (!mHandler.post(() -> encodeOnce(frame, keyFrame))) {
+                frame.release();
+                return VideoCodecStatus.UNINITIALIZED;
+            }
+            return VideoCodecStatus.OK;
+        }
+
+        void updateRates() {
+            mHandler.post(this::applyRates);
+        }
+
+        void setChannelParameters(short packetLoss, long roundTripTimeMs) {
+            mHandler.post(() -> {
+                if (mInitialized)
+                    mEncoder.setChannelParameters(packetLoss, roundTripTimeMs);
+            });
+        }
+
+        /* Called on encoding thread */
+
+        private void encodeOnce(VideoFrame frame, boolean keyFrame) {
+            try {
+                mKeyFrameRequested |= keyFrame;
+                if (frame.getTimestampNs() <= mLastTimestampNs) {
+                    /* Already submitted by another connection */
+                    mMetrics.increment(CallMetrics.VIDEO_SHARED_FRAMES);
+                    return;
+                }
+                mLastTimestampNs = frame.getTimestampNs();
+                EncodedImage.FrameType type = mKeyFrameRequested
+                    ? EncodedImage.FrameType.VideoFrameKey : EncodedImage.FrameType.VideoFrameDelta;
+                VideoCodecStatus status = mEncoder.encode(frame, new VideoEncoder.EncodeInfo(new EncodedImage.FrameType[] { type }));
+                if (status == VideoCodecStatus.OK) {
+                    mKeyFrameRequested = false;
+                } else if (status == VideoCodecStatus.ERROR || status == VideoCodecStatus.FALLBACK_SOFTWARE) {
+                    Log.e(TAG, "Shared " + key + " encoder failed: " + status);
+                    mFailed = true;
+                }
+            } finally {
+                frame.release();
+            }
+        }
+
+        private void applyRates() {
+            if (!mInitialized)
+                return;
+            VideoEncoder.BitrateAllocation lowest = null;
+            int framerate = 0;
+            synchronized (mHandles) {
+                for (SharedEncoderHandle handle : mHandles) {
+                    VideoEncoder.BitrateAllocation allocation = handle.allocation;
+                    if (allocation != null && allocation.getSum() > 0 &&
+                            (lowest == null || allocation.getSum() < lowest.getSum())) {
+                        lowest = allocation;
+                        framerate = handle.framerate;
+                    }
+                }
+            }
+            if (lowest != null)
+                mEncoder.setRateAllocation(lowest, framerate);
+        }
+
+        /* Called on the output thread of the encoder */
+
+        @Override
+        public void onEncodedFrame(EncodedImage image, VideoEncoder.CodecSpecificInfo info) {
+            /* The connections copy the image before returning */
+            synchronized (mHandles) {
+                for (SharedEncoderHandle handle : mHandles)
+                    handle.callback.onEncodedFrame(image, info);
+            }
+        }
+    }
+
+    /**
+     * The end of a {@link SharedEncoder} held by one connection.  It is attached to the shared
+     * encoder of its frame size on initialization, and moves if the connection re-initializes it
+     * at another size.
+     */
+    private final class SharedEncoderHandle implements VideoEncoder {
+        private final VideoCodecInfo mInfo;
+        /** Hardware encoder created for the handle, used if it is the first at its frame size */
+        private VideoEncoder mCandidate;
+        private SharedEncoder mShared;
+        /* Read by the shared encoder */
+        volatile Callback callback;
+        volatile BitrateAllocation allocation;
+        volatile int framerate;
+
+        SharedEncoderHandle(VideoCodecInfo info, VideoEncoder candidate) {
+            mInfo = info;
+            mCandidate = candidate;
+        }
+
+        @Override
+        public VideoCodecStatus initEncode(Settings settings, Callback callback) {
+            release();
+            this.callback = callback;
+            String key = mInfo.name + (mInfo.params.isEmpty() ? "" : " " + mInfo.params) +
+                " " + settings.width + "x" + settings.height;
+            SharedEncoder shared;
+            synchronized (mSharedEncoders) {
+                shared = mSharedEncoders.get(key);
+                if (shared == null) {
+                    VideoEncoder encoder = mCandidate != null ? mCandidate : mHardware.createEncoder(mInfo);
+                    mCandidate = null;
+                    if (encoder == null)
+                        return VideoCodecStatus.FALLBACK_SOFTWARE;
+                    shared = new SharedEncoder(key, encoder);
+                    mSharedEncoders.put(key, shared);
+                }
+                shared.users++;
+            }
+            VideoCodecStatus status = shared.attach(this, settings);
+            if (status != VideoCodecStatus.OK) {
+                shared.detach(this);
+                return status;
+            }
+            mShared = shared;
+            return VideoCodecStatus.OK;
+        }
+
+        @Override
+        public VideoCodecStatus release() {
+            if (mShared != null) {
+                mShared.detach(this);
+                mShared = null;
+            }
+            allocation = null;
+            return VideoCodecStatus.OK;
+        }
+
+        @Override
+        public VideoCodecStatus encode(VideoFrame frame, EncodeInfo info) {
+            if (mShared == null)
+                return VideoCodecStatus.UNINITIALIZED;
+            boolean keyFrame = false;
+            for (EncodedImage.FrameType type : info.frameTypes)
+                keyFrame |= type == EncodedImage.FrameType.VideoFrameKey;
+            return mShared.encode(frame, keyFrame);
+        }
+
+        @Override
+        public VideoCodecStatus setChannelParameters(short packetLoss, long roundTripTimeMs) {
+            if (mShared != null)
+                mShared.setChannelParameters(packetLoss, roundTripTimeMs);
+            return VideoCodecStatus.OK;
+        }
+
+        @Override
+        public VideoCodecStatus setRateAllocation(BitrateAllocation allocation, int framerate) {
+            this.allocation = allocation;
+            this.framerate = framerate;
+            if (mShared != null)
+                mShared.updateRates();
+            return VideoCodecStatus.OK;
+        }
+
+        /** Quality scaling for one connection would change the frames of all: layers set the size */
+        @Override
+        public ScalingSettings getScalingSettings() {
+            return ScalingSettings.OFF;
+        }
+
+        @Override
+        public String getImplementationName() {
+            return "SharedHWEncoder";
+        }
+    }
+
+    /**
+     * Wrapper around a Java encoder measuring the time each frame spends in the encoder.
+     * Only usable on Java encoders: native encoders do not go through the Java interface.
+     */
+    private static class TimedVideoEncoder implements VideoEncoder {
+        private static final int MAX_PENDING = 30;
+
+        private final VideoEncoder mEncoder;
+        private final CallMetrics mMetrics;
+        private final Map<Long, Long> mPending = new HashMap<>(); // capture timestamp -> start
+
+        TimedVideoEncoder(VideoEncoder encoder, CallMetrics metrics) {
+            mEncoder = encoder;
+            mMetrics = metrics;
+        }
+
+        @Override
+        public VideoCodecStatus initEncode(Settings settings, Callback callback) {
+            return mEncoder.initEncode(settings, (EncodedImage image, CodecSpecificInfo info) -> {
+                Long start;
+                synchronized (mPending) {
+                    start = mPending.remove(image.captureTimeNs);
+                }
+                if (start != null)
+                    mMetrics.addSample(CallMetrics.VIDEO_ENCODE_TIME, (System.nanoTime() - start) / 1e6);
+                callback.onEncodedFrame(image, info);
+            });
+        }
+
+        @Override
+        public VideoCodecStatus release() {
+            synchronized (mPending) {
+                mPending.clear();
+            }
+            return mEncoder.release();
+        }
+
+        @Override
+        public VideoCodecStatus encode(VideoFrame frame, EncodeInfo info) {
+            synchronized (mPending) {
+                if (mPending.size() >= MAX_PENDING)
+                    mPending.clear(); // frames dropped by the encoder
+                mPending.put(frame.getTimestampNs(), System.nanoTime());
+            }
+            return mEncoder.encode(frame, info);
+        }
+
+        @Override
+        public VideoCodecStatus setChannelParameters(short packetLoss, long roundTripTimeMs) {
+            return mEncoder.setChannelParameters(packetLoss, roundTripTimeMs);
+        }
+
+        @Override
+        public VideoCodecStatus setRateAllocation(BitrateAllocation allocation, int framerate) {
+            return mEncoder.setRateAllocation(allocation, framerate);
+        }
+
+        @Override
+        public ScalingSettings getScalingSettings() {
+            return mEncoder.getScalingSettings();
+        }
+
+        @Override
+        public String getImplementationName() {
+            return mEncoder.getImplementationName();
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Size;
+
+import org.webrtc.CapturerObserver;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSource;
+import org.webrtc.VideoTrack;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One video source and track per video layer sent.
+ *
+ * The capturer feeds this observer, which hands every frame to the source of each layer.  The
+ * sources scale the frames down to the size of their layer before they reach the encoders; for
+ * camera textures, this only changes the transformation matrix and the encoder draws the texture
+ * at the size of its layer.  An observer on a lower layer thus costs an encode at that size, not
+ * at the size of the highest layer.  Observers sharing a layer also share its hardware encoder,
+ * see {@link VideoEncoderSelector}, so each layer is encoded once.
+ *
+ * Layers are created and disposed on the call thread; frames come from the capture thread.
+ */
+class VideoLayers implements CapturerObserver {
+
+    /** Source and track scaled to the frame size of one quality */
+    static final class Layer {
+        final CallQuality quality;
+        final VideoSource source;
+        final VideoTrack track;
+
+        Layer(CallQuality quality, VideoSource source, VideoTrack track) {
+            this.quality = quality;
+            this.source = source;
+            this.track = track;
+        }
+    }
+
+    private static final String TAG = "VideoLayers";
+    private static final String TRACK_PREFIX = "Wizzeye_v_";
+
+    private final PeerConnectionFactory mFactory;
+    private final CallMetrics mMetrics;
+    private final Object mLock = new Object();
+    /* Guarded by mLock */
+    private final Map<CallQuality, Layer> mLayers = new EnumMap<>(CallQuality.class);
+    private boolean mStarted;
+    /* Call thread */
+    private int mFramerate;
+
+    VideoLayers(@NonNull PeerConnectionFactory factory, int framerate, @NonNull CallMetrics metrics) {
+        mFactory = factory;
+        mFramerate = framerate;
+        mMetrics = metrics;
+    }
+
+    /** Get the layer of a quality, creating its source and track on first use. */
+    @NonNull
+    Layer get(@NonNull CallQuality quality) {
+        synchronized (mLock) {
+            Layer layer = mLayers.get(quality);
+            if (layer != null)
+                return layer;
+        }
+        Log.v(TAG, "Creating " + quality.layerName() + " video layer");
+        VideoSource source = mFactory.createVideoSource(false);
+        Size size = quality.frameSize;
+        source.adaptOutputFormat(size.getWidth(), size.getHeight(), mFramerate);
+        VideoTrack track = mFactory.createVideoTrack(trackId(quality), source);
+        track.setEnabled(true);
+        Layer layer = new Layer(quality, source, track);
+        synchronized (mLock) {
+            if (mStarted)
+                source.getCapturerObserver().onCapturerStarted(true);
+            mLayers.put(quality, layer);
+            reportLayers();
+        }
+        return layer;
+    }
+
+    /** ID of the video track of a layer. */
+    @NonNull
+    static String trackId(@NonNull CallQuality quality) {
+        return TRACK_PREFIX + quality.layerName();
+    }
+
+    /** Quality of the layer of a video track, or {@code null} if not the track of a layer. */
+    @Nullable
+    static CallQuality qualityOf(@NonNull String trackId) {
+        if (!trackId.startsWith(TRACK_PREFIX))
+            return null;
+        return CallQuality.fromLayerName(trackId.substring(TRACK_PREFIX.length()));
+    }
+
+    /** Dispose the layers of the qualities not in {@code used}. */
+    void retain(@NonNull Collection<CallQuality> used) {
+        List<Layer> removed = new ArrayList<>();
+        synchronized (mLock) {
+            for (Iterator<Layer> it = mLayers.values().iterator(); it.hasNext(); ) {
+                Layer layer = it.next();
+                if (!used.contains(layer.quality)) {
+                    it.remove();
+                    removed.add(layer);
+                }
+            }
+            if (!removed.isEmpty())
+                reportLayers();
+        }
+        /* No more frames reach these sources once out of the map */
+        for (Layer layer : removed) {
+            Log.v(TAG, "Disposing " + layer.quality.layerName() + " video layer");
+            layer.track.dispose();
+            layer.source.dispose();
+        }
+    }
+
+    /** Change the maximum framerate of all layers, following the capture framerate. */
+    void setFramerate(int framerate) {
+        mFramerate = framerate;
+        synchronized (mLock) {
+            for (Layer layer : mLayers.values()) {
+                Size size = layer.quality.frameSize;
+                layer.source.adaptOutputFormat(size.getWidth(), size.getHeight(), framerate);
+            }
+        }
+    }
+
+    void dispose() {
+        retain(new ArrayList<>());
+    }
+
+    private void reportLayers() {
+        StringBuilder sb = new StringBuilder();
+        for (CallQuality quality : mLayers.keySet())
+            sb.append(sb.length() > 0 ? "," : "").append(quality.layerName());
+        mMetrics.setValue(CallMetrics.VIDEO_LAYER, sb.toString());
+    }
+
+    @Override
+    public void onCapturerStarted(boolean success) {
+        synchronized (mLock) {
+            mStarted = success;
+            for (Layer layer : mLayers.values())
+                layer.source.getCapturerObserver().onCapturerStarted(success);
+        }
+    }
+
+    @Override
+    public void onCapturerStopped() {
+        synchronized (mLock) {
+            mStarted = false;
+            for (Layer layer : mLayers.values())
+                layer.source.getCapturerObserver().onCapturerStopped();
+        }
+    }
+
+    @Override
+    public void onFrameCaptured(VideoFrame frame) {
+        synchronized (mLock) {
+            for (Layer layer : mLayers.values())
+                layer.source.getCapturerObserver().onFrameCaptured(frame);
+        }
+    }
+
+}
@@ -0,0 +1,273 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SdpTransformTest {
+
+    /** Offer of the Android WebRTC library, trimmed of ICE and DTLS attributes. */
+    private static final String LOCAL_OFFER = sdp(
+        "v=0",
+        "o=- 2937587237893402347 2 IN IP4 127.0.0.1",
+        "s=-",
+        "t=0 0",
+        "a=group:BUNDLE audio video",
+        "m=audio 9 UDP/TLS/RTP/SAVPF 111 103 9 0 8",
+        "c=IN IP4 0.0.0.0",
+        "a=mid:audio",
+        "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level",
+        "a=sendrecv",
+        "a=rtpmap:111 opus/48000/2",
+        "a=fmtp:111 minptime=10;useinbandfec=1",
+        "a=rtpmap:103 ISAC/16000",
+        "a=rtpmap:9 G722/8000",
+        "a=rtpmap:0 PCMU/8000",
+        "a=rtpmap:8 PCMA/8000",
+        "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 127 124 125",
+        "c=IN IP4 0.0.0.0",
+        "a=mid:video",
+        "a=extmap:2 urn:ietf:params:rtp-hdrext:toffset",
+        "a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time",
+        "a=extmap:4 urn:3gpp:video-orientation",
+        "a=extmap:6 http://www.webrtc.org/experiments/rtp-hdrext/playout-delay",
+        "a=extmap:7 http://www.webrtc.org/experiments/rtp-hdrext/video-content-type",
+        "a=extmap:8 http://www.webrtc.org/experiments/rtp-hdrext/video-timing",
+        "a=sendrecv",
+        "a=rtpmap:96 VP8/90000",
+        "a=rtcp-fb:96 goog-remb",
+        "a=rtcp-fb:96 nack",
+        "a=rtcp-fb:96 nack pli",
+        "a=rtpmap:97 rtx/90000",
+        "a=fmtp:97 apt=96",
+        "a=rtpmap:98 VP9/90000",
+        "a=rtcp-fb:98 nack",
+        "a=rtpmap:99 rtx/90000",
+        "a=fmtp:99 apt=98",
+        "a=rtpmap:100 H264/90000",
+        "a=rtcp-fb:100 nack",
+        "a=fmtp:100 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f",
+        "a=rtpmap:101 rtx/90000",
+        "a=fmtp:101 apt=100",
+        "a=rtpmap:127 red/90000",
+        "a=rtpmap:124 rtx/90000",
+        "a=fmtp:124 apt=127",
+        "a=rtpmap:125 ulpfec/90000",
+        "a=ssrc:3735928559 cname:Xq3pXJ7RMxSkpsHN"
+    );
+
+    /** Video tracks of the layers, lowest first. */
+    private static final List<String> LAYER_TRACKS = Arrays.asList("Wizzeye_v_low", "Wizzeye_v_normal", "Wizzeye_v_hd");
+
+    /** Sources of the local offer with one video track per layer, each with its retransmission. */
+    private static final String LAYERED_OFFER = LOCAL_OFFER.replace("a=ssrc:3735928559 cname:Xq3pXJ7RMxSkpsHN\r\n", sdp(
+        "a=ssrc-group:FID 1001 1002",
+        "a=ssrc-group:FID 2001 2002",
+        "a=ssrc-group:FID 3001 3002",
+        "a=ssrc:1001 cname:Xq3pXJ7RMxSkpsHN",
+        "a=ssrc:1001 msid:Wizzeye Wizzeye_v_low",
+        "a=ssrc:1002 cname:Xq3pXJ7RMxSkpsHN",
+        "a=ssrc:1002 msid:Wizzeye Wizzeye_v_low",
+        "a=ssrc:2002 cname:Xq3pXJ7RMxSkpsHN",
+        "a=ssrc:2002 msid:Wizzeye Wizzeye_v_normal",
+        "a=ssrc:2001 cname:Xq3pXJ7RMxSkpsHN",
+        "a=ssrc:2001 msid:Wizzeye Wizzeye_v_normal",
+        "a=ssrc:3001 cname:Xq3pXJ7RMxSkpsHN",
+        "a=ssrc:3001 msid:Wizzeye Wizzeye_v_hd",
+        "a=ssrc:3002 cname:Xq3pXJ7RMxSkpsHN",
+        "a=ssrc:3002 msid:Wizzeye Wizzeye_v_hd"
+    ));
+
+    /** Answer of a desktop browser to the transformed offer. */
+    private static final String REMOTE_ANSWER = sdp(
+        "v=0",
+        "o=- 7618412537046364123 2 IN IP4 127.0.0.1",
+        "s=-",
+        "t=0 0",
+        "a=group:BUNDLE audio video",
+        "m=audio 9 UDP/TLS/RTP/SAVPF 111",
+        "c=IN IP4 0.0.0.0",
+        "a=mid:audio",
+        "a=recvonly",
+        "a=rtpmap:111 opus/48000/2",
+        "a=fmtp:111 minptime=10;useinbandfec=1",
+        "m=video 9 UDP/TLS/RTP/SAVPF 100 101",
+        "c=IN IP4 0.0.0.0",
+        "a=mid:video",
+        "a=recvonly",
+        "a=rtpmap:100 H264/90000",
+        "a=rtpmap:101 rtx/90000",
+        "a=fmtp:101 apt=100"
+    );
+
+    private static String sdp(String... lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines)
+            sb.append(line).append("\r\n");
+        return sb.toString();
+    }
+
+    private static List<String> lines(String sdp) {
+        return Arrays.asList(sdp.split("\r\n"));
+    }
+
+    private static SdpTransform transform(boolean dropFec, int maxVideoBitrate, int opusMaxBitrate, boolean opusDtx) {
+        return new SdpTransform(Arrays.asList("H264", "VP8"), dropFec, SdpTransform.UNUSED_EXTENSIONS,
+                                maxVideoBitrate, opusMaxBitrate, opusDtx, LAYER_TRACKS);
+    }
+
+    @Test
+    public void prunesAndReordersVideoCodecs() {
+        List<String> sdp = lines(transform(true, 0, 0, false).transformLocalOffer(LOCAL_OFFER));
+        assertTrue(sdp.contains("m=video 9 UDP/TLS/RTP/SAVPF 100 96 97 101"));
+        for (String line : sdp) {
+            assertFalse(line, line.matches("a=(rtpmap|fmtp|rtcp-fb):(98|99)[ :].*"));
+        }
+        assertTrue(sdp.contains("a=fmtp:100 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f"));
+        assertTrue(sdp.contains("a=rtcp-fb:96 nack pli"));
+    }
+
+    @Test
+    public void leavesAudioCodecsAlone() {
+        List<String> sdp = lines(transform(true, 0, 0, false).transformLocalOffer(LOCAL_OFFER));
+        assertTrue(sdp.contains("m=audio 9 UDP/TLS/RTP/SAVPF 111 103 9 0 8"));
+        assertTrue(sdp.contains("a=rtpmap:103 ISAC/16000"));
+    }
+
+    @Test
+    public void removesFecWithItsRetransmission() {
+        List<String> sdp = lines(transform(true, 0, 0, false).transformLocalOffer(LOCAL_OFFER));
+        for (String line : sdp) {
+            assertFalse(line, line.matches("a=(rtpmap|fmtp|rtcp-fb):(127|124|125)[ :].*"));
+        }
+    }
+
+    @Test
+    public void keepsFecOnRequest() {
+        List<String> sdp = lines(transform(false, 0, 0, false).transformLocalOffer(LOCAL_OFFER));
+        assertTrue(sdp.contains("m=video 9 UDP/TLS/RTP/SAVPF 100 96 127 125 97 101 124"));
+        assertTrue(sdp.contains("a=fmtp:124 apt=127"));
+    }
+
+    @Test
+    public void keepsOfferWithoutPreferredCodec() {
+        SdpTransform t = new SdpTransform(Collections.singletonList("AV1"), true, Collections.emptySet(), 0, 0, false,
+                                          Collections.emptyList());
+        assertEquals(LOCAL_OFFER, t.transformLocalOffer(LOCAL_OFFER));
+    }
+
+    @Test
+    public void stripsUnusedExtensions() {
+        List<String> sdp = lines(transform(true, 0, 0, false).transformLocalOffer(LOCAL_OFFER));
+        for (String line : sdp) {
+            if (!line.startsWith("a=extmap:"))
+                continue;
+            for (String uri : SdpTransform.UNUSED_EXTENSIONS)
+                assertFalse(line, line.endsWith(" " + uri));
+        }
+        assertTrue(sdp.contains("a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level"));
+        assertTrue(sdp.contains("a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time"));
+        assertTrue(sdp.contains("a=extmap:4 urn:3gpp:video-orientation"));
+    }
+
+    @Test
+    public void groupsLayersLowestFirst() {
+        SdpTransform t = transform(true, 0, 0, false);
+        List<String> sdp = lines(t.groupSimulcast(t.transformLocalOffer(LAYERED_OFFER)));
+        int group = sdp.indexOf("a=ssrc-group:SIM 1001 2001 3001");
+        assertTrue(group >= 0);
+        assertEquals("a=ssrc-group:FID 1001 1002", sdp.get(group + 1));
+        assertEquals(1, sdp.stream().filter(l -> l.startsWith("a=ssrc-group:SIM")).count());
+    }
+
+    @Test
+    public void keepsSimulcastGroupOutOfLocalOffer() {
+        List<String> sdp = lines(transform(true, 0, 0, false).transformLocalOffer(LAYERED_OFFER));
+        assertFalse(sdp.stream().anyMatch(l -> l.startsWith("a=ssrc-group:SIM")));
+    }
+
+    @Test
+    public void leavesOfferWithMissingLayerUngrouped() {
+        String offer = LAYERED_OFFER.replace("Wizzeye_v_hd", "Wizzeye_v_other");
+        assertEquals(offer, transform(true, 0, 0, false).groupSimulcast(offer));
+    }
+
+    @Test
+    public void leavesOfferWithSingleLayerUngrouped() {
+        SdpTransform t = new SdpTransform(Collections.singletonList("H264"), true, Collections.emptySet(), 0, 0, false,
+                                          Collections.singletonList("Wizzeye_v_low"));
+        assertEquals(LAYERED_OFFER, t.groupSimulcast(LAYERED_OFFER));
+    }
+
+    @Test
+    public void insertsVideoBandwidth() {
+        List<String> sdp = lines(transform(true, 500, 0, false).transformRemoteAnswer(REMOTE_ANSWER));
+        int video = sdp.indexOf("m=video 9 UDP/TLS/RTP/SAVPF 100 101");
+        assertEquals("c=IN IP4 0.0.0.0", sdp.get(video + 1));
+        assertEquals("b=AS:500", sdp.get(video + 2));
+        assertEquals(1, sdp.stream().filter(l -> l.startsWith("b=AS:")).count());
+    }
+
+    @Test
+    public void lowersHigherVideoBandwidth() {
+        String answer = REMOTE_ANSWER.replace("a=mid:video\r\n", "b=AS:2000\r\na=mid:video\r\n");
+        List<String> sdp = lines(transform(true, 500, 0, false).transformRemoteAnswer(answer));
+        assertTrue(sdp.contains("b=AS:500"));
+        assertFalse(sdp.contains("b=AS:2000"));
+    }
+
+    @Test
+    public void keepsLowerVideoBandwidth() {
+        String answer = REMOTE_ANSWER.replace("a=mid:video\r\n", "b=AS:300\r\na=mid:video\r\n");
+        List<String> sdp = lines(transform(true, 500, 0, false).transformRemoteAnswer(answer));
+        assertTrue(sdp.contains("b=AS:300"));
+        assertFalse(sdp.contains("b=AS:500"));
+    }
+
+    @Test
+    public void mergesOpusParameters() {
+        List<String> sdp = lines(transform(true, 0, 24, true).transformRemoteAnswer(REMOTE_ANSWER));
+        assertTrue(sdp.contains("a=fmtp:111 minptime=10;useinbandfec=1;maxaveragebitrate=24000;usedtx=1"));
+        assertFalse(sdp.stream().anyMatch(l -> l.startsWith("b=AS:")));
+    }
+
+    @Test
+    public void addsMissingOpusParameters() {
+        String answer = REMOTE_ANSWER.replace("a=fmtp:111 minptime=10;useinbandfec=1\r\n", "");
+        List<String> sdp = lines(transform(true, 0, 32, false).transformRemoteAnswer(answer));
+        int rtpmap = sdp.indexOf("a=rtpmap:111 opus/48000/2");
+        assertEquals("a=fmtp:111 maxaveragebitrate=32000;usedtx=0;useinbandfec=1", sdp.get(rtpmap + 1));
+    }
+
+    @Test
+    public void leavesAnswerAloneWithoutLimits() {
+        assertEquals(REMOTE_ANSWER, transform(true, 0, 0, false).transformRemoteAnswer(REMOTE_ANSWER));
+    }
+
+}
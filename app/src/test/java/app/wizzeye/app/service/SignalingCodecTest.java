@@ -0,0 +1,219 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.wizzeye.app.service;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SignalingCodecTest {
+
+    /**
+     * Encoded messages shared with TestBinaryGolden in server/message_test.go, so that both ends
+     * are checked against the same bytes.  The compressed payload is a stored deflate block,
+     * which both inflaters read alike; encoders may compress differently.
+     */
+    private static final Object[][] GOLDEN = {
+        {
+            "{\"type\":\"join\",\"room\":\"my-room\",\"role\":\"observer\",\"peer\":\"2\"}",
+            bytes(4, 3, 7, "my-room", 4, 8, "observer", 10, 1, "2"),
+        },
+        {
+            "{\"type\":\"error\",\"code\":4,\"text\":\"Role is already taken in room\"}",
+            bytes(1, 1, 1, 4, 2, 29, "Role is already taken in room"),
+        },
+        {
+            "{\"type\":\"join\",\"room\":\"my-room\",\"role\":\"glass-wearer\",\"resume\":true}",
+            bytes(4, 3, 7, "my-room", 4, 12, "glass-wearer", 7, 0),
+        },
+        {
+            "{\"type\":\"session\",\"session\":\"abc\",\"seq\":1,\"ack\":300}",
+            bytes(10, 8, 3, "abc", 11, 1, 1, 12, 2, 0xac, 0x02),
+        },
+        {
+            "{\"type\":\"ack\",\"ack\":1099511627776}",
+            bytes(12, 12, 6, 0x80, 0x80, 0x80, 0x80, 0x80, 0x20),
+        },
+    };
+
+    private static final byte[] GOLDEN_ANSWER =
+        bytes(7, 5, 18, 0x01, 13, 0, 0xf2, 0xff, "{\"sdp\":\"v=0\"}", 10, 1, "1");
+
+    /** Concatenate bytes given as ints and UTF-8 strings. */
+    private static byte[] bytes(Object... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Object part : parts) {
+            if (part instanceof String) {
+                byte[] b = ((String) part).getBytes(StandardCharsets.UTF_8);
+                out.write(b, 0, b.length);
+            } else {
+                out.write((Integer) part);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertSameMessage(JSONObject expected, JSONObject actual) throws JSONException {
+        assertEquals(expected.length(), actual.length());
+        for (String key : new String[] { "type", "room", "role", "text", "session", "peer" })
+            assertEquals(key, expected.optString(key), actual.optString(key));
+        for (String key : new String[] { "code", "seq", "ack" })
+            assertEquals(key, expected.optLong(key), actual.optLong(key));
+        assertEquals(expected.optBoolean("resume"), actual.optBoolean("resume"));
+    }
+
+    private static void assertRejected(byte[] data) {
+        try {
+            SignalingCodec.decode(data);
+            fail("Decoded " + Arrays.toString(data));
+        } catch (JSONException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void encodeGolden() throws JSONException {
+        for (Object[] golden : GOLDEN)
+            assertArrayEquals((String) golden[0], (byte[]) golden[1],
+                SignalingCodec.encode(new JSONObject((String) golden[0])));
+    }
+
+    @Test
+    public void decodeGolden() throws JSONException {
+        for (Object[] golden : GOLDEN)
+            assertSameMessage(new JSONObject((String) golden[0]), SignalingCodec.decode((byte[]) golden[1]));
+    }
+
+    @Test
+    public void decodeGoldenPayload() throws JSONException {
+        JSONObject msg = SignalingCodec.decode(GOLDEN_ANSWER);
+        assertEquals("answer", msg.getString("type"));
+        assertEquals("1", msg.getString("peer"));
+        assertEquals("v=0", msg.getJSONObject("payload").getString("sdp"));
+    }
+
+    @Test
+    public void roundTrip() throws JSONException {
+        JSONObject payload = new JSONObject();
+        payload.put("type", "offer");
+        payload.put("sdp", "v=0\r\no=- 4611731400430051336 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n");
+        JSONObject server = new JSONObject();
+        server.put("urls", new JSONArray("[\"turn:turn.example.org:3478\"]"));
+        server.put("username", "glass");
+        server.put("credential", "secret");
+        JSONObject msg = new JSONObject();
+        msg.put("type", "offer");
+        msg.put("peer", "1");
+        msg.put("seq", 42L);
+        msg.put("ack", 17L);
+        msg.put("payload", payload);
+        msg.put("iceServers", new JSONArray().put(server));
+
+        JSONObject decoded = SignalingCodec.decode(SignalingCodec.encode(msg));
+        assertEquals("offer", decoded.getString("type"));
+        assertEquals("1", decoded.getString("peer"));
+        assertEquals(42, decoded.getLong("seq"));
+        assertEquals(17, decoded.getLong("ack"));
+        assertEquals(payload.getString("sdp"), decoded.getJSONObject("payload").getString("sdp"));
+        JSONObject decodedServer = decoded.getJSONArray("iceServers").getJSONObject(0);
+        assertEquals("turn:turn.example.org:3478", decodedServer.getJSONArray("urls").getString(0));
+        assertEquals("secret", decodedServer.getString("credential"));
+    }
+
+    @Test
+    public void roundTripOmitsFalseResume() throws JSONException {
+        JSONObject msg = new JSONObject("{\"type\":\"join\",\"room\":\"my-room\",\"resume\":false}");
+        assertFalse(SignalingCodec.decode(SignalingCodec.encode(msg)).has("resume"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void encodeUnknownType() throws JSONException {
+        SignalingCodec.encode(new JSONObject("{\"type\":\"bogus\"}"));
+    }
+
+    @Test
+    public void decodeBadType() {
+        assertRejected(bytes());
+        assertRejected(bytes(0));
+        assertRejected(bytes(13));
+    }
+
+    @Test
+    public void decodeTruncatedVarint() {
+        assertRejected(bytes(1, 1, 1, 0x80));                    // code
+        assertRejected(bytes(1, 1, 1, 0x80, 2, 1, "x"));         // code, not within its field
+        assertRejected(bytes(1, 2, 0x80));                       // field length
+        assertRejected(bytes(12, 12, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0x01));
+    }
+
+    @Test
+    public void decodeTruncatedField() {
+        assertRejected(bytes(1, 2, 10, "x"));
+        assertRejected(bytes(7, 5, 2, 0xff, 0xff));
+    }
+
+    @Test
+    public void decodeOversizedPayload() {
+        char[] sdp = new char[2 << 20];
+        Arrays.fill(sdp, 'a');
+        byte[] json = ("{\"sdp\":\"" + new String(sdp) + "\"}").getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        deflater.setInput(json);
+        deflater.finish();
+        byte[] z = new byte[json.length];
+        int n = deflater.deflate(z);
+        assertTrue(deflater.finished());
+        deflater.end();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(7);
+        out.write(5);
+        for (int len = n; ; len >>>= 7) {
+            if (len < 0x80) {
+                out.write(len);
+                break;
+            }
+            out.write((len & 0x7f) | 0x80);
+        }
+        out.write(z, 0, n);
+        assertRejected(out.toByteArray());
+    }
+
+    @Test
+    public void decodeIgnoresUnknownFields() throws JSONException {
+        JSONObject msg = SignalingCodec.decode(bytes(2, 99, 3, "xyz"));
+        assertEquals("ping", msg.getString("type"));
+        assertEquals(1, msg.length());
+    }
+
+}
@@ -23,8 +23,10 @@ package main
 
 import (
 	"context"
+	"encoding/json"
 	"github.com/gorilla/websocket"
 	"log"
+	"sync/atomic"
 	"time"
 )
 
@@ -34,6 +36,35 @@ type Client struct {
 	pingqueue chan<- struct{}
 }
 
+func readMessage(conn *websocket.Conn, msg *Message) (int, error) {
+	_, data, err := conn.ReadMessage()
+	if err != nil {
+		return 0, err
+	}
+	if conn.Subprotocol() == SignalingProtocolV2 {
+		err = msg.UnmarshalBinary(data)
+	} else {
+		err = json.Unmarshal(data, msg)
+	}
+	return len(data), err
+}
+
+func writeMessage(conn *websocket.Conn, msg *Message) (int, error) {
+	var data []byte
+	var err error
+	frame := websocket.TextMessage
+	if conn.Subprotocol() == SignalingProtocolV2 {
+		data, err = msg.MarshalBinary()
+		frame = websocket.BinaryMessage
+	} else {
+		data, err = json.Marshal(msg)
+	}
+	if err != nil {
+		return 0, err
+	}
+	return len(data), conn.WriteMessage(frame, data)
+}
+
 func HandleClient(ctx context.Context, conn *websocket.Conn) {
 	router := RouterFromContext(ctx)
 	done := make(chan struct{})
@@ -48,6 +79,13 @@ func HandleClient(ctx context.Context, conn *websocket.Conn) {
 		pingqueue: ping,
 	}
 	defer c.cleanup(ctx)
+	// Traffic accounting
+	var rxbytes, txbytes int64
+	defer func() {
+		LogConn(ctx, "Traffic (", conn.Subprotocol(), "): ",
+			atomic.LoadInt64(&rxbytes), " bytes in, ",
+			atomic.LoadInt64(&txbytes), " bytes out")
+	}()
 	// Timeouts
 	pinginterval := time.Duration(Cfg.PingInterval) * time.Second
 	pongtimeout := time.Duration(Cfg.PongTimeout) * time.Second
@@ -68,7 +106,9 @@ func HandleClient(ctx context.Context, conn *websocket.Conn) {
 	go func() {
 		for {
 			msg := new(Message)
-			if err := conn.ReadJSON(msg); err != nil {
+			n, err := readMessage(conn, msg)
+			atomic.AddInt64(&rxbytes, int64(n))
+			if err != nil {
 				if websocket.IsUnexpectedCloseError(err, websocket.CloseNormalClosure, websocket.CloseGoingAway) {
 					log.Println("read error:", err)
 				}
@@ -94,7 +134,9 @@ func HandleClient(ctx context.Context, conn *websocket.Conn) {
 		case msg := <-outgoing:
 			LogConn(ctx, ">> ", msg)
 			conn.SetWriteDeadline(time.Now().Add(writetimeout))
-			if err := conn.WriteJSON(msg); err != nil {
+			n, err := writeMessage(conn, msg)
+			atomic.AddInt64(&txbytes, int64(n))
+			if err != nil {
 				log.Println("write error:", err)
 				return
 			}
@@ -137,7 +179,7 @@ func (c *Client) Ping(ctx context.Context) {
 }
 
 func (c *Client) cleanup(ctx context.Context) {
-	RouterFromContext(ctx).Incoming <- &Message{Origin: c, Type: LeaveMsg}
+	RouterFromContext(ctx).Gone <- c
 }
 
 // vim: set ts=4 sw=4 noet:
@@ -36,10 +36,12 @@ const (
 
 // Config is the top structure of the JSON configuration file.
 type Config struct {
-	Listen       string
-	PingInterval int
-	PongTimeout  int
-	WriteTimeout int
+	Listen        string
+	PingInterval  int
+	PongTimeout   int
+	WriteTimeout  int
+	ResumeTimeout int
+	MaxObservers  int
 }
 
 // Global configuration variable
@@ -50,9 +52,11 @@ var configFile = flag.String("config", "config.toml", "configuration file")
 func LoadConfig() {
 	// Default values
 	Cfg.Listen = ":8080"
-	Cfg.PingInterval = 60 // seconds
-	Cfg.PongTimeout = 5   // seconds
-	Cfg.WriteTimeout = 10 // seconds
+	Cfg.PingInterval = 60  // seconds
+	Cfg.PongTimeout = 5    // seconds
+	Cfg.WriteTimeout = 10  // seconds
+	Cfg.ResumeTimeout = 30 // seconds
+	Cfg.MaxObservers = 4
 	// Load configuration file
 	if _, err := toml.DecodeFile(*configFile, &Cfg); err != nil {
 		log.Print(*configFile, ": ", err)
@@ -0,0 +1,103 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package main
+
+import (
+	"context"
+)
+
+// The glass wearer sends each observer the video of every layer up to its
+// call quality, all but one paused, and groups them in the offer as Plan B
+// simulcast.  The router stands in for the layer selection of a selective
+// forwarding unit: it picks the layer each observer gets, the one requested
+// capped at the highest sent, and tells both sides.  The glass wearer then
+// activates the layer for that observer, whose browser receives it alone.
+
+// Video layers, from lowest to highest quality.
+var videoLayers = []string{"low", "normal", "hd"}
+
+// layerRank returns the position of a layer in videoLayers, or -1 if unknown.
+func layerRank(layer string) int {
+	for i, l := range videoLayers {
+		if l == layer {
+			return i
+		}
+	}
+	return -1
+}
+
+// pickLayer returns the layer to forward to an observer requesting the given
+// one.
+func (room *Room) pickLayer(requested string) string {
+	if room.TopLayer != "" && layerRank(requested) > layerRank(room.TopLayer) {
+		return room.TopLayer
+	}
+	return requested
+}
+
+// forwardLayer picks the layer of an observer and, if it changed, tells the
+// glass wearer and the observer.
+func (r *Router) forwardLayer(ctx context.Context, room *Room, seat *Seat) {
+	if seat.Layer == "" {
+		return // nothing requested yet, the glass wearer sends its highest
+	}
+	picked := room.pickLayer(seat.Layer)
+	if picked == seat.Picked {
+		return
+	}
+	seat.Picked = picked
+	for _, other := range room.Seats {
+		if other.Role == GlassWearerRole {
+			r.send(ctx, other.Client, &Message{Type: LayerMsg, Layer: picked, Peer: seat.Peer})
+		}
+	}
+	r.send(ctx, seat.Client, &Message{Type: LayerMsg, Layer: picked})
+}
+
+func (r *Router) layer(ctx context.Context, c *Client, layer string) {
+	if layerRank(layer) < 0 {
+		c.Send(ctx, MakeErrorMsg(ErrBadMessage))
+		return
+	}
+	room := r.clients[c]
+	if room == nil {
+		c.Send(ctx, MakeErrorMsg(ErrNoRoom))
+		return
+	}
+	seat := room.Seats[c]
+	if seat == nil {
+		return // still waiting for a seat
+	}
+	if seat.Role == GlassWearerRole {
+		room.TopLayer = layer
+		for _, other := range room.Seats {
+			if other.Role == ObserverRole {
+				r.forwardLayer(ctx, room, other)
+			}
+		}
+		return
+	}
+	seat.Layer = layer
+	r.forwardLayer(ctx, room, seat)
+}
+
+// vim: set ts=4 sw=4 noet:
@@ -42,13 +42,16 @@ func LogConn(ctx context.Context, v ...interface{}) {
 	log.Print(v...)
 }
 
-func checkSubprotocol(r *http.Request) bool {
-	for _, protocol := range websocket.Subprotocols(r) {
-		if protocol == SignalingProtocol {
-			return true
+func negotiateSubprotocol(r *http.Request) string {
+	offered := websocket.Subprotocols(r)
+	for _, supported := range []string{SignalingProtocolV2, SignalingProtocol} {
+		for _, protocol := range offered {
+			if protocol == supported {
+				return supported
+			}
 		}
 	}
-	return false
+	return ""
 }
 
 func websocketHandler(w http.ResponseWriter, r *http.Request) {
@@ -57,13 +60,14 @@ func websocketHandler(w http.ResponseWriter, r *http.Request) {
 		remote = r.RemoteAddr
 	}
 	ctx := context.WithValue(r.Context(), RemoteAddrKey, remote)
-	if !checkSubprotocol(r) {
+	protocol := negotiateSubprotocol(r)
+	if protocol == "" {
 		LogConn(ctx, "Subprotocol mismatch")
 		http.Error(w, "Subprotocol mismatch", http.StatusBadRequest)
 		return
 	}
 	conn, err := upgrader.Upgrade(w, r, http.Header{
-		"Sec-WebSocket-Protocol": []string{SignalingProtocol},
+		"Sec-WebSocket-Protocol": []string{protocol},
 	})
 	if err != nil {
 		log.Println(err)
@@ -24,11 +24,21 @@ package main
 import (
 	"bufio"
 	"bytes"
+	"compress/flate"
+	"encoding/binary"
 	"encoding/json"
 	"fmt"
+	"io"
+	"io/ioutil"
 )
 
-const SignalingProtocol = "v1.signaling.wizzeye.app"
+// Sub-protocols, in order of preference.
+// Version 1 transfers messages as JSON text frames.  Version 2 uses the
+// compact binary encoding implemented by MarshalBinary.
+const (
+	SignalingProtocolV2 = "v2.signaling.wizzeye.app"
+	SignalingProtocol   = "v1.signaling.wizzeye.app"
+)
 
 type MsgType string
 
@@ -44,29 +54,66 @@ const (
 	PongMsg MsgType = "pong"
 
 	// Join a room.
-	// Fields: room, role.
+	// Sent by the server to notify a participant of the other side joining;
+	// observers are then identified by their peer ID.
+	// When resume is set, the server will answer with a session message once
+	// a seat has been taken.  When session is set, the seat held by that
+	// session is re-attached to the current connection instead, and ack tells
+	// which messages of the session the client has already received.
+	// Fields: room, role, [resume], [session], [ack], [peer].
 	JoinMsg MsgType = "join"
 
 	// Leave current room.
-	// Fields: [room], [role].
+	// Fields: [room], [role], [peer].
 	LeaveMsg MsgType = "leave"
 
 	// SDP offer to forward to other participant.
-	// Fields: payload, [iceServers].
+	// Fields: payload, [iceServers], [peer].
 	OfferMsg MsgType = "offer"
 
 	// SDP answer to forward to other participant.
-	// Fields: payload.
+	// Fields: payload, [peer].
 	AnswerMsg MsgType = "answer"
 
 	// ICE candidate to forward to other participant.
-	// Fields: payload.
+	// Fields: payload, [peer].
 	IceCandidateMsg MsgType = "ice-candidate"
 
 	// Reset the WebRTC state, as if everyone has just joined.
+	// Fields: [peer].
 	ResetMsg MsgType = "reset"
+
+	// Session token that can be used to resume a seat after the connection
+	// has been lost.  In answer to a resume, ack tells which messages of the
+	// session the server has already received.
+	// Fields: session, [ack].
+	SessionMsg MsgType = "session"
+
+	// Video layer, one of low, normal or hd: requested by an observer, or
+	// the highest one sent by the glass wearer.  The router picks a layer for
+	// each observer and tells it to both sides, see forwarder.go.
+	// Fields: layer, [peer].
+	LayerMsg MsgType = "layer"
+
+	// Acknowledges the messages of a session up to ack, when there is no
+	// other message to carry the acknowledgement.
+	// Fields: ack.
+	AckMsg MsgType = "ack"
 )
 
+// Within a session, both sides number the messages they send with seq,
+// starting from 1, and acknowledge the last message received from the other
+// side with ack.  Messages are kept until acknowledged; when the session is
+// resumed, the unacknowledged messages are sent again and the receiver drops
+// those it had already seen.  Messages outside of a session, pings and
+// acknowledgements are not numbered.
+
+// A room has one glass wearer and up to Cfg.MaxObservers observers.  The
+// server assigns each observer a peer ID, unique within the room, and adds
+// it to every message going from that observer to the glass wearer.  The
+// glass wearer addresses a single observer by setting the peer field of its
+// messages; messages without peer go to all observers.
+
 type Error struct {
 	Code int
 	Text string
@@ -82,6 +129,7 @@ var (
 	ErrNoRoom     = &Error{3, "This action cannot be performed as no room has been joined yet"}
 	ErrRoleTaken  = &Error{4, "Role is already taken in room"}
 	ErrBadRoom    = &Error{5, "Invalid room name"}
+	ErrBadSession = &Error{6, "Unknown or expired session"}
 )
 
 type Role string
@@ -100,6 +148,12 @@ type Message struct {
 	Text       string          `json:"text,omitempty"`
 	Room       string          `json:"room,omitempty"`
 	Role       Role            `json:"role,omitempty"`
+	Resume     bool            `json:"resume,omitempty"`
+	Session    string          `json:"session,omitempty"`
+	Layer      string          `json:"layer,omitempty"`
+	Peer       string          `json:"peer,omitempty"`
+	Seq        uint64          `json:"seq,omitempty"`
+	Ack        uint64          `json:"ack,omitempty"`
 	Payload    json.RawMessage `json:"payload,omitempty"`
 	IceServers json.RawMessage `json:"iceServers,omitempty"`
 }
@@ -120,11 +174,221 @@ func (msg *Message) String() string {
 	if msg.Role != "" {
 		fmt.Fprint(w, ", role=\"", msg.Role, "\"")
 	}
+	if msg.Layer != "" {
+		fmt.Fprint(w, ", layer=\"", msg.Layer, "\"")
+	}
+	if msg.Peer != "" {
+		fmt.Fprint(w, ", peer=\"", msg.Peer, "\"")
+	}
+	if msg.Seq != 0 {
+		fmt.Fprint(w, ", seq=", msg.Seq)
+	}
+	if msg.Ack != 0 {
+		fmt.Fprint(w, ", ack=", msg.Ack)
+	}
 	fmt.Fprint(w, "}")
 	w.Flush()
 	return buf.String()
 }
 
+// Numeric message types of the binary encoding.  The index in this slice is
+// the value sent on the wire; new types must be appended at the end.
+var binaryMsgTypes = []MsgType{
+	"",
+	ErrorMsg,
+	PingMsg,
+	PongMsg,
+	JoinMsg,
+	LeaveMsg,
+	OfferMsg,
+	AnswerMsg,
+	IceCandidateMsg,
+	ResetMsg,
+	SessionMsg,
+	LayerMsg,
+	AckMsg,
+}
+
+// Field identifiers of the binary encoding.
+const (
+	codeField byte = iota + 1
+	textField
+	roomField
+	roleField
+	payloadField
+	iceServersField
+	resumeField
+	sessionField
+	layerField
+	peerField
+	seqField
+	ackField
+)
+
+// Maximum size of an inflated payload.
+const maxPayloadSize = 1 << 20
+
+// MarshalBinary encodes the message in the compact format of the v2
+// sub-protocol: one byte holding the numeric message type, followed by the
+// non-empty fields, each encoded as one identifier byte, the length of the
+// data as uvarint and the data itself.  JSON payloads are deflate-compressed.
+func (msg *Message) MarshalBinary() ([]byte, error) {
+	var id byte
+	for i, t := range binaryMsgTypes {
+		if i > 0 && t == msg.Type {
+			id = byte(i)
+		}
+	}
+	if id == 0 {
+		return nil, fmt.Errorf("cannot encode message type %q", msg.Type)
+	}
+	buf := []byte{id}
+	if msg.Code != 0 {
+		var v [binary.MaxVarintLen64]byte
+		buf = appendField(buf, codeField, v[:binary.PutUvarint(v[:], uint64(msg.Code))])
+	}
+	if msg.Text != "" {
+		buf = appendField(buf, textField, []byte(msg.Text))
+	}
+	if msg.Room != "" {
+		buf = appendField(buf, roomField, []byte(msg.Room))
+	}
+	if msg.Role != "" {
+		buf = appendField(buf, roleField, []byte(msg.Role))
+	}
+	if len(msg.Payload) > 0 {
+		z, err := deflate(msg.Payload)
+		if err != nil {
+			return nil, err
+		}
+		buf = appendField(buf, payloadField, z)
+	}
+	if len(msg.IceServers) > 0 {
+		z, err := deflate(msg.IceServers)
+		if err != nil {
+			return nil, err
+		}
+		buf = appendField(buf, iceServersField, z)
+	}
+	if msg.Resume {
+		buf = appendField(buf, resumeField, nil)
+	}
+	if msg.Session != "" {
+		buf = appendField(buf, sessionField, []byte(msg.Session))
+	}
+	if msg.Layer != "" {
+		buf = appendField(buf, layerField, []byte(msg.Layer))
+	}
+	if msg.Peer != "" {
+		buf = appendField(buf, peerField, []byte(msg.Peer))
+	}
+	if msg.Seq != 0 {
+		var v [binary.MaxVarintLen64]byte
+		buf = appendField(buf, seqField, v[:binary.PutUvarint(v[:], msg.Seq)])
+	}
+	if msg.Ack != 0 {
+		var v [binary.MaxVarintLen64]byte
+		buf = appendField(buf, ackField, v[:binary.PutUvarint(v[:], msg.Ack)])
+	}
+	return buf, nil
+}
+
+// UnmarshalBinary decodes a message encoded by MarshalBinary.  Unknown fields
+// are ignored for forward compatibility.
+func (msg *Message) UnmarshalBinary(data []byte) error {
+	if len(data) == 0 || data[0] == 0 || int(data[0]) >= len(binaryMsgTypes) {
+		return ErrBadMessage
+	}
+	msg.Type = binaryMsgTypes[data[0]]
+	data = data[1:]
+	for len(data) > 0 {
+		id := data[0]
+		n, k := binary.Uvarint(data[1:])
+		if k <= 0 || n > uint64(len(data)-1-k) {
+			return ErrBadMessage
+		}
+		field := data[1+k : 1+k+int(n)]
+		data = data[1+k+int(n):]
+		switch id {
+		case codeField:
+			code, k := binary.Uvarint(field)
+			if k <= 0 {
+				return ErrBadMessage
+			}
+			msg.Code = int(code)
+		case textField:
+			msg.Text = string(field)
+		case roomField:
+			msg.Room = string(field)
+		case roleField:
+			msg.Role = Role(field)
+		case payloadField:
+			raw, err := inflate(field)
+			if err != nil {
+				return err
+			}
+			msg.Payload = raw
+		case iceServersField:
+			raw, err := inflate(field)
+			if err != nil {
+				return err
+			}
+			msg.IceServers = raw
+		case resumeField:
+			msg.Resume = true
+		case sessionField:
+			msg.Session = string(field)
+		case layerField:
+			msg.Layer = string(field)
+		case peerField:
+			msg.Peer = string(field)
+		case seqField, ackField:
+			n, k := binary.Uvarint(field)
+			if k <= 0 {
+				return ErrBadMessage
+			}
+			if id == seqField {
+				msg.Seq = n
+			} else {
+				msg.Ack = n
+			}
+		}
+	}
+	return nil
+}
+
+func appendField(buf []byte, id byte, data []byte) []byte {
+	var n [binary.MaxVarintLen64]byte
+	buf = append(buf, id)
+	buf = append(buf, n[:binary.PutUvarint(n[:], uint64(len(data)))]...)
+	return append(buf, data...)
+}
+
+func deflate(data []byte) ([]byte, error) {
+	var buf bytes.Buffer
+	w, err := flate.NewWriter(&buf, flate.BestCompression)
+	if err != nil {
+		return nil, err
+	}
+	if _, err := w.Write(data); err != nil {
+		return nil, err
+	}
+	if err := w.Close(); err != nil {
+		return nil, err
+	}
+	return buf.Bytes(), nil
+}
+
+func inflate(data []byte) ([]byte, error) {
+	r := flate.NewReader(bytes.NewReader(data))
+	defer r.Close()
+	raw, err := ioutil.ReadAll(io.LimitReader(r, maxPayloadSize+1))
+	if err != nil || len(raw) > maxPayloadSize || !json.Valid(raw) {
+		return nil, ErrBadMessage
+	}
+	return raw, nil
+}
+
 func MakeErrorMsg(err error) *Message {
 	msg := &Message{Type: ErrorMsg}
 	if e, ok := err.(*Error); ok {
@@ -0,0 +1,292 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package main
+
+import (
+	"bytes"
+	"encoding/json"
+	"reflect"
+	"strings"
+	"testing"
+)
+
+// Typical SDP offer of the glass wearer.
+var testSDP = strings.Join([]string{
+	"v=0",
+	"o=- 4611731400430051336 2 IN IP4 127.0.0.1",
+	"s=-",
+	"t=0 0",
+	"a=group:BUNDLE audio video",
+	"a=msid-semantic: WMS ARDAMS",
+	"m=audio 9 UDP/TLS/RTP/SAVPF 111",
+	"c=IN IP4 0.0.0.0",
+	"a=rtcp:9 IN IP4 0.0.0.0",
+	"a=ice-ufrag:Bq5e",
+	"a=ice-pwd:HnXmm0ty8nXuflAq0FEtQy1z",
+	"a=ice-options:trickle renomination",
+	"a=fingerprint:sha-256 5B:D6:1E:8B:7A:5E:19:AD:40:A4:42:5E:60:9C:93:3A:2E:7F:1A:B6:C2:4C:3D:8E:11:F9:E0:0D:67:6A:9B:21",
+	"a=setup:actpass",
+	"a=mid:audio",
+	"a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level",
+	"a=sendrecv",
+	"a=rtcp-mux",
+	"a=rtpmap:111 opus/48000/2",
+	"a=rtcp-fb:111 transport-cc",
+	"a=fmtp:111 minptime=10;useinbandfec=1;usedtx=1",
+	"a=ssrc:1543087396 cname:4kTDjC1ZXJMcRXqn",
+	"a=ssrc:1543087396 msid:ARDAMS ARDAMSa0",
+	"m=video 9 UDP/TLS/RTP/SAVPF 96",
+	"c=IN IP4 0.0.0.0",
+	"a=rtcp:9 IN IP4 0.0.0.0",
+	"a=ice-ufrag:Bq5e",
+	"a=ice-pwd:HnXmm0ty8nXuflAq0FEtQy1z",
+	"a=ice-options:trickle renomination",
+	"a=fingerprint:sha-256 5B:D6:1E:8B:7A:5E:19:AD:40:A4:42:5E:60:9C:93:3A:2E:7F:1A:B6:C2:4C:3D:8E:11:F9:E0:0D:67:6A:9B:21",
+	"a=setup:actpass",
+	"a=mid:video",
+	"a=extmap:2 urn:ietf:params:rtp-hdrext:toffset",
+	"a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time",
+	"a=sendrecv",
+	"a=rtcp-mux",
+	"a=rtcp-rsize",
+	"a=rtpmap:96 VP8/90000",
+	"a=rtcp-fb:96 goog-remb",
+	"a=rtcp-fb:96 transport-cc",
+	"a=rtcp-fb:96 ccm fir",
+	"a=rtcp-fb:96 nack",
+	"a=rtcp-fb:96 nack pli",
+	"a=ssrc:2750430127 cname:4kTDjC1ZXJMcRXqn",
+	"a=ssrc:2750430127 msid:ARDAMS ARDAMSv0",
+	"",
+}, "\r\n")
+
+func testMessages(tb testing.TB) []*Message {
+	payload, err := json.Marshal(map[string]string{"type": "offer", "sdp": testSDP})
+	if err != nil {
+		tb.Fatal(err)
+	}
+	candidate, err := json.Marshal(map[string]interface{}{
+		"candidate":     "candidate:842163049 1 udp 1677729535 203.0.113.7 51234 typ srflx raddr 10.0.0.2 rport 51234 generation 0",
+		"sdpMid":        "video",
+		"sdpMLineIndex": 1,
+	})
+	if err != nil {
+		tb.Fatal(err)
+	}
+	return []*Message{
+		{
+			Type:    OfferMsg,
+			Peer:    "1",
+			Seq:     42,
+			Ack:     17,
+			Payload: payload,
+			IceServers: json.RawMessage(`[{"urls":["stun:stun.l.google.com:19302"]},` +
+				`{"urls":["turn:turn.example.org:3478"],"username":"glass","credential":"secret"}]`),
+		},
+		{Type: IceCandidateMsg, Peer: "1", Seq: 43, Payload: candidate},
+		{Type: JoinMsg, Room: "my-room", Role: ObserverRole, Peer: "2"},
+		{Type: ErrorMsg, Code: ErrRoleTaken.Code, Text: ErrRoleTaken.Text},
+		{Type: AckMsg, Ack: 1 << 40},
+	}
+}
+
+// compactJSON normalizes the raw JSON fields, as inflate returns them as sent.
+func compactJSON(tb testing.TB, raw json.RawMessage) string {
+	var v interface{}
+	if len(raw) == 0 {
+		return ""
+	}
+	if err := json.Unmarshal(raw, &v); err != nil {
+		tb.Fatal(err)
+	}
+	out, _ := json.Marshal(v)
+	return string(out)
+}
+
+func TestBinaryRoundTrip(t *testing.T) {
+	for _, msg := range testMessages(t) {
+		data, err := msg.MarshalBinary()
+		if err != nil {
+			t.Fatalf("%v: %v", msg, err)
+		}
+		got := new(Message)
+		if err := got.UnmarshalBinary(data); err != nil {
+			t.Fatalf("%v: %v", msg, err)
+		}
+		if compactJSON(t, got.Payload) != compactJSON(t, msg.Payload) ||
+			compactJSON(t, got.IceServers) != compactJSON(t, msg.IceServers) {
+			t.Errorf("%v: payload mismatch", msg)
+		}
+		want := *msg
+		want.Payload, want.IceServers = nil, nil
+		got.Payload, got.IceServers = nil, nil
+		if !reflect.DeepEqual(*got, want) {
+			t.Errorf("decoded %v, want %v", got, &want)
+		}
+	}
+}
+
+func TestBinaryBadMessage(t *testing.T) {
+	for _, data := range [][]byte{
+		{},
+		{0},
+		{byte(len(binaryMsgTypes))},
+		{1, byte(textField), 10, 'x'},
+		{1, byte(payloadField), 2, 0xff, 0xff},
+		{1, byte(seqField), 1, 0x80},
+	} {
+		if err := new(Message).UnmarshalBinary(data); err == nil {
+			t.Errorf("% x: decoded without error", data)
+		}
+	}
+}
+
+// Encoded messages shared with SignalingCodecTest of the app, so that both ends
+// are checked against the same bytes.
+var goldenMessages = []struct {
+	msg  Message
+	data []byte
+}{
+	{
+		Message{Type: JoinMsg, Room: "my-room", Role: ObserverRole, Peer: "2"},
+		golden(4, 3, 7, "my-room", 4, 8, "observer", 10, 1, "2"),
+	},
+	{
+		Message{Type: ErrorMsg, Code: ErrRoleTaken.Code, Text: ErrRoleTaken.Text},
+		golden(1, 1, 1, 4, 2, 29, "Role is already taken in room"),
+	},
+	{
+		Message{Type: JoinMsg, Room: "my-room", Role: GlassWearerRole, Resume: true},
+		golden(4, 3, 7, "my-room", 4, 12, "glass-wearer", 7, 0),
+	},
+	{
+		Message{Type: SessionMsg, Session: "abc", Seq: 1, Ack: 300},
+		golden(10, 8, 3, "abc", 11, 1, 1, 12, 2, 0xac, 0x02),
+	},
+	{
+		Message{Type: AckMsg, Ack: 1 << 40},
+		golden(12, 12, 6, 0x80, 0x80, 0x80, 0x80, 0x80, 0x20),
+	},
+}
+
+// Answer whose payload is a stored deflate block, which both inflaters read
+// alike; the encoders may compress differently.
+var goldenAnswer = golden(7, 5, 18, 0x01, 13, 0, 0xf2, 0xff, `{"sdp":"v=0"}`, 10, 1, "1")
+
+// golden concatenates bytes given as ints and strings.
+func golden(parts ...interface{}) []byte {
+	var buf []byte
+	for _, part := range parts {
+		switch p := part.(type) {
+		case int:
+			buf = append(buf, byte(p))
+		case string:
+			buf = append(buf, p...)
+		}
+	}
+	return buf
+}
+
+func TestBinaryGolden(t *testing.T) {
+	for _, g := range goldenMessages {
+		data, err := g.msg.MarshalBinary()
+		if err != nil {
+			t.Fatalf("%v: %v", &g.msg, err)
+		}
+		if !bytes.Equal(data, g.data) {
+			t.Errorf("%v: encoded % x, want % x", &g.msg, data, g.data)
+		}
+		got := new(Message)
+		if err := got.UnmarshalBinary(g.data); err != nil {
+			t.Fatalf("%v: %v", &g.msg, err)
+		}
+		if !reflect.DeepEqual(*got, g.msg) {
+			t.Errorf("decoded %v, want %v", got, &g.msg)
+		}
+	}
+	got := new(Message)
+	if err := got.UnmarshalBinary(goldenAnswer); err != nil {
+		t.Fatal(err)
+	}
+	if got.Type != AnswerMsg || got.Peer != "1" || string(got.Payload) != `{"sdp":"v=0"}` {
+		t.Errorf("decoded %v with payload %s", got, got.Payload)
+	}
+}
+
+// The benchmarks all count the size of the message in JSON as bytes processed,
+// so that their throughputs compare directly.  The deflate of the v2 encoding
+// trades CPU for bytes on the wire; the encoded sizes are logged.
+
+func benchmarkOffer(b *testing.B) (*Message, []byte, []byte) {
+	msg := testMessages(b)[0]
+	text, err := json.Marshal(msg)
+	if err != nil {
+		b.Fatal(err)
+	}
+	data, err := msg.MarshalBinary()
+	if err != nil {
+		b.Fatal(err)
+	}
+	b.Logf("offer: %d bytes as JSON, %d bytes as binary", len(text), len(data))
+	b.SetBytes(int64(len(text)))
+	b.ReportAllocs()
+	b.ResetTimer()
+	return msg, text, data
+}
+
+func BenchmarkEncodeJSON(b *testing.B) {
+	msg, _, _ := benchmarkOffer(b)
+	for i := 0; i < b.N; i++ {
+		if _, err := json.Marshal(msg); err != nil {
+			b.Fatal(err)
+		}
+	}
+}
+
+func BenchmarkEncodeBinary(b *testing.B) {
+	msg, _, _ := benchmarkOffer(b)
+	for i := 0; i < b.N; i++ {
+		if _, err := msg.MarshalBinary(); err != nil {
+			b.Fatal(err)
+		}
+	}
+}
+
+func BenchmarkDecodeJSON(b *testing.B) {
+	_, text, _ := benchmarkOffer(b)
+	for i := 0; i < b.N; i++ {
+		if err := json.Unmarshal(text, new(Message)); err != nil {
+			b.Fatal(err)
+		}
+	}
+}
+
+func BenchmarkDecodeBinary(b *testing.B) {
+	_, _, data := benchmarkOffer(b)
+	for i := 0; i < b.N; i++ {
+		if err := new(Message).UnmarshalBinary(data); err != nil {
+			b.Fatal(err)
+		}
+	}
+}
+
+// vim: set ts=4 sw=4 noet:
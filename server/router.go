@@ -23,38 +23,131 @@ package main
 
 import (
 	"context"
+	"crypto/rand"
+	"encoding/hex"
+	"log"
 	"regexp"
+	"strconv"
 	"strings"
+	"time"
 )
 
 var roomNameRegexp = regexp.MustCompile(`^[-_a-z0-9]{5,64}$`)
 
+// Maximum number of unacknowledged messages kept for replay per session.
+const sessionQueueSize = 50
+
+// Number of messages received in a session before they are acknowledged with
+// an ack message, if no other message carried the acknowledgement.
+const ackInterval = 8
+
+type Seat struct {
+	Client *Client
+	Role   Role
+	Peer   string // peer ID of observers
+	Layer  string // video layer requested by observers
+	Picked string // video layer picked for observers, see forwarder.go
+}
+
 type Room struct {
-	Name    string
-	Seats   map[Role]*Client
-	Waiting map[Role]*Client
+	Name     string
+	Seats    map[*Client]*Seat
+	Waiting  map[Role]*Client
+	TopLayer string // highest video layer sent by the glass wearer, if known
+	lastPeer int
+}
+
+// capacity returns the number of seats available for the given role.
+func capacity(role Role) int {
+	if role == ObserverRole && Cfg.MaxObservers > 1 {
+		return Cfg.MaxObservers
+	}
+	return 1
+}
+
+func (room *Room) count(role Role) int {
+	n := 0
+	for _, seat := range room.Seats {
+		if seat.Role == role {
+			n++
+		}
+	}
+	return n
+}
+
+func (room *Room) peer(id string) *Seat {
+	for _, seat := range room.Seats {
+		if seat.Role == ObserverRole && seat.Peer == id {
+			return seat
+		}
+	}
+	return nil
+}
+
+type Session struct {
+	Token    string
+	Client   *Client
+	Room     *Room
+	Role     Role
+	Detached bool
+	Sent     []*Message // sent messages not yet acknowledged, in order
+	timer    *time.Timer
+	detaches int // incremented on each detach, to recognize stale expiries
+
+	sendSeq   uint64 // sequence number of the last message sent
+	delivered uint64 // sequence number of the last message handed to a client
+	received  uint64 // sequence number of the last message received
+	acked     uint64 // last received sequence number acknowledged
+}
+
+// ack discards the sent messages acknowledged by the client.
+func (s *Session) ack(seq uint64) {
+	n := 0
+	for n < len(s.Sent) && s.Sent[n].Seq <= seq {
+		n++
+	}
+	s.Sent = s.Sent[n:]
+}
+
+// sessionExpiry is the end of the resume timeout of one detach of a session.
+type sessionExpiry struct {
+	session *Session
+	detach  int
 }
 
 type Router struct {
 	Incoming chan<- *Message
 	Alive    chan<- *Client
+	Gone     chan<- *Client
 
-	queue   chan *Message
-	alive   chan *Client
-	rooms   map[string]*Room
-	clients map[*Client]*Room
+	queue     chan *Message
+	alive     chan *Client
+	gone      chan *Client
+	expired   chan sessionExpiry
+	rooms     map[string]*Room
+	clients   map[*Client]*Room
+	resumable map[*Client]bool
+	sessions  map[*Client]*Session
+	tokens    map[string]*Session
 }
 
 func ContextWithNewRouter(ctx context.Context) context.Context {
 	queue := make(chan *Message, 100)
 	alive := make(chan *Client, 100)
+	gone := make(chan *Client, 100)
 	router := &Router{
-		Incoming: queue,
-		Alive:    alive,
-		queue:    queue,
-		alive:    alive,
-		rooms:    make(map[string]*Room),
-		clients:  make(map[*Client]*Room),
+		Incoming:  queue,
+		Alive:     alive,
+		Gone:      gone,
+		queue:     queue,
+		alive:     alive,
+		gone:      gone,
+		expired:   make(chan sessionExpiry, 100),
+		rooms:     make(map[string]*Room),
+		clients:   make(map[*Client]*Room),
+		resumable: make(map[*Client]bool),
+		sessions:  make(map[*Client]*Session),
+		tokens:    make(map[string]*Session),
 	}
 	ctx = context.WithValue(ctx, RouterKey, router)
 	go router.run(ctx)
@@ -72,6 +165,10 @@ func (r *Router) run(ctx context.Context) {
 			r.handle(ctx, msg)
 		case c := <-r.alive:
 			r.handleAlive(ctx, c)
+		case c := <-r.gone:
+			r.handleGone(ctx, c)
+		case e := <-r.expired:
+			r.handleExpired(ctx, e)
 		}
 	}
 }
@@ -81,7 +178,7 @@ func (r *Router) getRoom(name string) *Room {
 	if room == nil {
 		room = &Room{
 			Name:    name,
-			Seats:   make(map[Role]*Client),
+			Seats:   make(map[*Client]*Seat),
 			Waiting: make(map[Role]*Client),
 		}
 		r.rooms[name] = room
@@ -96,15 +193,42 @@ func (r *Router) putRoom(room *Room) {
 }
 
 func (r *Router) handle(ctx context.Context, msg *Message) {
+	if s := r.sessions[msg.Origin]; s != nil {
+		if msg.Ack != 0 {
+			s.ack(msg.Ack)
+		}
+		if msg.Seq != 0 {
+			if msg.Seq <= s.received {
+				return // already received before the connection was lost
+			}
+			s.received = msg.Seq
+			if s.received-s.acked >= ackInterval {
+				s.acked = s.received
+				msg.Origin.Send(ctx, &Message{Type: AckMsg, Ack: s.received})
+			}
+		}
+	}
+
 	switch msg.Type {
 	case PingMsg:
 		r.ping(ctx, msg.Origin)
 	case JoinMsg:
-		r.join(ctx, msg.Origin, msg.Room, msg.Role)
+		if msg.Session != "" {
+			r.resume(ctx, msg.Origin, msg.Session, msg.Ack)
+		} else {
+			if msg.Resume {
+				r.resumable[msg.Origin] = true
+			}
+			r.join(ctx, msg.Origin, msg.Room, msg.Role)
+		}
 	case LeaveMsg:
 		r.leave(ctx, msg.Origin)
 	case OfferMsg, AnswerMsg, IceCandidateMsg, ResetMsg:
 		r.forward(ctx, msg.Origin, msg)
+	case LayerMsg:
+		r.layer(ctx, msg.Origin, msg.Layer)
+	case AckMsg:
+		// processed above
 	default:
 		msg.Origin.Send(ctx, MakeErrorMsg(ErrBadMessage))
 	}
@@ -118,16 +242,148 @@ func (r *Router) handleAlive(ctx context.Context, c *Client) {
 		return
 	}
 
-	for role, cc := range room.Seats {
-		if cc == c {
-			if waiter := room.Waiting[role]; waiter != nil {
-				waiter.Send(ctx, MakeErrorMsg(ErrRoleTaken))
-				delete(room.Waiting, role)
-			}
+	if seat := room.Seats[c]; seat != nil {
+		if waiter := room.Waiting[seat.Role]; waiter != nil {
+			waiter.Send(ctx, MakeErrorMsg(ErrRoleTaken))
+			delete(room.Waiting, seat.Role)
 		}
 	}
 }
 
+func (r *Router) handleGone(ctx context.Context, c *Client) {
+	s := r.sessions[c]
+	if s == nil || Cfg.ResumeTimeout <= 0 {
+		delete(r.resumable, c)
+		r.leave(ctx, c)
+		return
+	}
+
+	log.Print("Holding seat ", s.Role, " in room ", s.Room.Name)
+	s.Detached = true
+	s.detaches++
+	e := sessionExpiry{session: s, detach: s.detaches}
+	s.timer = time.AfterFunc(time.Duration(Cfg.ResumeTimeout)*time.Second, func() {
+		r.expired <- e
+	})
+}
+
+func (r *Router) handleExpired(ctx context.Context, e sessionExpiry) {
+	s := e.session
+	// Stopping the timer does not withdraw an expiry already queued: ignore
+	// those of an earlier detach, the session was resumed since.
+	if r.tokens[s.Token] != s || !s.Detached || e.detach != s.detaches {
+		return
+	}
+	log.Print("Releasing seat ", s.Role, " in room ", s.Room.Name)
+	delete(r.resumable, s.Client)
+	r.leave(ctx, s.Client)
+}
+
+// send numbers a message to a client holding a session and keeps it until
+// acknowledged, so that it can be replayed on resume.  While the session is
+// detached, the message is only kept.
+func (r *Router) send(ctx context.Context, c *Client, msg *Message) {
+	s := r.sessions[c]
+	if s == nil {
+		c.Send(ctx, msg)
+		return
+	}
+	s.sendSeq++
+	out := *msg // msg may be shared by several recipients
+	out.Seq = s.sendSeq
+	out.Ack = s.received
+	if len(s.Sent) >= sessionQueueSize {
+		log.Println("session replay buffer full, dropping message:", s.Sent[0])
+		s.Sent = s.Sent[1:]
+	}
+	s.Sent = append(s.Sent, &out)
+	if !s.Detached {
+		s.acked = s.received
+		s.delivered = out.Seq
+		c.Send(ctx, &out)
+	}
+}
+
+func (r *Router) newSession(ctx context.Context, c *Client, room *Room, role Role) {
+	buf := make([]byte, 16)
+	if _, err := rand.Read(buf); err != nil {
+		log.Println("session token error:", err)
+		return
+	}
+	s := &Session{
+		Token:  hex.EncodeToString(buf),
+		Client: c,
+		Room:   room,
+		Role:   role,
+	}
+	r.sessions[c] = s
+	r.tokens[s.Token] = s
+	r.send(ctx, c, &Message{Type: SessionMsg, Session: s.Token})
+}
+
+func (r *Router) dropSession(c *Client) {
+	s := r.sessions[c]
+	if s == nil {
+		return
+	}
+	if s.timer != nil {
+		s.timer.Stop()
+	}
+	delete(r.sessions, c)
+	delete(r.tokens, s.Token)
+}
+
+func (r *Router) resume(ctx context.Context, c *Client, token string, ack uint64) {
+	s := r.tokens[token]
+	if s == nil {
+		c.Send(ctx, MakeErrorMsg(ErrBadSession))
+		return
+	}
+
+	r.leave(ctx, c)
+
+	old := s.Client
+	if s.timer != nil {
+		s.timer.Stop()
+		s.timer = nil
+	}
+	delete(r.sessions, old)
+	delete(r.clients, old)
+	delete(r.resumable, old)
+	for wr, wc := range s.Room.Waiting {
+		if wc == old {
+			delete(s.Room.Waiting, wr)
+		}
+	}
+	seat := s.Room.Seats[old]
+	if seat == nil {
+		seat = &Seat{Role: s.Role}
+	}
+	delete(s.Room.Seats, old)
+
+	s.Client = c
+	s.Detached = false
+	seat.Client = c
+	s.Room.Seats[c] = seat
+	r.sessions[c] = s
+	r.clients[c] = s.Room
+	r.resumable[c] = true
+
+	if ack == 0 {
+		// client without acknowledgements: only replay what it missed
+		ack = s.delivered
+	}
+	s.ack(ack)
+	log.Print("Resumed seat ", s.Role, " in room ", s.Room.Name,
+		", replaying ", len(s.Sent), " messages")
+	s.acked = s.received
+	c.Send(ctx, &Message{Type: SessionMsg, Session: s.Token, Ack: s.received})
+	for _, msg := range s.Sent {
+		c.Send(ctx, msg)
+		s.delivered = msg.Seq
+	}
+}
+
 func (r *Router) ping(ctx context.Context, c *Client) {
 	c.Send(ctx, &Message{Type: PongMsg})
 }
@@ -151,27 +407,45 @@ func (r *Router) join(ctx context.Context, c *Client, name string, role Role) {
 	defer r.putRoom(room)
 
 	r.clients[c] = room
-	if other := room.Seats[role]; other != nil {
+	if room.count(role) >= capacity(role) {
 		if waiter := room.Waiting[role]; waiter != nil {
 			waiter.Send(ctx, MakeErrorMsg(ErrRoleTaken))
 		}
 		room.Waiting[role] = c
-		other.Ping(ctx)
+		for _, other := range room.Seats {
+			if other.Role == role {
+				other.Client.Ping(ctx)
+			}
+		}
 		return
 	}
-	room.Seats[role] = c
-	for sr, sc := range room.Seats {
-		if sc != c {
-			sc.Send(ctx, &Message{
-				Type: JoinMsg,
-				Room: room.Name,
-				Role: role,
-			})
-			c.Send(ctx, &Message{
-				Type: JoinMsg,
-				Room: room.Name,
-				Role: sr,
-			})
+	seat := &Seat{Client: c, Role: role}
+	if role == ObserverRole {
+		room.lastPeer++
+		seat.Peer = strconv.Itoa(room.lastPeer)
+	}
+	room.Seats[c] = seat
+	if r.resumable[c] {
+		r.newSession(ctx, c, room, role)
+	}
+	for _, other := range room.Seats {
+		if other.Role == role {
+			continue // observers do not see each other
+		}
+		r.send(ctx, other.Client, &Message{
+			Type: JoinMsg,
+			Room: room.Name,
+			Role: role,
+			Peer: seat.Peer,
+		})
+		r.send(ctx, c, &Message{
+			Type: JoinMsg,
+			Room: room.Name,
+			Role: other.Role,
+			Peer: other.Peer,
+		})
+		if other.Picked != "" {
+			r.send(ctx, c, &Message{Type: LayerMsg, Layer: other.Picked, Peer: other.Peer})
 		}
 	}
 }
@@ -190,37 +464,70 @@ func (r *Router) leave(ctx context.Context, c *Client) {
 		}
 	}
 
-	var role Role
-	for sr, sc := range room.Seats {
-		if sc == c {
-			delete(room.Seats, sr)
-			role = sr
+	if seat := room.Seats[c]; seat != nil {
+		delete(room.Seats, c)
+		if seat.Role == GlassWearerRole {
+			room.TopLayer = ""
 		}
-	}
-	if role != "" {
-		for _, sc := range room.Seats {
-			sc.Send(ctx, &Message{Type: LeaveMsg, Room: room.Name, Role: role})
+		for _, other := range room.Seats {
+			if other.Role != seat.Role {
+				r.send(ctx, other.Client, &Message{
+					Type: LeaveMsg,
+					Room: room.Name,
+					Role: seat.Role,
+					Peer: seat.Peer,
+				})
+			}
 		}
-		if waiter := room.Waiting[role]; waiter != nil {
-			r.join(ctx, waiter, room.Name, role)
+		if waiter := room.Waiting[seat.Role]; waiter != nil {
+			r.join(ctx, waiter, room.Name, seat.Role)
 		}
 	}
 
+	r.dropSession(c)
 	delete(r.clients, c)
 }
 
+// forward relays a message to the other side of the room.  Messages from an
+// observer are tagged with its peer ID; messages from the glass wearer go to
+// the observer designated by their peer field, or to all observers.
 func (r *Router) forward(ctx context.Context, c *Client, msg *Message) {
 	room := r.clients[c]
 	defer r.putRoom(room)
 
-	if room != nil {
-		for _, cc := range room.Seats {
-			if cc != c {
-				cc.Send(ctx, msg)
+	if room == nil {
+		c.Send(ctx, MakeErrorMsg(ErrNoRoom))
+		return
+	}
+	seat := room.Seats[c]
+	if seat == nil {
+		c.Send(ctx, MakeErrorMsg(ErrNoRoom))
+		return
+	}
+
+	if seat.Role == ObserverRole {
+		out := *msg
+		out.Peer = seat.Peer
+		for _, other := range room.Seats {
+			if other.Role != ObserverRole {
+				r.send(ctx, other.Client, &out)
 			}
 		}
-	} else {
-		c.Send(ctx, MakeErrorMsg(ErrNoRoom))
+		return
+	}
+
+	out := *msg
+	out.Peer = ""
+	if msg.Peer != "" {
+		if target := room.peer(msg.Peer); target != nil {
+			r.send(ctx, target.Client, &out)
+		}
+		return
+	}
+	for _, other := range room.Seats {
+		if other.Role != seat.Role {
+			r.send(ctx, other.Client, &out)
+		}
 	}
 }
 
@@ -0,0 +1,186 @@
+/* Copyright (c) 2018 The Wizzeye Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package main
+
+import (
+	"context"
+	"encoding/json"
+	"github.com/gorilla/websocket"
+	"net/http"
+	"net/http/httptest"
+	"strings"
+	"testing"
+	"time"
+)
+
+func newTestServer() *httptest.Server {
+	Cfg = Config{
+		PingInterval:  60,
+		PongTimeout:   5,
+		WriteTimeout:  10,
+		ResumeTimeout: 30,
+		MaxObservers:  4,
+	}
+	ctx := ContextWithNewRouter(context.Background())
+	return httptest.NewServer(http.HandlerFunc(func(rw http.ResponseWriter, req *http.Request) {
+		websocketHandler(rw, req.WithContext(ctx))
+	}))
+}
+
+func dial(t *testing.T, srv *httptest.Server, protocol string) *websocket.Conn {
+	t.Helper()
+	dialer := websocket.Dialer{Subprotocols: []string{protocol}}
+	conn, _, err := dialer.Dial("ws"+strings.TrimPrefix(srv.URL, "http")+"/ws", nil)
+	if err != nil {
+		t.Fatal(err)
+	}
+	return conn
+}
+
+func put(t *testing.T, conn *websocket.Conn, msg *Message) {
+	t.Helper()
+	if _, err := writeMessage(conn, msg); err != nil {
+		t.Fatal(err)
+	}
+}
+
+// expect reads the next message and checks its type and sequence number.
+func expect(t *testing.T, conn *websocket.Conn, typ MsgType, seq uint64) *Message {
+	t.Helper()
+	conn.SetReadDeadline(time.Now().Add(5 * time.Second))
+	msg := new(Message)
+	if _, err := readMessage(conn, msg); err != nil {
+		t.Fatal(err)
+	}
+	if msg.Type != typ || msg.Seq != seq {
+		t.Fatalf("got %v, want type %s with seq %d", msg, typ, seq)
+	}
+	return msg
+}
+
+func TestResume(t *testing.T) {
+	for _, protocol := range []string{SignalingProtocol, SignalingProtocolV2} {
+		t.Run(protocol, func(t *testing.T) {
+			testResume(t, protocol)
+		})
+	}
+}
+
+func testResume(t *testing.T, protocol string) {
+	srv := newTestServer()
+	defer srv.Close()
+	offer := json.RawMessage(`{"type":"offer","sdp":"v=0"}`)
+	answer := json.RawMessage(`{"type":"answer","sdp":"v=0"}`)
+
+	glass := dial(t, srv, protocol)
+	put(t, glass, &Message{Type: JoinMsg, Room: "resume-test", Role: GlassWearerRole, Resume: true})
+	token := expect(t, glass, SessionMsg, 1).Session
+
+	observer := dial(t, srv, protocol)
+	defer observer.Close()
+	put(t, observer, &Message{Type: JoinMsg, Room: "resume-test", Role: ObserverRole})
+	expect(t, observer, JoinMsg, 0)
+	expect(t, glass, JoinMsg, 2)
+	put(t, glass, &Message{Type: AnswerMsg, Payload: answer, Seq: 1, Ack: 2})
+	expect(t, observer, AnswerMsg, 0)
+
+	// Drop the glass wearer without closing handshake.  The offer sent in the
+	// meantime is either lost on the dead connection or held by the session;
+	// both ways it must be replayed on resume.
+	glass.Close()
+	put(t, observer, &Message{Type: OfferMsg, Payload: offer})
+
+	glass = dial(t, srv, protocol)
+	defer glass.Close()
+	put(t, glass, &Message{Type: JoinMsg, Session: token, Ack: 2})
+	if msg := expect(t, glass, SessionMsg, 0); msg.Session != token || msg.Ack != 1 {
+		t.Fatalf("resumed with %v, want session %s and ack 1", msg, token)
+	}
+	if msg := expect(t, glass, OfferMsg, 3); string(msg.Payload) != string(offer) {
+		t.Fatalf("replayed offer %s, want %s", msg.Payload, offer)
+	}
+
+	// The answer was received before the drop: its retransmission must not
+	// reach the observer a second time.
+	put(t, glass, &Message{Type: AnswerMsg, Payload: answer, Seq: 1, Ack: 3})
+	put(t, glass, &Message{Type: ResetMsg, Seq: 2, Ack: 3})
+	expect(t, observer, ResetMsg, 0)
+}
+
+func TestResumeUnknownSession(t *testing.T) {
+	srv := newTestServer()
+	defer srv.Close()
+
+	conn := dial(t, srv, SignalingProtocol)
+	defer conn.Close()
+	put(t, conn, &Message{Type: JoinMsg, Session: "0123456789abcdef", Ack: 1})
+	if msg := expect(t, conn, ErrorMsg, 0); msg.Code != ErrBadSession.Code {
+		t.Fatalf("got %v, want error %d", msg, ErrBadSession.Code)
+	}
+}
+
+func TestLayerForwarding(t *testing.T) {
+	srv := newTestServer()
+	defer srv.Close()
+
+	glass := dial(t, srv, SignalingProtocol)
+	defer glass.Close()
+	put(t, glass, &Message{Type: JoinMsg, Room: "layer-test", Role: GlassWearerRole})
+	put(t, glass, &Message{Type: LayerMsg, Layer: "normal"})
+	// The router handles the messages of all clients in turn: once the pong
+	// is back, the layer is known before any request of the observer.
+	put(t, glass, &Message{Type: PingMsg})
+	expect(t, glass, PongMsg, 0)
+
+	observer := dial(t, srv, SignalingProtocol)
+	defer observer.Close()
+	put(t, observer, &Message{Type: JoinMsg, Room: "layer-test", Role: ObserverRole})
+	expect(t, observer, JoinMsg, 0)
+	peer := expect(t, glass, JoinMsg, 0).Peer
+
+	expectLayer := func(layer string) {
+		t.Helper()
+		if msg := expect(t, glass, LayerMsg, 0); msg.Layer != layer || msg.Peer != peer {
+			t.Fatalf("glass wearer got %v, want layer %s for peer %s", msg, layer, peer)
+		}
+		if msg := expect(t, observer, LayerMsg, 0); msg.Layer != layer || msg.Peer != "" {
+			t.Fatalf("observer got %v, want layer %s", msg, layer)
+		}
+	}
+
+	// Requests above the highest layer sent are capped
+	put(t, observer, &Message{Type: LayerMsg, Layer: "hd"})
+	expectLayer("normal")
+	put(t, observer, &Message{Type: LayerMsg, Layer: "low"})
+	expectLayer("low")
+
+	// A new highest layer picks again for every observer
+	put(t, glass, &Message{Type: LayerMsg, Layer: "hd"})
+	put(t, glass, &Message{Type: PingMsg})
+	expect(t, glass, PongMsg, 0)
+	put(t, observer, &Message{Type: LayerMsg, Layer: "hd"})
+	expectLayer("hd")
+	put(t, glass, &Message{Type: LayerMsg, Layer: "low"})
+	expectLayer("low")
+}
+
+// vim: set ts=4 sw=4 noet:
@@ -28,6 +28,8 @@
 let params = new URLSearchParams(document.location.search.substring(1));
 let role = params.get('role') || 'observer';
 let pingInterval = params.has('pingInterval') ? parseInt(params.get('pingInterval')) : 30;
+let layer = params.get('layer') || 'hd';
+let pickedLayer = null; // layer picked by the server, null for the highest
 let room = location.pathname.replace(/^\/*(.*?)\/*$/, '$1');
 
 
@@ -37,6 +39,7 @@ let room = location.pathname.replace(/^\/*(.*?)\/*$/, '$1');
 
 document.title = room + " • " + document.title;
 $("#roomname").text(room).attr('href', location);
+$("#layer").val(layer).toggleClass('d-none', role != 'observer');
 
 let UI = {
   BOXES: ["#statusbox", "#errorbox", "#remote"],
@@ -109,7 +112,7 @@ let STATUS_HINTS = [
 let Err = {
   WEBSOCKET_ERROR: "The Wizzeye server is momentarily unreachable.  Try reloading this page.",
   INVALID_ROOM: "The chosen room name is not valid.  Try choosing another name.",
-  ROOM_BUSY: "Another observer has already joined the room.  You cannot join this room until she has left.",
+  ROOM_BUSY: "The maximum number of observers has been reached for this room.  You cannot join this room until one of them has left.",
   SIGNALING: "An error has occurred while communicating with the Wizzeye server.  Try reloading this page.",
   MEDIA_DENIED: "The microphone on this device could not be accessed.  Check that you have a microphone and that your browser settings allow this website to use it.",
   WEBRTC: "An error occurred while establishing the video communication.  Try reloading this page.",
@@ -218,14 +221,44 @@ WizzeyeSocket.prototype.send = function(msg) {
  * WebRTC helpers
  ******************************************************************************/
 
+const LAYERS = ['low', 'normal', 'hd'];
+
+// Keep the video of one layer in an offer grouping the layers in Plan B
+// simulcast (a=ssrc-group:SIM, lowest first), with its retransmission.  The
+// browser would only decode the first layer of the group.
+function keepLayer(offer, layer) {
+  let lines = offer.sdp.split('\r\n');
+  let sim = lines.find(l => l.startsWith('a=ssrc-group:SIM '));
+  if (sim === undefined)
+    return offer;
+  let ssrcs = sim.split(' ').slice(1);
+  let rank = LAYERS.indexOf(layer);
+  let keep = [ssrcs[rank < 0 ? ssrcs.length - 1 : Math.min(rank, ssrcs.length - 1)]];
+  for (let l of lines) {
+    let fid = l.match(/^a=ssrc-group:FID (\d+) (\d+)$/);
+    if (fid && fid[1] == keep[0])
+      keep.push(fid[2]);
+  }
+  lines = lines.filter(l => {
+    if (l.startsWith('a=ssrc-group:'))
+      return l.split(' ').slice(1).every(s => keep.includes(s));
+    let m = l.match(/^a=ssrc:(\d+) /);
+    return !m || keep.includes(m[1]);
+  });
+  return {type: offer.type, sdp: lines.join('\r\n')};
+}
+
 let RTC = {
   onIceConnected: null,
   onIceDisconnected: null,
   onIceFailed: null,
   onIceCandidate: null,
   pc: null,
+  offer: null,  // last offer received, with all layers
+  layer: null,  // layer kept from the offer
 
   closePC: function() {
+    this.offer = null;
     if (this.pc != null) {
       this.pc.then(pc => pc.close()).catch(e => { /* ignore */ });
       this._rejectPC("closePC called");
@@ -264,6 +297,10 @@ let RTC = {
     pc.onaddstream = (event => {
       $("#remote")[0].srcObject = event.stream;
     });
+    pc.ondatachannel = (event => {
+      if (event.channel.label == 'control')
+        Control.attach(event.channel);
+    });
     this._resolvePC(pc);
     return pc;
   },
@@ -276,13 +313,35 @@ let RTC = {
       .then(() => pc.localDescription);
   },
 
-  makeAnswer: function(stream, offer, iceServers) {
+  makeAnswer: function(stream, offer, iceServers, layer) {
     let pc = this._createPC(iceServers);
-    return pc.setRemoteDescription(offer)
+    this.offer = offer;
+    this.layer = layer;
+    this._described = pc.setRemoteDescription(keepLayer(offer, layer))
       .then(() => pc.addStream(stream))
       .then(() => pc.createAnswer())
-      .then(answer => pc.setLocalDescription(answer))
-      .then(() => pc.localDescription);
+      .then(answer => pc.setLocalDescription(answer));
+    return this._described.then(() => pc.localDescription);
+  },
+
+  // Receive another layer of the last offer.  The answer only changes
+  // locally: the glass wearer switches layers on its side.
+  selectLayer: function(layer) {
+    let offer = this.offer;
+    if (offer == null || layer == this.layer)
+      return Promise.resolve();
+    this.layer = layer;
+    let pcp = this.pc;
+    this._described = this._described
+      .then(() => pcp)
+      .then(pc => {
+        if (this.offer !== offer)
+          return; // closed since
+        return pc.setRemoteDescription(keepLayer(offer, layer))
+          .then(() => pc.createAnswer())
+          .then(answer => pc.setLocalDescription(answer));
+      });
+    return this._described;
   },
 
   setAnswer: function(answer) {
@@ -297,6 +356,152 @@ let RTC = {
 RTC.closePC();
 
 
+/*******************************************************************************
+ * Remote control
+ ******************************************************************************/
+
+// Binary commands sent over the unreliable "control" data channel opened by the
+// glass wearer: type (u8), sequence number (u16), arguments; big-endian.
+// Every command but LATENCY is acknowledged once applied, which gives us the
+// observer-to-headset latency.
+let Control = {
+  POINTER: 1,
+  POINTER_HIDE: 2,
+  ZOOM: 3,
+  FOCUS: 4,
+  LATENCY: 5,
+  ACK: 0x80,
+  MAX_ZOOM: 3,
+  MAX_PENDING: 256,
+  LATENCY_REPORT_INTERVAL: 50, // acknowledgements
+
+  channel: null,
+  seq: 0,
+  pending: new Map(),
+  latencies: [],
+  zoom: 0,
+
+  attach: function(channel) {
+    channel.binaryType = 'arraybuffer';
+    channel.onmessage = (event => this._received(event.data));
+    channel.onclose = (() => {
+      if (this.channel === channel)
+        this.channel = null;
+    });
+    this.channel = channel;
+    this.pending.clear();
+    this.latencies = [];
+  },
+
+  _send: function(type, size, fill) {
+    if (this.channel == null || this.channel.readyState != 'open')
+      return;
+    let view = new DataView(new ArrayBuffer(3 + size));
+    this.seq = (this.seq + 1) & 0xffff;
+    view.setUint8(0, type);
+    view.setUint16(1, this.seq);
+    if (fill)
+      fill(view);
+    if (type != this.LATENCY) {
+      if (this.pending.size >= this.MAX_PENDING)
+        this.pending.clear(); // lost messages are never acknowledged
+      this.pending.set(this.seq, performance.now());
+    }
+    this.channel.send(view.buffer);
+  },
+
+  pointer: function(x, y) {
+    this._send(this.POINTER, 4, view => {
+      view.setUint16(3, x);
+      view.setUint16(5, y);
+    });
+  },
+
+  hidePointer: function() {
+    this._send(this.POINTER_HIDE, 0);
+  },
+
+  setZoom: function(zoom) {
+    this.zoom = Math.max(0, Math.min(zoom, this.MAX_ZOOM));
+    this._send(this.ZOOM, 1, view => view.setUint8(3, this.zoom));
+  },
+
+  focus: function(x, y) {
+    this._send(this.FOCUS, 4, view => {
+      view.setUint16(3, x);
+      view.setUint16(5, y);
+    });
+  },
+
+  _received: function(data) {
+    let view = new DataView(data);
+    if (view.byteLength < 7 || view.getUint8(0) != this.ACK)
+      return;
+    let seq = view.getUint16(1);
+    let sent = this.pending.get(seq);
+    if (sent === undefined)
+      return;
+    this.pending.delete(seq);
+    let processing = view.getUint32(3) / 1000;
+    let rtt = performance.now() - sent;
+    this.latencies.push((rtt - processing) / 2 + processing);
+    if (this.latencies.length >= this.LATENCY_REPORT_INTERVAL) {
+      let mean = this.latencies.reduce((a, b) => a + b) / this.latencies.length;
+      console.info("Remote control latency: " + mean.toFixed(1) + " ms");
+      this._send(this.LATENCY, 4, view => view.setUint32(3, Math.round(mean * 1000)));
+      this.latencies = [];
+    }
+  }
+};
+
+// Position of a mouse event in the video frame, from 0 to 65535, taking
+// letterboxing into account; null when outside of the frame.
+function videoCoordinates(event) {
+  let video = $("#remote")[0];
+  if (!video.videoWidth || !video.videoHeight)
+    return null;
+  let rect = video.getBoundingClientRect();
+  let scale = Math.min(rect.width / video.videoWidth, rect.height / video.videoHeight);
+  let width = video.videoWidth * scale;
+  let height = video.videoHeight * scale;
+  let x = (event.clientX - rect.left - (rect.width - width) / 2) / width;
+  let y = (event.clientY - rect.top - (rect.height - height) / 2) / height;
+  if (!(x >= 0 && x <= 1 && y >= 0 && y <= 1))
+    return null;
+  return {x: Math.round(x * 65535), y: Math.round(y * 65535)};
+}
+
+if (role == 'observer') {
+  let lastMove = null;
+  let scheduled = false;
+  $("#remote").on('mousemove', event => {
+    // At most one pointer update per animation frame
+    lastMove = event;
+    if (scheduled)
+      return;
+    scheduled = true;
+    window.requestAnimationFrame(() => {
+      scheduled = false;
+      let p = lastMove ? videoCoordinates(lastMove) : null;
+      if (p)
+        Control.pointer(p.x, p.y);
+      else
+        Control.hidePointer();
+    });
+  }).on('mouseleave', () => {
+    lastMove = null;
+    Control.hidePointer();
+  }).on('dblclick', event => {
+    let p = videoCoordinates(event);
+    if (p)
+      Control.focus(p.x, p.y);
+  }).on('wheel', event => {
+    event.preventDefault();
+    Control.setZoom(Control.zoom + (event.originalEvent.deltaY < 0 ? 1 : -1));
+  });
+}
+
+
 /*******************************************************************************
  * Protocol implementation
  ******************************************************************************/
@@ -327,6 +532,17 @@ ws.onclose = function() {
   die(Err.WEBSOCKET_ERROR, "Websocket closed");
 }
 
+function requestLayer() {
+  if (role == 'observer')
+    ws.send({type: 'layer', layer: layer});
+}
+
+$("#layer").change(function() {
+  layer = $(this).val();
+  if (state >= State.GET_USER_MEDIA)
+    requestLayer();
+});
+
 RTC.onIceConnected = function() {
   UI.hideTurbulence();
   if (state == State.ESTABLISHING)
@@ -385,6 +601,7 @@ ws.onmessage = function(msg) {
     if (state != State.WAITING_FOR_JOIN)
       break;
     setState(State.GET_USER_MEDIA);
+    requestLayer();
     establish();
     break;
   case 'leave':
@@ -410,7 +627,7 @@ ws.onmessage = function(msg) {
       .then(stream => {
               if (state >= State.GET_USER_MEDIA)
                 setState(State.ESTABLISHING);
-              return RTC.makeAnswer(stream, msg.payload, msg.iceServers)
+              return RTC.makeAnswer(stream, msg.payload, msg.iceServers, pickedLayer)
             }, e => die(Err.MEDIA_DENIED, e))
       .then(answer => {
         if (state >= State.ESTABLISHING) {
@@ -418,6 +635,10 @@ ws.onmessage = function(msg) {
         }
       }).catch(e => die(Err.WEBRTC, e));
     break;
+  case 'layer':
+    pickedLayer = msg.layer;
+    RTC.selectLayer(pickedLayer).catch(e => die(Err.WEBRTC, e));
+    break;
   case 'answer':
     if (state != State.ESTABLISHING)
       break;